@@ -0,0 +1,283 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.awt.image.*;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * The benchmark fixture, which has to be in the default package to use the
+ * PhotoMosaic classes. See photomosaic.bench.Fixture.
+ */
+public class BenchFixture implements photomosaic.bench.Fixture {
+	/**
+	 * The name the input image is written out with.
+	 */
+	private static final String IMAGE_NAME = "bench-input.png";
+
+	/**
+	 * The random source for all of the fixture's data.
+	 */
+	private Random random = new Random(SEED);
+	/**
+	 * The width of each database image.
+	 */
+	private int patchSize;
+	/**
+	 * The number of regions across and down each database image.
+	 */
+	private int grid;
+	/**
+	 * The synthetic DB.
+	 */
+	private TileDatabase db;
+	/**
+	 * The directory the DB files and input image were written to, or null.
+	 */
+	private File dir;
+	/**
+	 * The synthetic input image, already scaled.
+	 */
+	private BufferedImage image;
+	/**
+	 * The feature vectors of the input image's patches.
+	 */
+	private PatchFeatures patches;
+	/**
+	 * Finds the closest database image for a patch.
+	 */
+	private TileMatcher matcher;
+	/**
+	 * Scratch space for the matcher.
+	 */
+	private float[] scratch;
+	/**
+	 * The distance of every database image from a patch.
+	 */
+	private float[] distances;
+	/**
+	 * Random database images placed on every patch.
+	 */
+	private PlacedTiles placedTiles;
+	/**
+	 * The uniqueness window findClosest uses, in the middle of the placed tiles.
+	 */
+	private UniquenessWindow window;
+	/**
+	 * The uniqueness window slid along a row by uniquenessScores.
+	 */
+	private UniquenessWindow slidingWindow;
+
+	@Override
+	public void createDatabase(int size, int patchSize, int grid) {
+		this.patchSize = patchSize;
+		this.grid = grid;
+		db = new TileDatabase(PatchFeatures.dimensions(grid));
+
+		//
+		// Give each database image a base colour, with each region varying a
+		// little from it, like a real photo would
+		//
+		float[] features = new float[db.getDimensions()];
+		for (int id = 0; id < size; id++) {
+			int[] base = { random.nextInt(256), random.nextInt(256), random.nextInt(256) };
+			for (int i = 0; i < features.length; i++) {
+				features[i] = Math.max(0, Math.min(255, base[i % 3] + random.nextInt(41) - 20));
+			}
+			db.add("tile" + id + ".jpg", features, 0);
+		}
+	}
+
+	@Override
+	public void writeDatabaseFiles(File dir) throws IOException {
+		this.dir = dir;
+		float[] features = db.getInterleavedFeatures();
+		int dimensions = db.getDimensions();
+
+		try (Writer csv = new BufferedWriter(new FileWriter(databasePath(".csv")))) {
+			for (int id = 0; id < db.size(); id++) {
+				csv.write(db.getPath(id));
+				for (int i = 0; i < dimensions; i += 3) {
+					csv.write("," + packed(features, id*dimensions + i));
+				}
+				csv.write("\n");
+			}
+		}
+		TileDatabaseFile.write(db, patchSize, new File(databasePath(".bin")));
+
+		//
+		// Fill each region of each database image with its average colour
+		//
+		try (FileChannel pack = TilePack.openForAppend(new File(databasePath(".pack")), patchSize, 0)) {
+			int[] pixels = new int[patchSize * patchSize];
+			for (int id = 0; id < db.size(); id++) {
+				for (int y = 0; y < patchSize; y++) {
+					for (int x = 0; x < patchSize; x++) {
+						int region = (y*grid/patchSize)*grid + x*grid/patchSize;
+						pixels[y*patchSize + x] = packed(features, id*dimensions + region*3);
+					}
+				}
+				TilePack.append(pack, pixels);
+			}
+		}
+	}
+
+	@Override
+	public String databasePath(String extension) {
+		return new File(dir, "db" + patchSize + "x" + patchSize + extension).getPath();
+	}
+
+	@Override
+	public void createImage(int width) {
+		//
+		// Smooth colour gradients with some noise on top
+		//
+		image = new BufferedImage(width, width, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < width; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (int) (127 + 100*Math.sin(x / 37.0)) + random.nextInt(21) - 10;
+				int g = (int) (127 + 100*Math.cos(y / 53.0)) + random.nextInt(21) - 10;
+				int b = (int) (127 + 100*Math.sin((x + y) / 71.0)) + random.nextInt(21) - 10;
+				pixels[y*width + x] = (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+			}
+		}
+		patches = new PatchFeatures(image, patchSize, grid);
+	}
+
+	@Override
+	public int patchCount() {
+		return patches.getColumns() * patches.getRows();
+	}
+
+	@Override
+	public void createMatcher(int searchCandidates, int uniqueBox, boolean quantized) {
+		matcher = quantized && searchCandidates > 0
+			? new TileMatcher(db, new QuantizedIndex(db), searchCandidates, new RunMetrics("TileMatcher"))
+			: new TileMatcher(db, searchCandidates);
+		scratch = matcher.createScratch();
+		distances = new float[db.size()];
+
+		int columns = patches.getColumns();
+		int rows = patches.getRows();
+		placedTiles = new PlacedTiles(columns, rows, rows);
+		placedTiles.startRows(0, rows);
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < columns; x++) {
+				placedTiles.set(x, y, random.nextInt(db.size()));
+			}
+		}
+		window = new UniquenessWindow(placedTiles, uniqueBox, db.size());
+		window.startRow(rows/2);
+		window.moveTo(columns/2);
+		slidingWindow = new UniquenessWindow(placedTiles, uniqueBox, db.size());
+	}
+
+	@Override
+	public float regionDistance(int id, int patch) {
+		return db.distance(id, patches.getFeatures(), patch * db.getDimensions());
+	}
+
+	@Override
+	public float regionDistances(int patch) {
+		db.distances(patches.getFeatures(), patch * db.getDimensions(), distances);
+		return distances[0];
+	}
+
+	@Override
+	public float averageRegions(int patch) {
+		float[] features = new float[db.getDimensions()];
+		int x = patch % patches.getColumns();
+		int y = patch / patches.getColumns();
+		PatchFeatures.extract(
+			PatchFeatures.pixels(image), y*patchSize*image.getWidth() + x*patchSize, image.getWidth(),
+			patchSize, patchSize, grid, features, 0
+		);
+		return features[0];
+	}
+
+	@Override
+	public int extractPatches() {
+		return new PatchFeatures(image, patchSize, grid).getFeatures().length;
+	}
+
+	@Override
+	public int findClosest(int patch) {
+		return matcher.findClosest(patches.getFeatures(), patch * db.getDimensions(), scratch, window);
+	}
+
+	@Override
+	public int uniquenessScores(int id) {
+		int y = patches.getRows() / 2;
+		int total = 0;
+		slidingWindow.startRow(y);
+		for (int x = 0; x < patches.getColumns(); x++) {
+			slidingWindow.moveTo(x);
+			total += slidingWindow.count(id);
+			slidingWindow.place(x, placedTiles.get(x, y));
+		}
+		slidingWindow.endRow();
+		return total;
+	}
+
+	@Override
+	public int loadDatabase(String path) {
+		return TileDatabase.open(path).size();
+	}
+
+	@Override
+	public void writeImage(File dir) throws IOException {
+		this.dir = dir;
+		ImageIO.write(image, "png", new File(dir, IMAGE_NAME));
+	}
+
+	@Override
+	public void renderMosaic(int width, int uniqueBox, int threads) throws IOException {
+		MosaicOptions options = new MosaicOptions().setUniqueBox(uniqueBox).setThreads(threads);
+
+		// Keep the progress output out of the benchmark results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		try {
+			new PhotoMosaic(new File(dir, IMAGE_NAME).getPath(), width, databasePath(".bin"), patchSize, options);
+		}
+		finally {
+			System.setOut(out);
+		}
+	}
+
+	@Override
+	public void cleanUp() {
+		if (dir != null) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		// PhotoMosaic writes its output to the working directory
+		new File(PhotoMosaic.MOSAIC_OUTPUT_PREFIX + IMAGE_NAME).delete();
+		new File(PhotoMosaic.SCALED_INPUT_PREFIX + IMAGE_NAME).delete();
+	}
+
+	/**
+	 * @param features the feature vectors
+	 * @param offset the position of an RGB tuple
+	 * @return the RGB tuple as a packed RGB int
+	 */
+	private static int packed(float[] features, int offset) {
+		return ((int) features[offset] << 16) | ((int) features[offset + 1] << 8) | (int) features[offset + 2];
+	}
+
+	/**
+	 * @param channel a colour channel
+	 * @return the channel clamped to 0 to 255
+	 */
+	private static int clamp(int channel) {
+		return Math.max(0, Math.min(255, channel));
+	}
+}
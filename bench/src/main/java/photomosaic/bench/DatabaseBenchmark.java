@@ -0,0 +1,56 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks loading a DB file, from both the CSV and binary formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DatabaseBenchmark {
+	/**
+	 * The number of database images.
+	 */
+	@Param({ "1000", "100000", "1000000" })
+	public int dbSize;
+	/**
+	 * The DB file format to load.
+	 */
+	@Param({ ".bin", ".csv" })
+	public String format;
+
+	/**
+	 * The synthetic data.
+	 */
+	private Fixture fixture;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		fixture = Fixture.create();
+		fixture.createDatabase(dbSize, 8, 2);
+		fixture.writeDatabaseFiles(Files.createTempDirectory("photomosaic-bench").toFile());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.cleanUp();
+	}
+
+	@Benchmark
+	public int loadDbImages() {
+		return fixture.loadDatabase(fixture.databasePath(format));
+	}
+}
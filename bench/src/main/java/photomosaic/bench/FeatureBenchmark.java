@@ -0,0 +1,67 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks extracting the average RGB values of a grid of regions, for a
+ * single patch (as ProcessDB does for each DB image) and for every patch of
+ * an input image (as PhotoMosaic does up front).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark {
+	/**
+	 * The width of each patch.
+	 */
+	@Param({ "8", "16", "32" })
+	public int patchSize;
+	/**
+	 * The number of regions across and down each patch.
+	 */
+	@Param({ "2", "4" })
+	public int grid;
+	/**
+	 * The width and height of the input image.
+	 */
+	@Param({ "1024" })
+	public int imageSize;
+
+	/**
+	 * The synthetic data.
+	 */
+	private Fixture fixture;
+	/**
+	 * The next patch to extract.
+	 */
+	private int patch;
+
+	@Setup
+	public void setUp() {
+		fixture = Fixture.create();
+		fixture.createDatabase(1, patchSize, grid);
+		fixture.createImage(imageSize);
+	}
+
+	@Benchmark
+	public float averageRegions() {
+		patch = (patch + 1) % fixture.patchCount();
+		return fixture.averageRegions(patch);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int extractPatches() {
+		return fixture.extractPatches();
+	}
+}
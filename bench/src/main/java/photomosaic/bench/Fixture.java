@@ -0,0 +1,148 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.io.*;
+
+/**
+ * Synthetic data and entry points into the PhotoMosaic programs for the
+ * benchmarks to call.
+ *
+ * The programs live in the default package, which classes in a named package
+ * (as JMH requires benchmarks to be) can't refer to. The implementation,
+ * BenchFixture, is in the default package and is loaded by name instead.
+ */
+public interface Fixture {
+	/**
+	 * The seed for all random data, so every run measures the same inputs.
+	 */
+	long SEED = 450;
+
+	/**
+	 * Create a fixture.
+	 * @return a new fixture
+	 */
+	static Fixture create() {
+		try {
+			return (Fixture) Class.forName("BenchFixture").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("BenchFixture is missing from the benchmark jar", e);
+		}
+	}
+
+	/**
+	 * Create an in-memory DB of random database images.
+	 * @param size the number of database images
+	 * @param patchSize the width of each database image
+	 * @param grid the number of regions across and down each database image
+	 */
+	void createDatabase(int size, int patchSize, int grid);
+
+	/**
+	 * Write the DB out as a DB CSV file, a binary DB file and a tile pack.
+	 * @param dir the directory to write the files to
+	 * @throws IOException if the files could not be written
+	 */
+	void writeDatabaseFiles(File dir) throws IOException;
+
+	/**
+	 * @param extension ".csv", ".bin" or ".pack"
+	 * @return the path of the written DB file with that extension
+	 */
+	String databasePath(String extension);
+
+	/**
+	 * Create a random input image, already scaled, and work out its patches'
+	 * feature vectors.
+	 * @param width the width and height of the image
+	 */
+	void createImage(int width);
+
+	/**
+	 * @return the number of patches in the input image
+	 */
+	int patchCount();
+
+	/**
+	 * Set up matching against the DB, with the placed tiles filled with
+	 * random database images and a uniqueness window in the middle of them.
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 * @param uniqueBox the box size to search for duplicates in
+	 * @param quantized whether to find the candidates by scanning product quantized codes rather than the k-d tree
+	 */
+	void createMatcher(int searchCandidates, int uniqueBox, boolean quantized);
+
+	/**
+	 * @param id the id of a database image
+	 * @param patch the index of a patch of the input image
+	 * @return the squared distance between the database image and the patch
+	 */
+	float regionDistance(int id, int patch);
+
+	/**
+	 * Work out the distance between every database image and a patch.
+	 * @param patch the index of a patch of the input image
+	 * @return the distance to the first database image
+	 */
+	float regionDistances(int patch);
+
+	/**
+	 * Extract the feature vector of one patch of the input image.
+	 * @param patch the index of a patch of the input image
+	 * @return the first value of the feature vector
+	 */
+	float averageRegions(int patch);
+
+	/**
+	 * Extract the feature vector of every patch of the input image.
+	 * @return the number of values extracted
+	 */
+	int extractPatches();
+
+	/**
+	 * @param patch the index of a patch of the input image
+	 * @return the id of the closest matching database image
+	 */
+	int findClosest(int patch);
+
+	/**
+	 * Slide the uniqueness window across a row of the placed tiles, looking
+	 * up a database image's count at each patch.
+	 * @param id the id of the database image to look up
+	 * @return the total of the counts
+	 */
+	int uniquenessScores(int id);
+
+	/**
+	 * @param path the path to a DB file
+	 * @return the number of database images loaded from it
+	 */
+	int loadDatabase(String path);
+
+	/**
+	 * Create a whole photomosaic of an input image written out by
+	 * writeImage, using the written DB files.
+	 * @param width the width to scale the input image to
+	 * @param uniqueBox the box size to search for duplicates in
+	 * @param threads the number of threads to match patches on
+	 * @throws IOException if the photomosaic could not be created
+	 */
+	void renderMosaic(int width, int uniqueBox, int threads) throws IOException;
+
+	/**
+	 * Write the input image out to a file for renderMosaic.
+	 * @param dir the directory to write the image to
+	 * @throws IOException if the image could not be written
+	 */
+	void writeImage(File dir) throws IOException;
+
+	/**
+	 * Delete the files written by this fixture and by renderMosaic.
+	 */
+	void cleanUp();
+}
@@ -0,0 +1,85 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks comparing patches with database images and picking the closest
+ * one, over synthetic DBs of several sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MatchingBenchmark {
+	/**
+	 * The number of database images.
+	 */
+	@Param({ "1000", "100000", "1000000" })
+	public int dbSize;
+	/**
+	 * How each patch's candidates are found: by searching the k-d tree, by
+	 * scanning product quantized codes, or by checking every database image.
+	 */
+	@Param({ "kdtree", "quantized", "exact" })
+	public String search;
+	/**
+	 * The number of closest database images to consider for each patch, when
+	 * not checking every database image.
+	 */
+	@Param({ "32" })
+	public int searchCandidates;
+	/**
+	 * The box size to search for duplicates in.
+	 */
+	@Param({ "21" })
+	public int uniqueBox;
+
+	/**
+	 * The synthetic data.
+	 */
+	private Fixture fixture;
+	/**
+	 * The next patch to match.
+	 */
+	private int patch;
+	/**
+	 * The next database image to compare.
+	 */
+	private int id;
+
+	@Setup
+	public void setUp() {
+		fixture = Fixture.create();
+		fixture.createDatabase(dbSize, 8, 2);
+		fixture.createImage(512);
+		fixture.createMatcher(search.equals("exact") ? 0 : searchCandidates, uniqueBox, search.equals("quantized"));
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public float regionDistance() {
+		id = (id + 1) % dbSize;
+		return fixture.regionDistance(id, patch);
+	}
+
+	@Benchmark
+	public float regionDistances() {
+		patch = (patch + 1) % fixture.patchCount();
+		return fixture.regionDistances(patch);
+	}
+
+	@Benchmark
+	public int findClosest() {
+		patch = (patch + 1) % fixture.patchCount();
+		return fixture.findClosest(patch);
+	}
+}
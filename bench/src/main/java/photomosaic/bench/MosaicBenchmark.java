@@ -0,0 +1,75 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks creating a whole photomosaic, from reading the input image to
+ * writing the output, using a synthetic DB with a tile pack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MosaicBenchmark {
+	/**
+	 * The number of database images.
+	 */
+	@Param({ "1000", "100000", "1000000" })
+	public int dbSize;
+	/**
+	 * The width of each database image.
+	 */
+	@Param({ "8", "16" })
+	public int patchSize;
+	/**
+	 * The box size to search for duplicates in.
+	 */
+	@Param({ "5", "21" })
+	public int uniqueBox;
+	/**
+	 * The width to scale the input image to.
+	 */
+	@Param({ "1024" })
+	public int width;
+	/**
+	 * The number of threads to match patches on.
+	 */
+	@Param({ "1" })
+	public int threads;
+
+	/**
+	 * The synthetic data.
+	 */
+	private Fixture fixture;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		fixture = Fixture.create();
+		fixture.createDatabase(dbSize, patchSize, 2);
+		File dir = Files.createTempDirectory("photomosaic-bench").toFile();
+		fixture.writeDatabaseFiles(dir);
+		fixture.createImage(width);
+		fixture.writeImage(dir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fixture.cleanUp();
+	}
+
+	@Benchmark
+	public void renderMosaic() throws IOException {
+		fixture.renderMosaic(width, uniqueBox, threads);
+	}
+}
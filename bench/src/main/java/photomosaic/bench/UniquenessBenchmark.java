@@ -0,0 +1,56 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+package photomosaic.bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the uniqueness penalty: sliding the window of placed tiles along
+ * a row of 64 patches and looking up a database image's count at each one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniquenessBenchmark {
+	/**
+	 * The number of database images.
+	 */
+	@Param({ "1000", "100000", "1000000" })
+	public int dbSize;
+	/**
+	 * The box size to search for duplicates in.
+	 */
+	@Param({ "5", "21", "41" })
+	public int uniqueBox;
+
+	/**
+	 * The synthetic data.
+	 */
+	private Fixture fixture;
+	/**
+	 * The next database image to look up.
+	 */
+	private int id;
+
+	@Setup
+	public void setUp() {
+		fixture = Fixture.create();
+		fixture.createDatabase(dbSize, 8, 2);
+		fixture.createImage(512);
+		fixture.createMatcher(0, uniqueBox, false);
+	}
+
+	@Benchmark
+	public int uniquenessScore() {
+		id = (id + 1) % dbSize;
+		return fixture.uniquenessScores(id);
+	}
+}
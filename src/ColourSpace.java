@@ -0,0 +1,157 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * The colour spaces feature vectors can be stored in. Features are always
+ * extracted as average sRGB values and converted afterwards, and patches are
+ * matched by the squared Euclidean distance between their features in
+ * whichever space the DB uses.
+ *
+ * In CIELAB, Euclidean distance is the CIE76 colour difference, which follows
+ * how different two colours look far more closely than distance in sRGB does
+ * (e.g. sRGB exaggerates differences between bright greens and understates
+ * those between dark blues). It keeps the same fast distance calculation and
+ * k-d tree search as sRGB, which more exact formulas like CIEDE2000 wouldn't.
+ */
+public enum ColourSpace {
+	/**
+	 * Average sRGB values, from 0 to 255.
+	 */
+	RGB,
+	/**
+	 * CIELAB values (D65 white point): L from 0 to 100, and a and b roughly
+	 * from -128 to 127.
+	 */
+	LAB;
+
+	/**
+	 * The linear value of each 8 bit sRGB value. Features are integer
+	 * averages, so this covers every value converted in practice.
+	 */
+	private static final float[] LINEAR = new float[256];
+	/**
+	 * Values of t above this use the cube root in the CIELAB function f(t).
+	 */
+	private static final double EPSILON = 216.0 / 24389.0;
+	/**
+	 * The slope of the linear part of the CIELAB function f(t).
+	 */
+	private static final double KAPPA = 24389.0 / 27.0;
+	/**
+	 * The X value of the D65 white point, which X values are divided by.
+	 */
+	private static final double WHITE_X = 0.95047;
+	/**
+	 * The Z value of the D65 white point, which Z values are divided by.
+	 * The white point's Y value is 1.
+	 */
+	private static final double WHITE_Z = 1.08883;
+
+	static {
+		for (int i = 0; i < LINEAR.length; i++) {
+			LINEAR[i] = (float) decode(i);
+		}
+	}
+
+	/**
+	 * Convert feature vectors of sRGB values into this colour space, in place.
+	 * @param features the array holding the feature vectors, as RGB tuples
+	 * @param offset the position of the first value to convert
+	 * @param length the number of values to convert, a multiple of 3
+	 */
+	public void fromRgb(float[] features, int offset, int length) {
+		if (this == RGB) {
+			return;
+		}
+		for (int i = offset; i < offset + length; i += 3) {
+			double r = linear(features[i]);
+			double g = linear(features[i + 1]);
+			double b = linear(features[i + 2]);
+
+			// Linear sRGB to XYZ, relative to the white point
+			double fx = f((0.4124564*r + 0.3575761*g + 0.1804375*b) / WHITE_X);
+			double fy = f(0.2126729*r + 0.7151522*g + 0.0721750*b);
+			double fz = f((0.0193339*r + 0.1191920*g + 0.9503041*b) / WHITE_Z);
+
+			features[i] = (float) (116*fy - 16);
+			features[i + 1] = (float) (500*(fx - fy));
+			features[i + 2] = (float) (200*(fy - fz));
+		}
+	}
+
+	/**
+	 * Convert feature vectors in this colour space back into sRGB values,
+	 * in place. Values outside of sRGB are clamped.
+	 * @param features the array holding the feature vectors, as tuples of this colour space
+	 * @param offset the position of the first value to convert
+	 * @param length the number of values to convert, a multiple of 3
+	 */
+	public void toRgb(float[] features, int offset, int length) {
+		if (this == RGB) {
+			return;
+		}
+		for (int i = offset; i < offset + length; i += 3) {
+			double fy = (features[i] + 16) / 116;
+			double fx = fy + features[i + 1] / 500;
+			double fz = fy - features[i + 2] / 200;
+			double x = fInverse(fx) * WHITE_X;
+			double y = fInverse(fy);
+			double z = fInverse(fz) * WHITE_Z;
+
+			// XYZ to linear sRGB
+			features[i] = encode(3.2404542*x - 1.5371385*y - 0.4985314*z);
+			features[i + 1] = encode(-0.9692660*x + 1.8760108*y + 0.0415560*z);
+			features[i + 2] = encode(0.0556434*x - 0.2040259*y + 1.0572252*z);
+		}
+	}
+
+	/**
+	 * @param value an sRGB value from 0 to 255, looked up if it is a whole number
+	 * @return the linear value, from 0 to 1
+	 */
+	private static double linear(float value) {
+		int i = (int) value;
+		if (i == value && i >= 0 && i < LINEAR.length) {
+			return LINEAR[i];
+		}
+		return decode(value);
+	}
+
+	/**
+	 * @param value an sRGB value from 0 to 255
+	 * @return the linear value, from 0 to 1
+	 */
+	private static double decode(double value) {
+		double v = value / 255;
+		return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+	}
+
+	/**
+	 * @param value a linear value from 0 to 1
+	 * @return the sRGB value, from 0 to 255
+	 */
+	private static float encode(double value) {
+		double v = value <= 0.0031308 ? value * 12.92 : 1.055 * Math.pow(value, 1 / 2.4) - 0.055;
+		return (float) (Math.min(Math.max(v, 0), 1) * 255);
+	}
+
+	/**
+	 * @param t an XYZ value relative to the white point
+	 * @return the CIELAB function f(t)
+	 */
+	private static double f(double t) {
+		return t > EPSILON ? Math.cbrt(t) : (KAPPA*t + 16) / 116;
+	}
+
+	/**
+	 * @param ft a value of the CIELAB function f(t)
+	 * @return t
+	 */
+	private static double fInverse(double ft) {
+		double t = ft*ft*ft;
+		return t > EPSILON ? t : (116*ft - 16) / KAPPA;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.util.*;
+
+/**
+ * Split up command line arguments into positional arguments and options.
+ * Options are given as "--name=value", or just "--name" for on/off switches.
+ */
+public class CommandLine {
+	/**
+	 * The arguments that aren't options, in the order they were given.
+	 */
+	private java.util.List<String> positional;
+	/**
+	 * The options that were given, mapped to their values.
+	 */
+	private Map<String, String> options;
+
+	/**
+	 * Parse the given command line arguments.
+	 * @param args the arguments passed to main
+	 */
+	public CommandLine(String[] args) {
+		positional = new ArrayList<String>();
+		options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				positional.add(arg);
+				continue;
+			}
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				// A switch with no value
+				options.put(arg.substring(2), "");
+			}
+			else {
+				options.put(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+		}
+	}
+
+	/**
+	 * @return the arguments that aren't options
+	 */
+	public java.util.List<String> getPositional() {
+		return positional;
+	}
+
+	/**
+	 * @param name the option name, without the leading "--"
+	 * @return if the option was given
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * @param name the option name, without the leading "--"
+	 * @param defaultValue the value to use if the option wasn't given
+	 * @return the value of the option
+	 */
+	public String get(String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	/**
+	 * @param name the option name, without the leading "--"
+	 * @param defaultValue the value to use if the option wasn't given
+	 * @return the integer value of the option
+	 * @throws IllegalArgumentException if the option's value isn't an integer
+	 */
+	public int getInt(String name, int defaultValue) throws IllegalArgumentException {
+		if (!options.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(options.get(name));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects an integer, got: " + options.get(name));
+		}
+	}
+
+	/**
+	 * @param name the option name, without the leading "--"
+	 * @param defaultValue the value to use if the option wasn't given
+	 * @return the number value of the option
+	 * @throws IllegalArgumentException if the option's value isn't a number
+	 */
+	public float getFloat(String name, float defaultValue) throws IllegalArgumentException {
+		if (!options.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Float.parseFloat(options.get(name));
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " expects a number, got: " + options.get(name));
+		}
+	}
+}
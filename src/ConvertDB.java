@@ -0,0 +1,51 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.util.regex.*;
+
+/**
+ * Convert a DB CSV file into a binary DB file, which PhotoMosaic can open
+ * without having to parse anything. The features can be stored in CIELAB
+ * rather than sRGB, and along with their product quantized codes.
+ */
+public class ConvertDB {
+	public static void main(String[] args) {
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.size() < 1 || positional.size() > 2) {
+			System.err.println("Usage: java ConvertDB <DB CSV file> [binary DB file] [--lab] [--quantize]");
+			System.err.println("e.g. java ConvertDB ./db/db32x32.csv");
+			System.err.println("^-- This would write ./db/db32x32" + TileDatabaseFile.EXTENSION + " with the same entries as ./db/db32x32.csv.");
+			System.err.println("    --lab stores the features in CIELAB, as ProcessDB --lab does.");
+			System.err.println("    --quantize also stores the features' product quantized codes, as ProcessDB --quantize does.");
+			System.exit(1);
+		}
+		String csvPath = positional.get(0);
+		String binaryPath = positional.size() == 2 ? positional.get(1) : TileDatabaseFile.binaryPath(csvPath);
+
+		// DB files are named after their patch size, e.g. "db32x32.csv"
+		int patchSize = 0;
+		Matcher m = Pattern.compile("db(\\d+)x\\d+").matcher(new File(csvPath).getName());
+		if (m.find()) {
+			patchSize = Integer.parseInt(m.group(1));
+		}
+
+		try {
+			TileDatabase db = TileDatabase.loadCsv(csvPath);
+			db.convertTo(cmd.has("lab") ? ColourSpace.LAB : ColourSpace.RGB);
+			if (cmd.has("quantize")) {
+				db.quantize();
+			}
+			TileDatabaseFile.write(db, patchSize, new File(binaryPath));
+			System.out.println("[INFO] wrote " + db.size() + " entries to: " + binaryPath);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
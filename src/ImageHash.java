@@ -0,0 +1,133 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.security.*;
+
+/**
+ * Hashes used to tell when two input images are the same.
+ *
+ * The content hash is a SHA-256 of an image file's bytes, so it only matches
+ * an exact copy of the file. The perceptual hash is a 64 bit difference hash
+ * of an image's pixels: each bit records whether one cell of a 9x8 grid of
+ * brightness averages is brighter than the next cell along its row. Images
+ * that look alike, e.g. the same photo saved at a different quality or size,
+ * have perceptual hashes that differ in only a few bits.
+ */
+public class ImageHash {
+	/**
+	 * The number of cells across the grid a perceptual hash is taken from.
+	 * Scaling an image to this width first makes each cell one pixel.
+	 */
+	public static final int WIDTH = 9;
+	/**
+	 * The number of cells down the grid a perceptual hash is taken from.
+	 */
+	public static final int HEIGHT = 8;
+
+	/**
+	 * The length of a content hash as a hex string.
+	 */
+	public static final int CONTENT_HASH_LENGTH = 64;
+
+	/**
+	 * Calculate the content hash of a file's bytes.
+	 * @param bytes the contents of the file
+	 * @return the SHA-256 of the bytes as a lowercase hex string
+	 */
+	public static String contentHash(byte[] bytes) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Calculate the perceptual hash of an image.
+	 * @param pixels the packed RGB pixels of the image
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the perceptual hash
+	 */
+	public static long perceptualHash(int[] pixels, int width, int height) {
+		//
+		// Average the brightness of each cell of the grid. Images smaller
+		// than the grid repeat pixels across neighbouring cells.
+		//
+		float[] cells = new float[WIDTH * HEIGHT];
+		for (int row = 0; row < HEIGHT; row++) {
+			int y0 = row * height / HEIGHT;
+			int y1 = Math.max(y0 + 1, (row + 1) * height / HEIGHT);
+			for (int col = 0; col < WIDTH; col++) {
+				int x0 = col * width / WIDTH;
+				int x1 = Math.max(x0 + 1, (col + 1) * width / WIDTH);
+				long sum = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						int rgb = pixels[y*width + x];
+						sum += ((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114;
+					}
+				}
+				cells[row*WIDTH + col] = (float) sum / ((x1 - x0) * (y1 - y0));
+			}
+		}
+
+		long hash = 0;
+		for (int row = 0; row < HEIGHT; row++) {
+			for (int col = 0; col < WIDTH - 1; col++) {
+				hash <<= 1;
+				if (cells[row*WIDTH + col] > cells[row*WIDTH + col + 1]) {
+					hash |= 1;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param a a perceptual hash
+	 * @param b another perceptual hash
+	 * @return the number of bits the hashes differ in, from 0 (alike) to 64
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * @param bytes some bytes
+	 * @return the bytes as a lowercase hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param hex a hex string with an even number of digits
+	 * @return the bytes it holds
+	 * @throws IllegalArgumentException if the string isn't hex
+	 */
+	public static byte[] fromHex(String hex) throws IllegalArgumentException {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Not a hex string: " + hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(i*2), 16);
+			int low = Character.digit(hex.charAt(i*2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Not a hex string: " + hex);
+			}
+			bytes[i] = (byte) (high << 4 | low);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * A k-d tree over the feature vectors of the database images.
+ * The tree is built once and stored implicitly: each node covers a range of
+ * the reordered points and its splitting point is the middle of that range.
+ */
+public class KDTreeIndex implements TileIndex {
+	/**
+	 * Ranges at most this size are scanned linearly rather than split further.
+	 */
+	private static final int LEAF_SIZE = 8;
+	/**
+	 * The number of dimensions of each feature vector.
+	 */
+	private int dimensions;
+	/**
+	 * The feature vectors, reordered so that each node's points are contiguous.
+	 */
+	private float[] points;
+	/**
+	 * The original database index of each reordered point.
+	 */
+	private int[] ids;
+	/**
+	 * The dimension each node splits on, stored at the node's middle position.
+	 */
+	private byte[] splitDimensions;
+
+	/**
+	 * Build a k-d tree over the given feature vectors.
+	 * @param features the feature vectors of all database images, one after the other
+	 * @param dimensions the number of dimensions of each feature vector
+	 */
+	public KDTreeIndex(float[] features, int dimensions) {
+		this.dimensions = dimensions;
+		int size = features.length / dimensions;
+
+		ids = new int[size];
+		for (int i = 0; i < size; i++) {
+			ids[i] = i;
+		}
+		splitDimensions = new byte[size];
+		build(features, 0, size);
+
+		//
+		// Copy the feature vectors into tree order so that searches walk
+		// through memory sequentially.
+		//
+		points = new float[size * dimensions];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(features, ids[i]*dimensions, points, i*dimensions, dimensions);
+		}
+	}
+
+	/**
+	 * Recursively split the given range of points on its widest dimension.
+	 * @param features the feature vectors in their original order
+	 * @param lo the first position in the range
+	 * @param hi one past the last position in the range
+	 */
+	private void build(float[] features, int lo, int hi) {
+		if (hi - lo <= LEAF_SIZE) {
+			return;
+		}
+
+		//
+		// Find the dimension with the largest spread of values in this range
+		//
+		int splitDimension = 0;
+		float widestSpread = -1;
+		for (int d = 0; d < dimensions; d++) {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				float value = features[ids[i]*dimensions + d];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if (max - min > widestSpread) {
+				widestSpread = max - min;
+				splitDimension = d;
+			}
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(features, lo, hi - 1, mid, splitDimension);
+		splitDimensions[mid] = (byte) splitDimension;
+
+		build(features, lo, mid);
+		build(features, mid + 1, hi);
+	}
+
+	/**
+	 * Partially sort the given range so that the point at position k is the
+	 * one that would be there if the range were sorted on the given dimension.
+	 * @param features the feature vectors in their original order
+	 * @param left the first position in the range
+	 * @param right the last position in the range
+	 * @param k the position to select
+	 * @param dimension the dimension to compare points on
+	 */
+	private void select(float[] features, int left, int right, int k, int dimension) {
+		while (right > left) {
+			float pivot = features[ids[(left + right) >>> 1]*dimensions + dimension];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (features[ids[i]*dimensions + dimension] < pivot) {
+					i++;
+				}
+				while (features[ids[j]*dimensions + dimension] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int tmp = ids[i];
+					ids[i] = ids[j];
+					ids[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j) {
+				right = j;
+			}
+			else if (k >= i) {
+				left = i;
+			}
+			else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int[] nearest(float[] query, int offset, int k) {
+		NeighbourHeap heap = new NeighbourHeap(k);
+		search(query, offset, 0, ids.length, heap);
+		return heap.sortedIds();
+	}
+
+	/**
+	 * Search the given range of the tree for points closer than the current
+	 * worst candidate.
+	 * @param query the array holding the feature vector to search for
+	 * @param offset the position of the feature vector in the query array
+	 * @param lo the first position in the range
+	 * @param hi one past the last position in the range
+	 * @param heap the closest candidates found so far
+	 */
+	private void search(float[] query, int offset, int lo, int hi, NeighbourHeap heap) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				heap.offer(ids[i], distance(query, offset, i));
+			}
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int splitDimension = splitDimensions[mid];
+		float diff = query[offset + splitDimension] - points[mid*dimensions + splitDimension];
+
+		heap.offer(ids[mid], distance(query, offset, mid));
+
+		// Search the side of the split the query falls on first, and only
+		// look at the other side if it could hold something as close.
+		if (diff < 0) {
+			search(query, offset, lo, mid, heap);
+			if (diff*diff <= heap.worst()) {
+				search(query, offset, mid + 1, hi, heap);
+			}
+		}
+		else {
+			search(query, offset, mid + 1, hi, heap);
+			if (diff*diff <= heap.worst()) {
+				search(query, offset, lo, mid, heap);
+			}
+		}
+	}
+
+	/**
+	 * Determine the squared distance between the query and a point in the tree.
+	 * @param query the array holding the feature vector to search for
+	 * @param offset the position of the feature vector in the query array
+	 * @param position the position of the point in tree order
+	 * @return the squared Euclidean distance
+	 */
+	private float distance(float[] query, int offset, int position) {
+		int pointOffset = position * dimensions;
+		float distance = 0;
+		for (int d = 0; d < dimensions; d++) {
+			float diff = query[offset + d] - points[pointOffset + d];
+			distance += diff*diff;
+		}
+		return distance;
+	}
+}
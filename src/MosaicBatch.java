@@ -0,0 +1,334 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import javax.imageio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Create photomosaics of many input images with one DB, loading the DB once.
+ *
+ * Several images are worked on at once, each on its own thread by default,
+ * since that scales better than splitting one image across threads. They all
+ * share the DB's index and tile pack or tile cache, so a database image
+ * decoded for one photomosaic is ready for the next.
+ *
+ * The images can also be created in order as the frames of a video, where
+ * patches that have barely changed keep the previous frame's database images.
+ */
+public class MosaicBatch {
+	/**
+	 * The outcome of creating one photomosaic.
+	 */
+	private static class Result {
+		/**
+		 * The input image.
+		 */
+		String input;
+		/**
+		 * The photomosaic file.
+		 */
+		File output;
+		/**
+		 * The timings and counts of creating the photomosaic, or null if it
+		 * failed.
+		 */
+		RunMetrics metrics;
+		/**
+		 * Why the photomosaic could not be created, or null if it was.
+		 */
+		String error;
+
+		Result(String input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * The input images, in order.
+	 */
+	private java.util.List<String> inputs;
+	/**
+	 * The width to scale each input image to.
+	 */
+	private int width;
+	/**
+	 * The loaded DB.
+	 */
+	private MosaicDatabase database;
+	/**
+	 * The settings used for every photomosaic.
+	 */
+	private MosaicOptions options;
+	/**
+	 * The number of photomosaics to create at once.
+	 */
+	private int jobs;
+	/**
+	 * The timings and settings of the whole batch.
+	 */
+	private RunMetrics metrics = new RunMetrics("PhotoMosaic batch");
+	/**
+	 * The outcome of each photomosaic, in the same order as the inputs.
+	 */
+	private java.util.List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * Prepare to create photomosaics of a set of input images, loading the DB
+	 * and building its index.
+	 * @param inputs the input images
+	 * @param width the width to scale each input image to
+	 * @param dbFilePath the path to the binary DB file or DB csv file
+	 * @param patchSize the square DB image width
+	 * @param options the settings used for every photomosaic
+	 * @param jobs the number of photomosaics to create at once
+	 * @throws IllegalArgumentException if jobs isn't positive, or the DB file doesn't exist
+	 */
+	public MosaicBatch(java.util.List<String> inputs, int width, String dbFilePath, int patchSize, MosaicOptions options, int jobs) throws IllegalArgumentException {
+		if (jobs < 1) {
+			throw new IllegalArgumentException("The number of jobs must be at least 1.");
+		}
+		this.inputs = inputs;
+		this.width = width;
+		this.options = options;
+		this.jobs = jobs;
+		metrics.setting("images", inputs.size());
+		metrics.setting("width", width);
+		metrics.setting("db", dbFilePath);
+		metrics.setting("patchSize", patchSize);
+		metrics.setting("jobs", jobs);
+		metrics.setting("threads", options.getThreads());
+		metrics.setting("outputDirectory", options.getOutputDirectory());
+
+		database = new MosaicDatabase(dbFilePath, patchSize, options.getUseTilePack(), options.getCacheBytes(), metrics);
+		if (options.getSearchCandidates() > 0 && options.getQuantized()) {
+			database.getQuantizedIndex(metrics);
+		}
+		else if (options.getSearchCandidates() > 0) {
+			database.getIndex(metrics);
+		}
+	}
+
+	/**
+	 * Create every photomosaic. An image that fails is reported and skipped.
+	 * @return the number of photomosaics that could not be created
+	 * @throws IOException if interrupted while waiting for the photomosaics
+	 */
+	public int run() throws IOException {
+		final int total = claimOutputs();
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		java.util.List<Future<?>> futures = new ArrayList<Future<?>>();
+		final int[] finished = new int[1];
+		try {
+			for (Result result : results) {
+				if (result.error != null) {
+					System.err.println("[WARN] skipping " + result.input + ": " + result.error);
+					continue;
+				}
+				futures.add(pool.submit(() -> {
+					try {
+						result.metrics = new PhotoMosaic(result.input, width, database, options).getMetrics();
+					}
+					catch (IOException | RuntimeException e) {
+						result.error = String.valueOf(e.getMessage());
+					}
+					synchronized (finished) {
+						finished[0]++;
+						if (result.error == null) {
+							System.out.printf("[INFO] created %s in %.2fs (%d of %d)%n", result.output.getPath(), result.metrics.wallSeconds(), finished[0], total);
+						}
+						else {
+							System.err.printf("[WARN] unable to create a photomosaic of %s: %s (%d of %d)%n", result.input, result.error, finished[0], total);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while creating the photomosaics", e);
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		metrics.finish();
+		return failures();
+	}
+
+	/**
+	 * Create every photomosaic in order, as the frames of a sequence, one at
+	 * a time on options.getThreads() threads. Patches whose features have
+	 * changed by at most options.getReuseThreshold() since the last frame
+	 * keep its database images, so only the patches that changed are matched
+	 * again, and still parts of the picture don't flicker. A frame that fails
+	 * is reported and skipped, and the frame after it is compared against the
+	 * last one created.
+	 * @return the number of photomosaics that could not be created
+	 */
+	public int runSequence() {
+		metrics.setting("sequence", true);
+		metrics.setting("reuseThreshold", options.getReuseThreshold());
+		int total = claimOutputs();
+		MosaicFrame previous = null;
+		int finished = 0;
+		for (Result result : results) {
+			if (result.error != null) {
+				System.err.println("[WARN] skipping " + result.input + ": " + result.error);
+				continue;
+			}
+			try {
+				PhotoMosaic mosaic = new PhotoMosaic(result.input, width, database, options, previous);
+				result.metrics = mosaic.getMetrics();
+				previous = mosaic.getFrame();
+			}
+			catch (IOException | RuntimeException e) {
+				result.error = String.valueOf(e.getMessage());
+			}
+			finished++;
+			if (result.error == null) {
+				long patches = Math.max(result.metrics.get(RunMetrics.Counter.PATCHES), 1);
+				System.out.printf("[INFO] created %s in %.2fs, keeping %d%% of the previous frame's tiles (%d of %d)%n", result.output.getPath(),
+					result.metrics.wallSeconds(), result.metrics.get(RunMetrics.Counter.PATCHES_REUSED) * 100 / patches, finished, total);
+			}
+			else {
+				System.err.printf("[WARN] unable to create a photomosaic of %s: %s (%d of %d)%n", result.input, result.error, finished, total);
+			}
+		}
+		metrics.finish();
+		return failures();
+	}
+
+	/**
+	 * Work out every output up front, so that two inputs with the same name
+	 * can't overwrite each other's photomosaic. Inputs that would are given
+	 * an error.
+	 * @return the number of photomosaics that will actually be created
+	 */
+	private int claimOutputs() {
+		Map<File, String> claimed = new HashMap<File, String>();
+		for (String input : inputs) {
+			Result result = new Result(input, PhotoMosaic.outputFile(input, options));
+			String previous = claimed.putIfAbsent(result.output, input);
+			if (previous != null) {
+				result.error = "its photomosaic would overwrite the one for " + previous;
+			}
+			results.add(result);
+		}
+		return claimed.size();
+	}
+
+	/**
+	 * @return the number of photomosaics that could not be created
+	 */
+	private int failures() {
+		int failures = 0;
+		for (Result result : results) {
+			if (result.error != null) {
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return the timings and settings of the whole batch
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the outcome of every photomosaic, along with the batch's
+	 * timings, as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"completed\": ").append(results.size() - failures()).append(",\n");
+		sb.append("  \"failed\": ").append(failures()).append(",\n");
+		sb.append("  \"batch\": ").append(metrics.toJson().trim().replace("\n", "\n  ")).append(",\n");
+		sb.append("  \"images\": [");
+		String separator = "\n";
+		for (Result result : results) {
+			sb.append(separator).append("    {\n");
+			sb.append("      \"input\": ").append(RunMetrics.quote(result.input)).append(",\n");
+			sb.append("      \"output\": ").append(RunMetrics.quote(result.output.getPath())).append(",\n");
+			if (result.error != null) {
+				sb.append("      \"error\": ").append(RunMetrics.quote(result.error)).append("\n");
+			}
+			else {
+				sb.append("      \"run\": ").append(result.metrics.toJson().trim().replace("\n", "\n      ")).append("\n");
+			}
+			sb.append("    }");
+			separator = ",\n";
+		}
+		sb.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Write out the outcome of every photomosaic as a JSON file.
+	 * @param file the file to write
+	 * @throws IOException if the file could not be written
+	 */
+	public void writeReport(File file) throws IOException {
+		try (Writer out = new BufferedWriter(new FileWriter(file))) {
+			out.write(toJson());
+		}
+	}
+
+	/**
+	 * List the input images of a batch.
+	 * A directory gives every image file in it, by name. Any other file is
+	 * read as a manifest, with the path of one input image on each line;
+	 * blank lines and lines starting with # are ignored.
+	 * @param path a directory of images or a manifest file
+	 * @return the paths of the input images
+	 * @throws IllegalArgumentException if the directory or manifest could not be read
+	 */
+	public static java.util.List<String> listInputs(String path) throws IllegalArgumentException {
+		File file = new File(path);
+		java.util.List<String> inputs = new ArrayList<String>();
+		if (file.isDirectory()) {
+			Set<String> suffixes = new HashSet<String>();
+			for (String suffix : ImageIO.getReaderFileSuffixes()) {
+				suffixes.add(suffix.toLowerCase());
+			}
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File f : files) {
+				String name = f.getName();
+				int dot = name.lastIndexOf('.');
+				if (f.isFile() && dot > 0 && suffixes.contains(name.substring(dot + 1).toLowerCase())) {
+					inputs.add(f.getPath());
+				}
+			}
+			return inputs;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					inputs.add(line);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Error: unable to read: " + path);
+		}
+		return inputs;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A database of patch images loaded into memory, ready for any number of
+ * photomosaics to be created with it: the feature vectors, the nearest
+ * neighbour index over them and the pixels of the database images (either a
+ * tile pack or a cache of decoded images).
+ *
+ * Loading a large DB takes far longer than creating a photomosaic with it,
+ * so a long running process should load each DB once and share it. It is
+ * safe to use from several threads at once.
+ */
+public class MosaicDatabase {
+	/**
+	 * The path to the DB file.
+	 */
+	private String path;
+	/**
+	 * The database of patch images.
+	 */
+	private TileDatabase db;
+	/**
+	 * The square DB image width.
+	 */
+	private int patchSize;
+	/**
+	 * The nearest neighbour index over the database images' feature vectors,
+	 * or null if it hasn't been built yet.
+	 */
+	private TileIndex index;
+	/**
+	 * The index over the database images' product quantized codes, or null
+	 * if it hasn't been built yet.
+	 */
+	private TileIndex quantizedIndex;
+	/**
+	 * The decoded pixels of every database image, or null if the database
+	 * images should be read from their JPEG files.
+	 */
+	private TilePack tilePack;
+	/**
+	 * A cache for database image pixels read from their JPEG files.
+	 */
+	private TileCache cache;
+
+	/**
+	 * Load a DB.
+	 * @param dbFilePath the path to the binary DB file, DB csv file or segmented DB directory
+	 * @param patchSize the square DB image width
+	 * @param useTilePack whether to copy database images from the DB's tile pack, if it has one
+	 * @param cacheBytes the most bytes of decoded database images to keep in memory
+	 * @param metrics records how long the DB took to load
+	 * @throws IllegalArgumentException if the DB file doesn't exist, isn't valid, or holds DB images of another size
+	 */
+	public MosaicDatabase(String dbFilePath, int patchSize, boolean useTilePack, long cacheBytes, RunMetrics metrics) throws IllegalArgumentException {
+		this.path = dbFilePath;
+		this.patchSize = patchSize;
+
+		long start = System.nanoTime();
+		File dbFile = new File(dbFilePath);
+		if (!dbFile.exists()) {
+			throw new IllegalArgumentException(dbFilePath + " does not exist." + describeLevels(dbFile.getParentFile()));
+		}
+		SegmentedDatabase segments = null;
+		if (dbFile.isDirectory()) {
+			segments = new SegmentedDatabase(dbFile);
+			db = segments.load();
+		}
+		else {
+			db = TileDatabase.open(dbFilePath);
+		}
+
+		//
+		// A DB created for another patch size would otherwise only fail once
+		// its first database image is read. CSV files don't record the size.
+		//
+		int dbPatchSize = 0;
+		try {
+			if (segments != null) {
+				dbPatchSize = segments.getPatchSize();
+			}
+			else if (dbFilePath.endsWith(TileDatabaseFile.EXTENSION)) {
+				dbPatchSize = TileDatabaseFile.readPatchSize(dbFile);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Error: unable to read: " + dbFilePath + ": " + e.getMessage());
+		}
+		if (dbPatchSize != 0 && dbPatchSize != patchSize) {
+			throw new IllegalArgumentException(
+				dbFilePath + " holds " + dbPatchSize + "x" + dbPatchSize + " DB images, not " + patchSize + "x" + patchSize + "." + describeLevels(dbFile.getParentFile())
+			);
+		}
+		// Set up a cache for the pixels of each database image
+		cache = new TileCache(cacheBytes, this::readTile);
+		// Use the DB's tile pack instead, if it has one
+		if (useTilePack) {
+			tilePack = segments != null ? segments.openTilePack(patchSize) : openTilePack(TilePack.packPath(dbFilePath));
+		}
+		metrics.time(RunMetrics.Phase.DB_LOAD, start);
+		metrics.allocation("dbFeatures", (long) db.size() * db.getDimensions() * 4);
+		if (tilePack != null) {
+			metrics.allocation("tilePackMapped", (long) tilePack.size() * patchSize * patchSize * 4);
+		}
+	}
+
+	/**
+	 * @return the path to the DB file or segmented DB directory
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the database of patch images
+	 */
+	public TileDatabase getDatabase() {
+		return db;
+	}
+
+	/**
+	 * @return the square DB image width
+	 */
+	public int getPatchSize() {
+		return patchSize;
+	}
+
+	/**
+	 * Get the nearest neighbour index over the database images, building it
+	 * the first time it is needed.
+	 * @param metrics records how long the index took to build, if it is built now
+	 * @return the index
+	 */
+	public synchronized TileIndex getIndex(RunMetrics metrics) {
+		if (index == null) {
+			long start = System.nanoTime();
+			index = new KDTreeIndex(db.getInterleavedFeatures(), db.getDimensions());
+			metrics.time(RunMetrics.Phase.INDEX_BUILD, start);
+		}
+		return index;
+	}
+
+	/**
+	 * Get the index over the database images' product quantized codes,
+	 * building it the first time it is needed. A DB that wasn't quantized by
+	 * ProcessDB (e.g. a segmented or CSV DB) is quantized now.
+	 * @param metrics records how long the index took to build, if it is built now
+	 * @return the index
+	 */
+	public synchronized TileIndex getQuantizedIndex(RunMetrics metrics) {
+		if (quantizedIndex == null) {
+			long start = System.nanoTime();
+			if (db.getQuantizer() == null) {
+				System.out.println("[INFO] quantizing " + db.size() + " DB images: " + path);
+			}
+			quantizedIndex = new QuantizedIndex(db);
+			metrics.time(RunMetrics.Phase.INDEX_BUILD, start);
+			metrics.allocation("quantizedCodes", db.getCodes().length);
+		}
+		return quantizedIndex;
+	}
+
+	/**
+	 * @return the DB's tile pack, or null if database images are read from their JPEG files
+	 */
+	public TilePack getTilePack() {
+		return tilePack;
+	}
+
+	/**
+	 * @return the cache of database images read from their JPEG files
+	 */
+	public TileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Read in a database image's RGB values.
+	 * @param id the id of the database image
+	 * @return the packed RGB pixels of the database image
+	 * @throws IOException if the database image could not be read, or isn't patchSize by patchSize
+	 */
+	public int[] readTile(int id) throws IOException {
+		String path = db.getPath(id);
+		BufferedImage tile = ImageIO.read(new File(path));
+		if (tile == null || tile.getWidth() != patchSize || tile.getHeight() != patchSize) {
+			throw new IOException(path + " is not a " + patchSize + "x" + patchSize + " image.");
+		}
+		return tile.getRGB(0, 0, patchSize, patchSize, null, 0, patchSize);
+	}
+
+	/**
+	 * Open the tile pack that goes with the DB file, if there is one.
+	 * @param packPath the path to the tile pack
+	 * @return the tile pack, or null if there isn't a usable one
+	 */
+	private TilePack openTilePack(String packPath) {
+		if (!new File(packPath).exists()) {
+			return null;
+		}
+		try {
+			TilePack pack = new TilePack(new File(packPath), patchSize);
+			if (pack.size() != db.size()) {
+				System.err.println("[WARN] " + packPath + " has " + pack.size() + " DB images but the DB has " + db.size() + ". Ignoring it...");
+				return null;
+			}
+			return pack;
+		}
+		catch (IOException e) {
+			System.err.println("[WARN] unable to open tile pack: " + e.getMessage() + " Ignoring it...");
+			return null;
+		}
+	}
+
+	/**
+	 * List the patch sizes there are DBs for in a directory, e.g. those
+	 * created by one run of ProcessDB with several sizes.
+	 * @param dir the directory
+	 * @return a sentence listing the patch sizes, or "" if there are none
+	 */
+	private static String describeLevels(File dir) {
+		String[] names = dir != null ? dir.list() : null;
+		if (names == null) {
+			return "";
+		}
+		TreeSet<Integer> sizes = new TreeSet<Integer>();
+		Pattern dbName = Pattern.compile("db(\\d+)x\\1(\\.csv|" + Pattern.quote(TileDatabaseFile.EXTENSION) + "|" + Pattern.quote(SegmentedDatabase.EXTENSION) + ")");
+		for (String name : names) {
+			Matcher m = dbName.matcher(name);
+			if (m.matches()) {
+				sizes.add(Integer.parseInt(m.group(1)));
+			}
+		}
+		if (sizes.isEmpty()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(" " + dir.getPath() + " has DBs for patch sizes:");
+		for (int size : sizes) {
+			sb.append(" ").append(size);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Determine which DB to use for a patch size. A segmented DB is preferred,
+	 * since ProcessDB --segments only updates that, then the binary DB file,
+	 * since it loads much faster than the CSV file.
+	 * @param patchSize the square DB image width
+	 * @return the path to the DB file or segmented DB directory
+	 */
+	public static String defaultPath(int patchSize) {
+		String csvPath = "./db/db"+patchSize+"x"+patchSize+".csv";
+		String segmentsPath = SegmentedDatabase.segmentsPath(csvPath);
+		if (new File(segmentsPath).isDirectory()) {
+			return segmentsPath;
+		}
+		String binaryPath = TileDatabaseFile.binaryPath(csvPath);
+		return new File(binaryPath).exists() ? binaryPath : csvPath;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+/**
+ * Creates photomosaics in memory against a DB that is loaded once, for
+ * embedding in other programs. Images can be passed in as BufferedImages,
+ * packed RGB pixels, encoded bytes or streams, and nothing is read from or
+ * written to the filesystem apart from the DB's own files.
+ *
+ * It is safe to create several photomosaics at once from different threads.
+ * Each one runs on options.getThreads() threads of its own.
+ */
+public class MosaicEngine {
+	/**
+	 * The formats photomosaics can be encoded as.
+	 */
+	private static final String[] FORMATS = { "png", "jpg" };
+
+	/**
+	 * The loaded DB every photomosaic is created with.
+	 */
+	private MosaicDatabase database;
+
+	/**
+	 * Load a DB, copying database images from its tile pack if it has one.
+	 * @param dbFilePath the path to the binary DB file, DB csv file or segmented DB directory
+	 * @param patchSize the square DB image width
+	 * @throws IllegalArgumentException if the DB file doesn't exist or isn't valid
+	 */
+	public MosaicEngine(String dbFilePath, int patchSize) throws IllegalArgumentException {
+		this(dbFilePath, patchSize, true, MosaicOptions.DEFAULT_CACHE_MB * 1024L * 1024L);
+	}
+
+	/**
+	 * Load a DB.
+	 * @param dbFilePath the path to the binary DB file, DB csv file or segmented DB directory
+	 * @param patchSize the square DB image width
+	 * @param useTilePack whether to copy database images from the DB's tile pack, if it has one
+	 * @param cacheBytes the most bytes of decoded database images to keep in memory
+	 * @throws IllegalArgumentException if the DB file doesn't exist or isn't valid
+	 */
+	public MosaicEngine(String dbFilePath, int patchSize, boolean useTilePack, long cacheBytes) throws IllegalArgumentException {
+		this(new MosaicDatabase(dbFilePath, patchSize, useTilePack, cacheBytes, new RunMetrics("MosaicEngine")));
+	}
+
+	/**
+	 * Create photomosaics with a DB that has already been loaded.
+	 * @param database the loaded DB, which can be shared with other engines
+	 */
+	public MosaicEngine(MosaicDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * @return the loaded DB
+	 */
+	public MosaicDatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Create a photomosaic of an image.
+	 * @param image the image to create a photomosaic of
+	 * @param width the width to scale the image to
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @return the photomosaic, a width by width image
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if streaming is requested, since that needs a stream to write to
+	 */
+	public BufferedImage render(BufferedImage image, int width, MosaicOptions options) throws IOException, IllegalArgumentException {
+		return create(image, width, options).getImage();
+	}
+
+	/**
+	 * Create a photomosaic of an image's pixels.
+	 * @param pixels the packed RGB pixels of the image, in row major order
+	 * @param imageWidth the width of the image
+	 * @param imageHeight the height of the image
+	 * @param width the width to scale the image to
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @return the packed RGB pixels of the photomosaic, a width by width image
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if there aren't imageWidth * imageHeight pixels, or streaming is requested
+	 */
+	public int[] render(int[] pixels, int imageWidth, int imageHeight, int width, MosaicOptions options) throws IOException, IllegalArgumentException {
+		if (pixels.length != imageWidth * imageHeight) {
+			throw new IllegalArgumentException(pixels.length + " pixels were given for a " + imageWidth + "x" + imageHeight + " image.");
+		}
+		BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+		image.getRaster().setDataElements(0, 0, imageWidth, imageHeight, pixels);
+		// The photomosaic is always an int RGB image, so this doesn't copy
+		return PatchFeatures.pixels(render(image, width, options));
+	}
+
+	/**
+	 * Create a photomosaic of an encoded image.
+	 * @param image the encoded image, in any format ImageIO can read
+	 * @param width the width to scale the image to
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @param format the format to encode the photomosaic as: png or jpg
+	 * @return the encoded photomosaic
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if the image isn't valid, the format isn't supported, or streaming is requested as a jpg
+	 */
+	public byte[] render(byte[] image, int width, MosaicOptions options, String format) throws IOException, IllegalArgumentException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		render(new ByteArrayInputStream(image), width, options, format, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Create a photomosaic of an image read from a stream, and write it to
+	 * another. When streaming is requested, the photomosaic is written as a
+	 * PNG a strip at a time, so it never has to fit in memory.
+	 * @param in the stream to read the image from, in any format ImageIO can read
+	 * @param width the width to scale the image to
+	 * @param options the unique box size, search, threading and streaming settings; the tile pack and cache settings are the DB's
+	 * @param format the format to encode the photomosaic as: png or jpg
+	 * @param out the stream to write the photomosaic to, which is left open
+	 * @return the timings and counts of the run that created the photomosaic
+	 * @throws IOException if the image could not be read, a database image could not be read, the photomosaic could not be written, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if the image isn't valid, the format isn't supported, or streaming is requested as a jpg or with previews
+	 */
+	public RunMetrics render(InputStream in, int width, MosaicOptions options, String format, OutputStream out) throws IOException, IllegalArgumentException {
+		checkFormat(format);
+		if (options.getStreaming() && !format.equals("png")) {
+			throw new IllegalArgumentException("A streamed photomosaic can only be written as a png.");
+		}
+
+		BufferedImage image = ImageIO.read(in);
+		if (image == null) {
+			throw new IllegalArgumentException("The input is not a valid image.");
+		}
+
+		PhotoMosaic mosaic;
+		if (options.getStreaming()) {
+			mosaic = new PhotoMosaic(image, width, database, options, out);
+		}
+		else {
+			mosaic = create(image, width, options);
+			if (!ImageIO.write(mosaic.getImage(), format, out)) {
+				throw new IOException("No writer for " + format + " images.");
+			}
+		}
+		return mosaic.getMetrics();
+	}
+
+	/**
+	 * Create a photomosaic of an image, along with the timings and counts of
+	 * its run.
+	 * @param image the image to create a photomosaic of
+	 * @param width the width to scale the image to
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @return the photomosaic; see getImage() and getMetrics()
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if streaming is requested, since that needs a stream to write to
+	 */
+	public PhotoMosaic create(BufferedImage image, int width, MosaicOptions options) throws IOException, IllegalArgumentException {
+		return create(image, width, options, null);
+	}
+
+	/**
+	 * Create a photomosaic of an image as the next frame of a sequence, where
+	 * patches that have barely changed keep the previous frame's database
+	 * images. Pass each frame's getFrame() to the next.
+	 * @param image the frame to create a photomosaic of
+	 * @param width the width to scale the frame to
+	 * @param options the unique box size, search, threading and reuse settings; the tile pack and cache settings are the DB's
+	 * @param previousFrame the previous frame's getFrame(), or null to match every patch
+	 * @return the photomosaic; see getImage(), getFrame() and getMetrics()
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if streaming is requested, since that needs a stream to write to
+	 */
+	public PhotoMosaic create(BufferedImage image, int width, MosaicOptions options, MosaicFrame previousFrame) throws IOException, IllegalArgumentException {
+		if (width < database.getPatchSize()) {
+			throw new IllegalArgumentException("The width must be at least the patch size, " + database.getPatchSize() + ".");
+		}
+		return new PhotoMosaic(image, width, database, options, previousFrame);
+	}
+
+	/**
+	 * @param format the format to encode a photomosaic as
+	 * @throws IllegalArgumentException if the format isn't supported
+	 */
+	private static void checkFormat(String format) throws IllegalArgumentException {
+		for (String supported : FORMATS) {
+			if (supported.equals(format)) {
+				return;
+			}
+		}
+		throw new IllegalArgumentException("The format must be png or jpg, not " + format + ".");
+	}
+}
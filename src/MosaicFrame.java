@@ -0,0 +1,119 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * The database image placed on each patch of a photomosaic, along with the
+ * features of the patch it was matched for. Passing it to the photomosaic of
+ * the next frame of a sequence lets patches that have barely changed keep
+ * their database image instead of being matched again, which is faster and
+ * stops still parts of the picture from flickering between similar tiles.
+ *
+ * A patch that keeps its database image also keeps the features it was
+ * matched for, rather than taking on the new frame's, so a patch that
+ * changes slowly over many frames is still matched again once it has changed
+ * by more than the threshold in total.
+ */
+public class MosaicFrame {
+	/**
+	 * The database the database images were placed from.
+	 */
+	private TileDatabase db;
+	/**
+	 * The number of patches across the photomosaic.
+	 */
+	private int columns;
+	/**
+	 * The number of patches down the photomosaic.
+	 */
+	private int rows;
+	/**
+	 * The feature vector each patch's database image was matched for, one
+	 * after the other in row major order.
+	 */
+	private float[] features;
+	/**
+	 * The id of the database image placed on each patch, in row major order.
+	 */
+	private int[] tiles;
+
+	/**
+	 * Record the database images placed on a photomosaic.
+	 * @param db the database the database images were placed from
+	 * @param columns the number of patches across the photomosaic
+	 * @param rows the number of patches down the photomosaic
+	 * @param features the feature vector each patch's database image was matched for, in row major order
+	 * @param tiles the id of the database image placed on each patch, in row major order
+	 * @throws IllegalArgumentException if there isn't a feature vector and a database image for every patch
+	 */
+	public MosaicFrame(TileDatabase db, int columns, int rows, float[] features, int[] tiles) throws IllegalArgumentException {
+		if (tiles.length != columns * rows || features.length != tiles.length * db.getDimensions()) {
+			throw new IllegalArgumentException("Expected a feature vector and a database image for each of " + columns + "x" + rows + " patches.");
+		}
+		this.db = db;
+		this.columns = columns;
+		this.rows = rows;
+		this.features = features;
+		this.tiles = tiles;
+	}
+
+	/**
+	 * @param db the database the next frame is placed from
+	 * @param columns the number of patches across the next frame
+	 * @param rows the number of patches down the next frame
+	 * @return whether the next frame can keep this frame's database images, which needs the same database and number of patches
+	 */
+	public boolean fits(TileDatabase db, int columns, int rows) {
+		return this.db == db && this.columns == columns && this.rows == rows;
+	}
+
+	/**
+	 * Decide whether a patch of the next frame can keep the database image
+	 * placed on it in this frame. If it can, the features it was matched for
+	 * are copied over the patch's features.
+	 * @param x the x coordinate of the patch in "patch space"
+	 * @param y the y coordinate of the patch in "patch space"
+	 * @param patchFeatures the array holding the patch's feature vector in the next frame
+	 * @param offset the position of the patch's feature vector
+	 * @param threshold the largest root mean square difference between the feature values for the patch to keep its database image
+	 * @return the id of the database image to keep, or PlacedTiles.EMPTY if the patch has to be matched again
+	 */
+	public int reuse(int x, int y, float[] patchFeatures, int offset, float threshold) {
+		int dimensions = db.getDimensions();
+		int patch = y*columns + x;
+		float limit = threshold * threshold * dimensions;
+		float distance = 0;
+		for (int d = 0; d < dimensions; d++) {
+			float diff = patchFeatures[offset + d] - features[patch*dimensions + d];
+			distance += diff*diff;
+		}
+		if (distance > limit) {
+			return PlacedTiles.EMPTY;
+		}
+		System.arraycopy(features, patch*dimensions, patchFeatures, offset, dimensions);
+		return tiles[patch];
+	}
+
+	/**
+	 * @return the number of patches across the photomosaic
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of patches down the photomosaic
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the id of the database image placed on each patch, in row major order
+	 */
+	public int[] getTiles() {
+		return tiles;
+	}
+}
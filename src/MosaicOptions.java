@@ -0,0 +1,345 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * The tunable settings used when creating a photomosaic.
+ * Each setter returns this object so settings can be chained.
+ */
+public class MosaicOptions {
+	/**
+	 * The default size of the database image cache, in megabytes.
+	 */
+	public static final int DEFAULT_CACHE_MB = 256;
+	/**
+	 * The default largest root mean square change in a patch's features for
+	 * it to keep the previous frame's database image.
+	 */
+	public static final float DEFAULT_REUSE_THRESHOLD = 4;
+	/**
+	 * The most coarse previews that can be asked for. The first preview's
+	 * tiles are 2^previews times the patch size, which has to fit in an int.
+	 */
+	public static final int MAX_PREVIEWS = 30;
+	/**
+	 * The box size to use in searching for duplicate patches.
+	 */
+	private int uniqueBox = PhotoMosaic.DEFAULT_UNIQUE_BOX;
+	/**
+	 * The number of closest database images to consider for each patch, or 0
+	 * to check every database image.
+	 */
+	private int searchCandidates = PhotoMosaic.DEFAULT_SEARCH_CANDIDATES;
+	/**
+	 * Whether to find the candidates for each patch by scanning the DB's
+	 * product quantized codes rather than searching the k-d tree.
+	 */
+	private boolean quantized = false;
+	/**
+	 * The number of threads used to match patches.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Whether to copy database images from the DB's tile pack, if it has one.
+	 */
+	private boolean useTilePack = true;
+	/**
+	 * The most bytes of decoded database images to keep in memory.
+	 */
+	private long cacheBytes = DEFAULT_CACHE_MB * 1024L * 1024L;
+	/**
+	 * Whether to create the photomosaic a strip at a time, writing it to a
+	 * PNG file as it goes.
+	 */
+	private boolean streaming = false;
+	/**
+	 * The filter used to scale the input image.
+	 */
+	private Resampler.Filter scaleFilter = Resampler.Filter.AREA;
+	/**
+	 * The file to write a JSON report of the run's timings to, or null.
+	 */
+	private String reportFile = null;
+	/**
+	 * Whether to print how far through the photomosaic we are. Only the
+	 * PhotoMosaic program turns this on, for a single photomosaic.
+	 */
+	private boolean showProgress = false;
+	/**
+	 * The directory the photomosaic and scaled input image are written to.
+	 */
+	private String outputDirectory = ".";
+	/**
+	 * Whether to write the scaled input image out alongside a photomosaic
+	 * created from a file.
+	 */
+	private boolean writeScaledInput = true;
+	/**
+	 * The number of coarse previews to create before the photomosaic, each
+	 * with tiles half the size of the one before.
+	 */
+	private int previews = 0;
+	/**
+	 * Called with each preview and the finished photomosaic, or null.
+	 */
+	private PhotoMosaic.PreviewListener previewListener = null;
+	/**
+	 * The largest root mean square change in a patch's features, in the DB's
+	 * colour space, for it to keep the previous frame's database image.
+	 */
+	private float reuseThreshold = DEFAULT_REUSE_THRESHOLD;
+
+	/**
+	 * @return the box size to use when searching for duplicates
+	 */
+	public int getUniqueBox() {
+		return uniqueBox;
+	}
+
+	/**
+	 * @param uniqueBox the box size to use when searching for duplicates
+	 * @return these options
+	 */
+	public MosaicOptions setUniqueBox(int uniqueBox) {
+		this.uniqueBox = uniqueBox;
+		return this;
+	}
+
+	/**
+	 * @return the number of closest database images to consider for each patch, or 0 to check every database image
+	 */
+	public int getSearchCandidates() {
+		return searchCandidates;
+	}
+
+	/**
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 * @return these options
+	 */
+	public MosaicOptions setSearchCandidates(int searchCandidates) {
+		this.searchCandidates = searchCandidates;
+		return this;
+	}
+
+	/**
+	 * @return whether to find the candidates for each patch by scanning the DB's product quantized codes rather than searching the k-d tree
+	 */
+	public boolean getQuantized() {
+		return quantized;
+	}
+
+	/**
+	 * @param quantized whether to find the candidates for each patch by scanning the DB's product quantized codes rather than searching the k-d tree
+	 * @return these options
+	 */
+	public MosaicOptions setQuantized(boolean quantized) {
+		this.quantized = quantized;
+		return this;
+	}
+
+	/**
+	 * @return the number of threads used to match patches
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads the number of threads used to match patches
+	 * @return these options
+	 * @throws IllegalArgumentException if the number of threads isn't positive
+	 */
+	public MosaicOptions setThreads(int threads) throws IllegalArgumentException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1.");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @return whether to copy database images from the DB's tile pack, if it has one
+	 */
+	public boolean getUseTilePack() {
+		return useTilePack;
+	}
+
+	/**
+	 * @param useTilePack whether to copy database images from the DB's tile pack, if it has one
+	 * @return these options
+	 */
+	public MosaicOptions setUseTilePack(boolean useTilePack) {
+		this.useTilePack = useTilePack;
+		return this;
+	}
+
+	/**
+	 * @return the most bytes of decoded database images to keep in memory
+	 */
+	public long getCacheBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * @param cacheBytes the most bytes of decoded database images to keep in memory
+	 * @return these options
+	 */
+	public MosaicOptions setCacheBytes(long cacheBytes) {
+		this.cacheBytes = cacheBytes;
+		return this;
+	}
+
+	/**
+	 * @return whether to create the photomosaic a strip at a time, writing it to a PNG file as it goes
+	 */
+	public boolean getStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * @param streaming whether to create the photomosaic a strip at a time, writing it to a PNG file as it goes
+	 * @return these options
+	 */
+	public MosaicOptions setStreaming(boolean streaming) {
+		this.streaming = streaming;
+		return this;
+	}
+
+	/**
+	 * @return the filter used to scale the input image
+	 */
+	public Resampler.Filter getScaleFilter() {
+		return scaleFilter;
+	}
+
+	/**
+	 * @param scaleFilter the filter used to scale the input image
+	 * @return these options
+	 */
+	public MosaicOptions setScaleFilter(Resampler.Filter scaleFilter) {
+		this.scaleFilter = scaleFilter;
+		return this;
+	}
+
+	/**
+	 * @return the file to write a JSON report of the run's timings to, or null
+	 */
+	public String getReportFile() {
+		return reportFile;
+	}
+
+	/**
+	 * @param reportFile the file to write a JSON report of the run's timings to, or null
+	 * @return these options
+	 */
+	public MosaicOptions setReportFile(String reportFile) {
+		this.reportFile = reportFile;
+		return this;
+	}
+
+	/**
+	 * @return whether to print how far through the photomosaic we are
+	 */
+	public boolean getShowProgress() {
+		return showProgress;
+	}
+
+	/**
+	 * @param showProgress whether to print how far through the photomosaic we are
+	 * @return these options
+	 */
+	public MosaicOptions setShowProgress(boolean showProgress) {
+		this.showProgress = showProgress;
+		return this;
+	}
+
+	/**
+	 * @return the directory the photomosaic and scaled input image are written to
+	 */
+	public String getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	/**
+	 * @param outputDirectory the directory the photomosaic and scaled input image are written to
+	 * @return these options
+	 */
+	public MosaicOptions setOutputDirectory(String outputDirectory) {
+		this.outputDirectory = outputDirectory;
+		return this;
+	}
+
+	/**
+	 * @return whether to write the scaled input image out alongside a photomosaic created from a file
+	 */
+	public boolean getWriteScaledInput() {
+		return writeScaledInput;
+	}
+
+	/**
+	 * @param writeScaledInput whether to write the scaled input image out alongside a photomosaic created from a file
+	 * @return these options
+	 */
+	public MosaicOptions setWriteScaledInput(boolean writeScaledInput) {
+		this.writeScaledInput = writeScaledInput;
+		return this;
+	}
+
+	/**
+	 * @return the number of coarse previews to create before the photomosaic
+	 */
+	public int getPreviews() {
+		return previews;
+	}
+
+	/**
+	 * @param previews the number of coarse previews to create before the photomosaic, each with tiles half the size of the one before; the first has tiles 2^previews times the patch size
+	 * @return these options
+	 * @throws IllegalArgumentException if the number of previews is negative or more than MAX_PREVIEWS
+	 */
+	public MosaicOptions setPreviews(int previews) throws IllegalArgumentException {
+		if (previews < 0 || previews > MAX_PREVIEWS) {
+			throw new IllegalArgumentException("The number of previews must be from 0 to " + MAX_PREVIEWS + ".");
+		}
+		this.previews = previews;
+		return this;
+	}
+
+	/**
+	 * @return the listener called with each preview and the finished photomosaic, or null
+	 */
+	public PhotoMosaic.PreviewListener getPreviewListener() {
+		return previewListener;
+	}
+
+	/**
+	 * @param previewListener the listener called with each preview and the finished photomosaic, or null
+	 * @return these options
+	 */
+	public MosaicOptions setPreviewListener(PhotoMosaic.PreviewListener previewListener) {
+		this.previewListener = previewListener;
+		return this;
+	}
+
+	/**
+	 * @return the largest root mean square change in a patch's features for it to keep the previous frame's database image
+	 */
+	public float getReuseThreshold() {
+		return reuseThreshold;
+	}
+
+	/**
+	 * @param reuseThreshold the largest root mean square change in a patch's features, in the DB's colour space, for it to keep the previous frame's database image; 0 only keeps it for patches that haven't changed at all
+	 * @return these options
+	 * @throws IllegalArgumentException if the threshold is negative
+	 */
+	public MosaicOptions setReuseThreshold(float reuseThreshold) throws IllegalArgumentException {
+		if (reuseThreshold < 0) {
+			throw new IllegalArgumentException("The reuse threshold can't be negative.");
+		}
+		this.reuseThreshold = reuseThreshold;
+		return this;
+	}
+}
@@ -0,0 +1,484 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import com.sun.net.httpserver.*;
+
+/**
+ * Creates photomosaics over HTTP, keeping the DBs loaded between requests.
+ *
+ * Each DB (its feature vectors, index and tile pack or tile cache) is loaded
+ * once at startup and shared by every request, so a request only pays for
+ * creating its photomosaic. Requests are created on a fixed number of
+ * workers; once every worker is busy, up to a set number of requests wait in
+ * a queue, and any more are turned away with 503 Service Unavailable.
+ *
+ * POST /render?width=N[&amp;patch=N][&amp;unique=N][&amp;candidates=N][&amp;exact][&amp;quantized][&amp;lanczos][&amp;threads=N][&amp;format=png|jpg]
+ * with an image as the body responds with its photomosaic. unique can be at
+ * most 255, candidates at most 1024, threads at most the server's --threads
+ * and width at most its --max-width; anything outside these gets 400 Bad
+ * Request. Images over 64MB or 50 megapixels get 413 Payload Too Large, and
+ * a request that runs out of memory gets 500. GET /status
+ * responds with the loaded DBs and the state of the queue as JSON.
+ */
+public class MosaicServer {
+	/**
+	 * The default port to listen on.
+	 */
+	public static final int DEFAULT_PORT = 8450;
+	/**
+	 * The default number of requests that can wait for a worker.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+	/**
+	 * The default largest photomosaic width that can be asked for. The
+	 * photomosaic is held in memory while it is created, so this is 64MB of
+	 * pixels for each worker.
+	 */
+	public static final int DEFAULT_MAX_WIDTH = 4096;
+	/**
+	 * The largest image, in bytes, that can be sent to be made into a photomosaic.
+	 */
+	private static final int MAX_UPLOAD_BYTES = 64 * 1024 * 1024;
+	/**
+	 * The most pixels an uploaded image can have. The whole image is decoded
+	 * before it is scaled, so a small file that claims to be huge is turned
+	 * away before it is decoded.
+	 */
+	private static final long MAX_UPLOAD_PIXELS = 50 * 1000 * 1000;
+	/**
+	 * The most search candidates a request can ask for. Every patch looks up
+	 * and scores this many candidates.
+	 */
+	private static final int MAX_SEARCH_CANDIDATES = 1024;
+	/**
+	 * The largest uniqueBox a request can ask for.
+	 */
+	private static final int MAX_UNIQUE_BOX = 255;
+	/**
+	 * The number of HTTP threads beyond those needed for the workers and the
+	 * queue, so that status requests and rejections are answered straight
+	 * away even when the queue is full.
+	 */
+	private static final int SPARE_HTTP_THREADS = 4;
+
+	/**
+	 * The loaded DBs, keyed by their patch size.
+	 */
+	private Map<Integer, MosaicDatabase> databases;
+	/**
+	 * The number of threads each photomosaic is created on.
+	 */
+	private int renderThreads;
+	/**
+	 * The largest photomosaic width that can be asked for.
+	 */
+	private int maxWidth;
+	/**
+	 * Creates the photomosaics, with a bounded queue of waiting requests.
+	 */
+	private ThreadPoolExecutor workers;
+	/**
+	 * Runs the HTTP handlers, which wait on the workers.
+	 */
+	private ExecutorService httpThreads;
+	/**
+	 * The HTTP server.
+	 */
+	private HttpServer server;
+	/**
+	 * The number of photomosaics created.
+	 */
+	private AtomicLong completed = new AtomicLong();
+	/**
+	 * The number of requests that failed.
+	 */
+	private AtomicLong failed = new AtomicLong();
+	/**
+	 * The number of requests turned away because the queue was full.
+	 */
+	private AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Start serving photomosaics.
+	 * @param port the port to listen on
+	 * @param databases the loaded DBs, keyed by their patch size
+	 * @param workerCount the number of photomosaics to create at once
+	 * @param queueSize the number of requests that can wait for a worker
+	 * @param renderThreads the number of threads each photomosaic is created on
+	 * @param maxWidth the largest photomosaic width that can be asked for
+	 * @throws IOException if the server could not listen on the port
+	 * @throws IllegalArgumentException if there are no DBs, or the worker, queue, thread counts or largest width aren't positive
+	 */
+	public MosaicServer(int port, Map<Integer, MosaicDatabase> databases, int workerCount, int queueSize, int renderThreads, int maxWidth) throws IOException, IllegalArgumentException {
+		if (databases.isEmpty()) {
+			throw new IllegalArgumentException("At least one DB is needed.");
+		}
+		if (workerCount < 1 || queueSize < 1 || renderThreads < 1) {
+			throw new IllegalArgumentException("The number of workers, queue size and number of threads must be at least 1.");
+		}
+		if (maxWidth < 1) {
+			throw new IllegalArgumentException("The largest photomosaic width must be at least 1.");
+		}
+		this.databases = databases;
+		this.renderThreads = renderThreads;
+		this.maxWidth = maxWidth;
+
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+		httpThreads = Executors.newFixedThreadPool(workerCount + queueSize + SPARE_HTTP_THREADS);
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/render", this::handleRender);
+		server.createContext("/status", this::handleStatus);
+		server.setExecutor(httpThreads);
+		server.start();
+	}
+
+	/**
+	 * Stop accepting requests, waiting a little for the ones being created to finish.
+	 */
+	public void stop() {
+		server.stop(1);
+		workers.shutdownNow();
+		httpThreads.shutdownNow();
+	}
+
+	/**
+	 * Create a photomosaic of the image in the request body.
+	 * @param exchange the HTTP request and response
+	 * @throws IOException if the response could not be sent
+	 */
+	private void handleRender(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				respond(exchange, 405, "POST an image to create a photomosaic of it.");
+				return;
+			}
+			CommandLine query = new CommandLine(queryArgs(exchange.getRequestURI().getRawQuery()));
+			byte[] body = readBody(exchange.getRequestBody());
+			if (body == null) {
+				respond(exchange, 413, "Images can be at most " + MAX_UPLOAD_BYTES / (1024 * 1024) + "MB.");
+				return;
+			}
+			if (pixelCount(body) > MAX_UPLOAD_PIXELS) {
+				respond(exchange, 413, "Images can have at most " + MAX_UPLOAD_PIXELS / (1000 * 1000) + " megapixels.");
+				return;
+			}
+
+			Future<Rendered> result;
+			try {
+				result = workers.submit(() -> render(body, query));
+			}
+			catch (RejectedExecutionException e) {
+				rejected.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "Too many photomosaics are waiting to be created. Try again later.");
+				return;
+			}
+
+			try {
+				Rendered rendered = result.get();
+				completed.incrementAndGet();
+				exchange.getResponseHeaders().set("Content-Type", "image/" + (rendered.format.equals("jpg") ? "jpeg" : rendered.format));
+				exchange.getResponseHeaders().set("X-Render-Seconds", String.format(Locale.ROOT, "%.3f", rendered.metrics.wallSeconds()));
+				exchange.sendResponseHeaders(200, rendered.bytes.length);
+				exchange.getResponseBody().write(rendered.bytes);
+				System.out.println("[INFO] created a photomosaic: " + rendered.metrics.getSummary());
+			}
+			catch (ExecutionException e) {
+				failed.incrementAndGet();
+				if (e.getCause() instanceof IllegalArgumentException) {
+					respond(exchange, 400, e.getCause().getMessage());
+				}
+				else {
+					System.err.println("[WARN] unable to create a photomosaic: " + e.getCause());
+					respond(exchange, 500, "Unable to create the photomosaic: " + e.getCause().getMessage());
+				}
+			}
+			catch (InterruptedException e) {
+				result.cancel(true);
+				Thread.currentThread().interrupt();
+				respond(exchange, 503, "The server is shutting down.");
+			}
+		}
+		catch (IllegalArgumentException e) {
+			respond(exchange, 400, e.getMessage());
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Describe the loaded DBs and the state of the queue as JSON.
+	 * @param exchange the HTTP request and response
+	 * @throws IOException if the response could not be sent
+	 */
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder("{\n  \"databases\": [");
+			String separator = "\n";
+			for (MosaicDatabase database : databases.values()) {
+				sb.append(separator).append("    { \"patchSize\": ").append(database.getPatchSize())
+					.append(", \"path\": ").append(RunMetrics.quote(database.getPath()))
+					.append(", \"images\": ").append(database.getDatabase().size())
+					.append(", \"colourSpace\": ").append(RunMetrics.quote(database.getDatabase().getColourSpace().name()))
+					.append(", \"tilePack\": ").append(database.getTilePack() != null)
+					.append(", \"tileCache\": ").append(RunMetrics.quote(database.getCache().getStats())).append(" }");
+				separator = ",\n";
+			}
+			sb.append("\n  ],\n");
+			sb.append("  \"workers\": ").append(workers.getMaximumPoolSize()).append(",\n");
+			sb.append("  \"active\": ").append(workers.getActiveCount()).append(",\n");
+			sb.append("  \"queued\": ").append(workers.getQueue().size()).append(",\n");
+			sb.append("  \"queueSize\": ").append(workers.getQueue().size() + workers.getQueue().remainingCapacity()).append(",\n");
+			sb.append("  \"completed\": ").append(completed.get()).append(",\n");
+			sb.append("  \"failed\": ").append(failed.get()).append(",\n");
+			sb.append("  \"rejected\": ").append(rejected.get()).append("\n");
+			sb.append("}\n");
+
+			byte[] bytes = sb.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, bytes.length);
+			exchange.getResponseBody().write(bytes);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * A photomosaic, encoded and ready to send.
+	 */
+	private static class Rendered {
+		/**
+		 * The encoded photomosaic.
+		 */
+		byte[] bytes;
+		/**
+		 * The image format the photomosaic is encoded in.
+		 */
+		String format;
+		/**
+		 * The timings and counts of creating the photomosaic.
+		 */
+		RunMetrics metrics;
+
+		Rendered(byte[] bytes, String format, RunMetrics metrics) {
+			this.bytes = bytes;
+			this.format = format;
+			this.metrics = metrics;
+		}
+	}
+
+	/**
+	 * Create a photomosaic of an encoded image. This runs on a worker.
+	 * @param body the encoded image
+	 * @param query the request's settings
+	 * @return the encoded photomosaic
+	 * @throws IOException if a database image could not be read or the photomosaic could not be encoded
+	 * @throws IllegalArgumentException if the image or settings aren't valid
+	 */
+	private Rendered render(byte[] body, CommandLine query) throws IOException, IllegalArgumentException {
+		MosaicDatabase database = chooseDatabase(query);
+		int width = boundedInt(query, "width", -1, database.getPatchSize(), maxWidth);
+		int uniqueBox = boundedInt(query, "unique", PhotoMosaic.DEFAULT_UNIQUE_BOX, 0, MAX_UNIQUE_BOX);
+		int threads = boundedInt(query, "threads", renderThreads, 1, renderThreads);
+		//
+		// A DB smaller than the limit can't give more candidates than it has
+		// images, so the limit is lowered to its size rather than rejecting.
+		//
+		int candidates = 0;
+		if (!query.has("exact")) {
+			candidates = boundedInt(query, "candidates", PhotoMosaic.DEFAULT_SEARCH_CANDIDATES, 1, MAX_SEARCH_CANDIDATES);
+			candidates = Math.min(candidates, database.getDatabase().size());
+		}
+		String format = query.get("format", "png");
+		if (!format.equals("png") && !format.equals("jpg")) {
+			throw new IllegalArgumentException("format must be png or jpg.");
+		}
+		MosaicOptions options = new MosaicOptions()
+			.setUniqueBox(uniqueBox)
+			.setSearchCandidates(candidates)
+			.setQuantized(query.has("quantized"))
+			.setThreads(threads)
+			.setScaleFilter(query.has("lanczos") ? Resampler.Filter.LANCZOS : Resampler.Filter.AREA);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RunMetrics metrics = new MosaicEngine(database).render(new ByteArrayInputStream(body), width, options, format, out);
+		return new Rendered(out.toByteArray(), format, metrics);
+	}
+
+	/**
+	 * @param query the request's settings
+	 * @param name the name of the setting
+	 * @param defaultValue the value to use if the request didn't give the setting
+	 * @param min the smallest value allowed
+	 * @param max the largest value allowed
+	 * @return the value of the setting
+	 * @throws IllegalArgumentException if the value is not between min and max
+	 */
+	private static int boundedInt(CommandLine query, String name, int defaultValue, int min, int max) throws IllegalArgumentException {
+		int value = query.getInt(name, defaultValue);
+		if (value < min || value > max) {
+			throw new IllegalArgumentException(name + " must be between " + min + " and " + max + ".");
+		}
+		return value;
+	}
+
+	/**
+	 * @param query the request's settings
+	 * @return the DB the request asked for, or the only DB if it didn't ask
+	 * @throws IllegalArgumentException if the request didn't say which DB to use and there is more than one, or there isn't a DB for the patch size
+	 */
+	private MosaicDatabase chooseDatabase(CommandLine query) throws IllegalArgumentException {
+		if (!query.has("patch")) {
+			if (databases.size() > 1) {
+				throw new IllegalArgumentException("patch is needed to choose between the DBs for patch sizes " + databases.keySet() + ".");
+			}
+			return databases.values().iterator().next();
+		}
+		MosaicDatabase database = databases.get(query.getInt("patch", 0));
+		if (database == null) {
+			throw new IllegalArgumentException("There is no DB for patch size " + query.get("patch", "") + ".");
+		}
+		return database;
+	}
+
+	/**
+	 * Turn a query string into command line style options, so it can be
+	 * read with CommandLine: "width=512&amp;exact" becomes "--width=512 --exact".
+	 * @param rawQuery the URL encoded query string, or null
+	 * @return the options
+	 */
+	private static String[] queryArgs(String rawQuery) {
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return new String[0];
+		}
+		String[] params = rawQuery.split("&");
+		String[] args = new String[params.length];
+		for (int i = 0; i < params.length; i++) {
+			args[i] = "--" + URLDecoder.decode(params[i], java.nio.charset.StandardCharsets.UTF_8);
+		}
+		return args;
+	}
+
+	/**
+	 * Read a request body.
+	 * @param in the request body
+	 * @return the bytes of the request body, or null if it is too large
+	 * @throws IOException if the request body could not be read
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		byte[] body = in.readNBytes(MAX_UPLOAD_BYTES + 1);
+		return body.length > MAX_UPLOAD_BYTES ? null : body;
+	}
+
+	/**
+	 * Read the size of an encoded image from its header, without decoding it.
+	 * @param body the encoded image
+	 * @return the number of pixels in the image, or -1 if it isn't an image that can be read
+	 */
+	private static long pixelCount(byte[] body) {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(body))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return -1;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return (long) reader.getWidth(0) * reader.getHeight(0);
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		catch (IOException e) {
+			// Creating the photomosaic reports why it can't be read
+			return -1;
+		}
+	}
+
+	/**
+	 * Send a plain text response.
+	 * @param exchange the HTTP request and response
+	 * @param status the HTTP status code
+	 * @param message the response body
+	 * @throws IOException if the response could not be sent
+	 */
+	private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = (message + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	/**
+	 * Load the DBs for the given patch sizes and serve photomosaics made
+	 * with them until killed.
+	 * @param args the patch sizes of the DBs to load, and options
+	 */
+	public static void main(String[] args) {
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.isEmpty()) {
+			System.err.println("Usage: java MosaicServer <patch size for DB images>... [options]");
+			System.err.println("e.g. java MosaicServer 8 16 --port=8450");
+			System.err.println("Options:");
+			System.err.println("\t--port=N        listen on port N (default: " + DEFAULT_PORT + ")");
+			System.err.println("\t--workers=N     create N photomosaics at once (default: number of cores)");
+			System.err.println("\t--queue=N       let N more requests wait for a worker before turning them away (default: " + DEFAULT_QUEUE_SIZE + ")");
+			System.err.println("\t--threads=N     create each photomosaic on N threads (default: 1)");
+			System.err.println("\t--max-width=N   turn away requests for photomosaics wider than N pixels (default: " + DEFAULT_MAX_WIDTH + ")");
+			System.err.println("\t--no-pack       read DB images from their JPEG files even if the DB has a tile pack");
+			System.err.println("\t--cache-mb=N    keep at most N MB of decoded DB images in memory for each DB (default: " + MosaicOptions.DEFAULT_CACHE_MB + ")");
+			System.err.println("\t--quantized     also load each DB's compressed features at startup, for requests with &quantized");
+			System.err.println("Then POST an image to /render?width=N[&patch=N][&unique=N][&candidates=N][&exact][&quantized][&lanczos][&threads=N][&format=png|jpg]");
+			System.exit(1);
+		}
+
+		try {
+			//
+			// Load every DB up front, including its index, so that no
+			// request has to wait for it
+			//
+			Map<Integer, MosaicDatabase> databases = new LinkedHashMap<Integer, MosaicDatabase>();
+			for (String size : positional) {
+				int patchSize = Integer.parseInt(size);
+				RunMetrics metrics = new RunMetrics("MosaicServer");
+				MosaicDatabase database = new MosaicDatabase(
+					MosaicDatabase.defaultPath(patchSize), patchSize, !cmd.has("no-pack"),
+					cmd.getInt("cache-mb", MosaicOptions.DEFAULT_CACHE_MB) * 1024L * 1024L, metrics
+				);
+				database.getIndex(metrics);
+				if (cmd.has("quantized")) {
+					database.getQuantizedIndex(metrics);
+				}
+				databases.put(patchSize, database);
+				System.out.println("[INFO] loaded " + database.getDatabase().size() + " DB images from " + database.getPath() + ": " + metrics.getSummary());
+			}
+
+			int port = cmd.getInt("port", DEFAULT_PORT);
+			MosaicServer server = new MosaicServer(
+				port, databases, cmd.getInt("workers", Runtime.getRuntime().availableProcessors()),
+				cmd.getInt("queue", DEFAULT_QUEUE_SIZE), cmd.getInt("threads", 1), cmd.getInt("max-width", DEFAULT_MAX_WIDTH)
+			);
+			Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+			System.out.println("[INFO] listening on port " + port);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.util.*;
+
+/**
+ * A bounded max-heap used to keep track of the k closest database images seen
+ * so far during a nearest neighbour search.
+ */
+public class NeighbourHeap {
+	/**
+	 * The database image indices in the heap.
+	 */
+	private int[] ids;
+	/**
+	 * The distances of the database images in the heap; the largest is at the
+	 * root.
+	 */
+	private float[] distances;
+	/**
+	 * The number of entries currently in the heap.
+	 */
+	private int size;
+
+	/**
+	 * Create an empty heap holding at most the given number of entries.
+	 * @param capacity the maximum number of entries to keep
+	 */
+	public NeighbourHeap(int capacity) {
+		ids = new int[capacity];
+		distances = new float[capacity];
+	}
+
+	/**
+	 * @return the distance a new entry has to beat to be kept, or infinity if
+	 * the heap isn't full yet
+	 */
+	public float worst() {
+		return size < ids.length ? Float.POSITIVE_INFINITY : distances[0];
+	}
+
+	/**
+	 * Determine whether one entry should be ordered after another.
+	 * Ties on distance are broken on the database index so that the same
+	 * entries are kept no matter which order they are offered in.
+	 */
+	private static boolean further(float distance, int id, float otherDistance, int otherId) {
+		return distance > otherDistance || (distance == otherDistance && id > otherId);
+	}
+
+	/**
+	 * Offer a database image to the heap, replacing the furthest entry if the
+	 * heap is full and the new one is closer.
+	 * @param id the index of the database image
+	 * @param distance the distance of the database image from the query
+	 */
+	public void offer(int id, float distance) {
+		if (size < ids.length) {
+			// Sift the new entry up from the bottom of the heap
+			int i = size++;
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (!further(distance, id, distances[parent], ids[parent])) {
+					break;
+				}
+				ids[i] = ids[parent];
+				distances[i] = distances[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			distances[i] = distance;
+		}
+		else if (further(distances[0], ids[0], distance, id)) {
+			// Replace the root and sift it down
+			int i = 0;
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child+1 < size && further(distances[child+1], ids[child+1], distances[child], ids[child])) {
+					child++;
+				}
+				if (!further(distances[child], ids[child], distance, id)) {
+					break;
+				}
+				ids[i] = ids[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			ids[i] = id;
+			distances[i] = distance;
+		}
+	}
+
+	/**
+	 * @return the indices of the entries in the heap, closest first
+	 */
+	public int[] sortedIds() {
+		int[] sorted = Arrays.copyOf(ids, size);
+		float[] sortedDistances = Arrays.copyOf(distances, size);
+
+		// Insertion sort the entries by distance; k is small so this is cheap
+
+		for (int i = 1; i < size; i++) {
+			int id = sorted[i];
+			float distance = sortedDistances[i];
+			int j = i - 1;
+			while (j >= 0 && further(sortedDistances[j], sorted[j], distance, id)) {
+				sorted[j+1] = sorted[j];
+				sortedDistances[j+1] = sortedDistances[j];
+				j--;
+			}
+			sorted[j+1] = id;
+			sortedDistances[j+1] = distance;
+		}
+		return sorted;
+	}
+}
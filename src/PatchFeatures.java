@@ -0,0 +1,296 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * The feature vectors for every patch of an image, extracted once up front.
+ * Each patch is split into a grid of square regions (2x2 by default), and its
+ * feature vector is the average RGB values of each region in row major order.
+ * The feature vectors are stored one after the other in a single flat array.
+ *
+ * Averages are taken from a summed-area table of each patch, so every region
+ * costs the same four lookups no matter how fine the grid is. They can then
+ * be converted to another colour space, to match the DB they are compared
+ * against.
+ */
+public class PatchFeatures {
+	/**
+	 * The default number of regions across and down each patch.
+	 */
+	public static final int DEFAULT_GRID = 2;
+	/**
+	 * The fewest regions across and down each patch.
+	 */
+	public static final int MIN_GRID = 2;
+	/**
+	 * The most regions across and down each patch.
+	 */
+	public static final int MAX_GRID = 4;
+	/**
+	 * The feature vectors of all patches, in row major order.
+	 */
+	private float[] features;
+	/**
+	 * The number of values in each feature vector.
+	 */
+	private int dimensions;
+	/**
+	 * The number of patches across the image.
+	 */
+	private int columns;
+	/**
+	 * The number of patches down the image.
+	 */
+	private int rows;
+
+	/**
+	 * Extract the feature vector of every patchSize by patchSize patch of the
+	 * given image, using the default grid.
+	 * @param image the image to split into patches
+	 * @param patchSize the width of each square patch
+	 */
+	public PatchFeatures(BufferedImage image, int patchSize) {
+		this(image, patchSize, DEFAULT_GRID);
+	}
+
+	/**
+	 * Extract the feature vector of every patchSize by patchSize patch of the
+	 * given image.
+	 * @param image the image to split into patches
+	 * @param patchSize the width of each square patch
+	 * @param grid the number of regions across and down each patch
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public PatchFeatures(BufferedImage image, int patchSize, int grid) throws IllegalArgumentException {
+		this(image, patchSize, grid, ColourSpace.RGB);
+	}
+
+	/**
+	 * Extract the feature vector of every patchSize by patchSize patch of the
+	 * given image, in the given colour space.
+	 * @param image the image to split into patches
+	 * @param patchSize the width of each square patch
+	 * @param grid the number of regions across and down each patch
+	 * @param colourSpace the colour space to store the features in
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public PatchFeatures(BufferedImage image, int patchSize, int grid, ColourSpace colourSpace) throws IllegalArgumentException {
+		dimensions = dimensions(grid);
+		columns = image.getWidth() / patchSize;
+		rows = image.getHeight() / patchSize;
+		features = new float[columns * rows * dimensions];
+
+		int[] pixels = pixels(image);
+		int scanline = image.getWidth();
+		// The summed-area table is rebuilt for each patch, so it is only ever
+		// as big as one patch
+		int[] table = new int[tableSize(patchSize, patchSize)];
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < columns; x++) {
+				extract(
+					pixels, y*patchSize*scanline + x*patchSize, scanline,
+					patchSize, patchSize, grid, features, offset(x, y), table
+				);
+			}
+		}
+		colourSpace.fromRgb(features, 0, features.length);
+	}
+
+	/**
+	 * @param grid the number of regions across and down each patch
+	 * @return the number of values in each feature vector: an RGB tuple for each region
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public static int dimensions(int grid) throws IllegalArgumentException {
+		if (grid < MIN_GRID || grid > MAX_GRID) {
+			throw new IllegalArgumentException("The grid size must be from " + MIN_GRID + " to " + MAX_GRID + ", not " + grid + ".");
+		}
+		return grid * grid * 3;
+	}
+
+	/**
+	 * @return the number of values in each feature vector
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * @return the feature vectors of all patches, one after the other
+	 */
+	public float[] getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @return the number of patches across the image
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of patches down the image
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @param x the x coordinate of the patch in "patch space"
+	 * @param y the y coordinate of the patch in "patch space"
+	 * @return the position of the patch's feature vector in the features array
+	 */
+	public int offset(int x, int y) {
+		return (y*columns + x) * dimensions;
+	}
+
+	/**
+	 * Get the packed RGB pixels of an image, without copying them if the
+	 * image is already backed by an int array.
+	 * @param image the image
+	 * @return the pixels in row major order, with a scanline of the image's width
+	 */
+	public static int[] pixels(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_INT_RGB
+			&& raster.getDataBuffer() instanceof DataBufferInt
+			&& raster.getParent() == null) {
+			return ((DataBufferInt) raster.getDataBuffer()).getData();
+		}
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+			&& raster.getDataBuffer() instanceof DataBufferByte
+			&& raster.getParent() == null) {
+			// This is what JPEGs are decoded to; packing the bytes directly is
+			// much faster than converting each pixel through getRGB
+			byte[] bgr = ((DataBufferByte) raster.getDataBuffer()).getData();
+			int[] pixels = new int[image.getWidth() * image.getHeight()];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = ((bgr[i*3 + 2] & 0xff) << 16) | ((bgr[i*3 + 1] & 0xff) << 8) | (bgr[i*3] & 0xff);
+			}
+			return pixels;
+		}
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	/**
+	 * Extract the feature vector of a region of packed RGB pixels, using the
+	 * default grid.
+	 * @param pixels the packed RGB pixels
+	 * @param offset the position of the region's top left pixel
+	 * @param scanline the distance between rows of pixels
+	 * @param width the width of the region
+	 * @param height the height of the region
+	 * @param out the array to store the feature vector in
+	 * @param outOffset the position in the output array to store the feature vector at
+	 */
+	public static void extract(int[] pixels, int offset, int scanline, int width, int height, float[] out, int outOffset) {
+		extract(pixels, offset, scanline, width, height, DEFAULT_GRID, out, outOffset);
+	}
+
+	/**
+	 * Extract the feature vector of a region of packed RGB pixels.
+	 * The region is split into a grid of square regions, and the integer
+	 * average RGB values of each are stored in the output array.
+	 * @param pixels the packed RGB pixels
+	 * @param offset the position of the region's top left pixel
+	 * @param scanline the distance between rows of pixels
+	 * @param width the width of the region
+	 * @param height the height of the region
+	 * @param grid the number of regions across and down
+	 * @param out the array to store the feature vector in
+	 * @param outOffset the position in the output array to store the feature vector at
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public static void extract(int[] pixels, int offset, int scanline, int width, int height, int grid, float[] out, int outOffset) throws IllegalArgumentException {
+		dimensions(grid);
+		extract(pixels, offset, scanline, width, height, grid, out, outOffset, new int[tableSize(width, height)]);
+	}
+
+	/**
+	 * Extract the feature vector of a region of packed RGB pixels, using the
+	 * given space for its summed-area table.
+	 * @param pixels the packed RGB pixels
+	 * @param offset the position of the region's top left pixel
+	 * @param scanline the distance between rows of pixels
+	 * @param width the width of the region
+	 * @param height the height of the region
+	 * @param grid the number of regions across and down
+	 * @param out the array to store the feature vector in
+	 * @param outOffset the position in the output array to store the feature vector at
+	 * @param table space for the summed-area table, at least tableSize(width, height) long
+	 */
+	private static void extract(int[] pixels, int offset, int scanline, int width, int height, int grid, float[] out, int outOffset, int[] table) {
+		//
+		// Build the summed-area table: entry (x, y) holds the total of each
+		// channel over every pixel above and to the left of (x, y). The
+		// first row and column are all zero.
+		//
+		// The totals can overflow for big regions, but since a region's
+		// total is worked out by adding and subtracting them, it still comes
+		// out right as long as the region's own total fits in an int.
+		//
+		int tableScanline = (width + 1) * 3;
+		Arrays.fill(table, 0, tableScanline, 0);
+		for (int y = 0; y < height; y++) {
+			int row = offset + y*scanline;
+			int above = y * tableScanline;
+			int current = above + tableScanline;
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			table[current] = 0;
+			table[current + 1] = 0;
+			table[current + 2] = 0;
+			for (int x = 0; x < width; x++) {
+				int rgb = pixels[row + x];
+				red += (rgb >> 16) & 0xff;
+				green += (rgb >> 8) & 0xff;
+				blue += rgb & 0xff;
+				int i = (x + 1) * 3;
+				table[current + i] = table[above + i] + red;
+				table[current + i + 1] = table[above + i + 1] + green;
+				table[current + i + 2] = table[above + i + 2] + blue;
+			}
+		}
+
+		//
+		// Average each region of the grid from the four corners of the
+		// region in the table
+		//
+		for (int gy = 0; gy < grid; gy++) {
+			int yStart = gy*height/grid;
+			int yEnd = (gy + 1)*height/grid;
+			for (int gx = 0; gx < grid; gx++) {
+				int xStart = gx*width/grid;
+				int xEnd = (gx + 1)*width/grid;
+				int totalPixels = (yEnd-yStart)*(xEnd-xStart); // The total number of pixels in this region
+
+				int topLeft = yStart*tableScanline + xStart*3;
+				int topRight = yStart*tableScanline + xEnd*3;
+				int bottomLeft = yEnd*tableScanline + xStart*3;
+				int bottomRight = yEnd*tableScanline + xEnd*3;
+				int o = outOffset + (gy*grid + gx)*3;
+				for (int c = 0; c < 3; c++) {
+					int total = table[bottomRight + c] - table[topRight + c] - table[bottomLeft + c] + table[topLeft + c];
+					// Store the average colour, truncated like the averages in the DB
+					out[o + c] = totalPixels == 0 ? 0 : total/totalPixels;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param width the width of a region
+	 * @param height the height of a region
+	 * @return the size of the summed-area table for the region
+	 */
+	private static int tableSize(int width, int height) {
+		return (width + 1) * (height + 1) * 3;
+	}
+}
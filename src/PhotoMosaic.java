@@ -9,27 +9,85 @@ import java.awt.image.*;
 import javax.imageio.*;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Create a photomosaic given an input image and a database of patch images.
  */
 public class PhotoMosaic {
+	/**
+	 * Receives the coarse previews of a photomosaic as they are created, and
+	 * the finished photomosaic after them.
+	 */
+	public interface PreviewListener {
+		/**
+		 * Called on the thread creating the photomosaic once a pass is done.
+		 * @param image the preview, or the photomosaic for the last pass; previews aren't changed afterwards, so they can be kept
+		 * @param pass the number of the pass, from 1
+		 * @param passes the number of passes, the last of which creates the photomosaic
+		 * @throws IOException if the image could not be handled, which stops the photomosaic being created
+		 */
+		void passDone(BufferedImage image, int pass, int passes) throws IOException;
+	}
+
 	/**
 	 * The input image, edited in place to become the photomosaic image.
+	 * When streaming, this is just the strip of the image being worked on.
 	 */
 	private BufferedImage image;
 	/**
-	 * A cache for database images, allowing us to not have to keep re-reading
-	 * images into BufferedImage objects.
-	 * This saves a small amount of processing time, but it is not extreme.
+	 * A cache for database image pixels, allowing us to not have to keep
+	 * re-reading images. The cache is bounded, so least recently used images
+	 * are dropped once it is full.
+	 */
+	private TileCache dbCache;
+	/**
+	 * The decoded pixels of every database image, or null if the database
+	 * images should be read from their JPEG files.
+	 */
+	private TilePack tilePack;
+	/**
+	 * The pixels of the image, which database images are copied into.
+	 */
+	private int[] pixels;
+	/**
+	 * The distance between rows in the pixels array.
+	 */
+	private int scanline;
+	/**
+	 * The row of patches, in "patch space", at the top of the image held in
+	 * memory. This is 0 unless streaming.
+	 */
+	private int bandStart;
+	/**
+	 * The database of patch images.
+	 */
+	private TileDatabase db;
+	/**
+	 * The loaded DB the database images come from.
+	 */
+	private MosaicDatabase database;
+	/**
+	 * The directory the photomosaic and scaled input image are written to.
 	 */
-	private Map<String, BufferedImage> dbCache;
+	private String outputDirectory;
 	/**
-	 * An array representing the image as a set of database image patches.
-	 * This array is used in determening whether a given patch has already
-	 * been used in a region.
+	 * The feature vectors of every patch of the scaled input image held in
+	 * memory.
 	 */
-	private String[][] placedTiles;
+	private PatchFeatures patches;
+	/**
+	 * The image as a set of database image patches.
+	 * This is used in determening whether a given patch has already been used
+	 * in a region.
+	 */
+	private PlacedTiles placedTiles;
+	/**
+	 * The count of each database image placed around the patch being
+	 * matched, one for each thread matching patches.
+	 */
+	private UniquenessWindow[] windows;
 	/**
 	 * The size for the database patches.
 	 * This value will be used in loading the corresponding "dbNxN.csv" file
@@ -42,18 +100,77 @@ public class PhotoMosaic {
 	 * see if a candidate database image has already been used in the area.
 	 */
 	private int uniqueBox;
+	/**
+	 * Finds the closest matching database image for each patch.
+	 */
+	private TileMatcher matcher;
+	/**
+	 * The number of threads used to match patches.
+	 */
+	private int threads;
+	/**
+	 * The threads patches are matched on, or null if they are matched on
+	 * this thread.
+	 */
+	private ExecutorService pool;
+	/**
+	 * Scales the input image, on the thread pool if there is one.
+	 */
+	private Resampler resampler;
+	/**
+	 * The timings and counts of this run.
+	 */
+	private RunMetrics metrics = new RunMetrics("PhotoMosaic");
+	/**
+	 * The number of rows of patches placed so far, for reporting progress.
+	 */
+	private AtomicInteger rowsPlaced = new AtomicInteger();
+	/**
+	 * Whether to print how far through the photomosaic we are.
+	 */
+	private boolean showProgress;
+	/**
+	 * The number of pixels across each patch's tile is drawn with for each
+	 * pixel of the database image. This is 1 apart from in previews, which
+	 * match larger patches and scale their tiles up to fit them.
+	 */
+	private int tileScale = 1;
+	/**
+	 * The database images placed on the previous frame of a sequence, which
+	 * patches that have barely changed keep, or null.
+	 */
+	private MosaicFrame previousFrame;
+	/**
+	 * The largest root mean square change in a patch's features for it to
+	 * keep the previous frame's database image.
+	 */
+	private float reuseThreshold;
+	/**
+	 * The database images placed on this photomosaic, or null if it was
+	 * streamed.
+	 */
+	private MosaicFrame frame;
 	/**
 	 * The default uniqueBox size.
 	 */
 	public static final int DEFAULT_UNIQUE_BOX = 21;
+	/**
+	 * The default number of candidates taken from the index for each patch.
+	 */
+	public static final int DEFAULT_SEARCH_CANDIDATES = 32;
 	public static final String SCALED_INPUT_PREFIX = "SCALED_ORIGINAL_";
 	public static final String MOSAIC_OUTPUT_PREFIX = "MOSAIC_OUTPUT_";
+	public static final String PREVIEW_PREFIX = "PREVIEW_";
+	/**
+	 * The fewest rows of patches in each strip when streaming.
+	 */
+	private static final int MIN_STRIP_ROWS = 8;
 
 	/**
 	 * Create a photomosaic for the given image using the given database of images, using the default unique box size.
 	 * @param filename the file we'll create a photomosaic of
 	 * @param width the width to scale the input image to
-	 * @param dbFilePath the path to the DB csv file
+	 * @param dbFilePath the path to the binary DB file or DB csv file
 	 * @param patchSize the square DB image width
 	 * @throws IOException if something went wrong while reading the image
 	 * @throws IllegalArgumentException if the provided filename is not a valid image or the DB file doesn't exist
@@ -66,197 +183,765 @@ public class PhotoMosaic {
 	 * Create a photomosaic for the given image using the given database of images.
 	 * @param filename the file we'll create a photomosaic of
 	 * @param width the width to scale the input image to
-	 * @param dbFilePath the path to the DB csv file
+	 * @param dbFilePath the path to the binary DB file or DB csv file
 	 * @param patchSize the square DB image width
 	 * @param uniqueBox the box size to use when searching for duplicates
 	 * @throws IOException if something went wrong while reading the image
 	 * @throws IllegalArgumentException if the provided filename is not a valid image or the DB file doesn't exist
 	 */
 	public PhotoMosaic(String filename, int width, String dbFilePath, int patchSize, int uniqueBox) throws IOException, IllegalArgumentException {
+		this(filename, width, dbFilePath, patchSize, uniqueBox, DEFAULT_SEARCH_CANDIDATES);
+	}
+
+	/**
+	 * Create a photomosaic for the given image using the given database of images.
+	 * @param filename the file we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param dbFilePath the path to the binary DB file or DB csv file
+	 * @param patchSize the square DB image width
+	 * @param uniqueBox the box size to use when searching for duplicates
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 * @throws IOException if something went wrong while reading the image
+	 * @throws IllegalArgumentException if the provided filename is not a valid image or the DB file doesn't exist
+	 */
+	public PhotoMosaic(String filename, int width, String dbFilePath, int patchSize, int uniqueBox, int searchCandidates) throws IOException, IllegalArgumentException {
+		this(filename, width, dbFilePath, patchSize, new MosaicOptions().setUniqueBox(uniqueBox).setSearchCandidates(searchCandidates));
+	}
+
+	/**
+	 * Create a photomosaic for the given image using the given database of images.
+	 * @param filename the file we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param dbFilePath the path to the binary DB file or DB csv file
+	 * @param patchSize the square DB image width
+	 * @param options the unique box size, search and threading settings
+	 * @throws IOException if something went wrong while reading the image
+	 * @throws IllegalArgumentException if the provided filename is not a valid image or the DB file doesn't exist
+	 */
+	public PhotoMosaic(String filename, int width, String dbFilePath, int patchSize, MosaicOptions options) throws IOException, IllegalArgumentException {
 		this.patchSize = patchSize;
-		this.uniqueBox = uniqueBox;
+		this.uniqueBox = options.getUniqueBox();
+		this.threads = options.getThreads();
+		this.showProgress = options.getShowProgress();
+		recordSettings(filename, width, dbFilePath, options);
+		BufferedImage original = readImage(filename);
 
 		//
-		// Read in the original image
+		// Load up the database image paths into memory
 		//
-		try {
-			image = ImageIO.read(new File(filename));
+		MosaicDatabase database = new MosaicDatabase(dbFilePath, patchSize, options.getUseTilePack(), options.getCacheBytes(), metrics);
+		create(original, width, new File(filename).getName(), null, database, options);
+
+		metrics.finish();
+		System.out.println("[INFO] time: " + metrics.getSummary());
+		if (tilePack == null) {
+			System.out.println("[INFO] tile cache: " + dbCache.getStats());
+		}
+		if (options.getReportFile() != null) {
+			metrics.writeReport(new File(options.getReportFile()));
+			System.out.println("[INFO] wrote run report: " + options.getReportFile());
 		}
-		catch (IOException e) {
-			throw e;
+	}
+
+	/**
+	 * Create a photomosaic for the given image using a DB that has already
+	 * been loaded, writing it out like the other constructors but without
+	 * printing anything.
+	 * @param filename the file we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param database the loaded DB, which can be shared with other photomosaics
+	 * @param options the unique box size, search, threading and output settings; the tile pack and cache settings are the DB's
+	 * @throws IOException if something went wrong while reading the image or writing the photomosaic
+	 * @throws IllegalArgumentException if the provided filename is not a valid image
+	 */
+	public PhotoMosaic(String filename, int width, MosaicDatabase database, MosaicOptions options) throws IOException, IllegalArgumentException {
+		this(filename, width, database, options, null);
+	}
+
+	/**
+	 * Create a photomosaic for the given image as the next frame of a
+	 * sequence, using a DB that has already been loaded, writing it out like
+	 * the other constructors but without printing anything. Patches that have
+	 * barely changed since the previous frame keep its database images.
+	 * @param filename the file we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param database the loaded DB, which can be shared with other photomosaics
+	 * @param options the unique box size, search, threading, reuse and output settings; the tile pack and cache settings are the DB's
+	 * @param previousFrame the previous frame's getFrame(), or null to match every patch
+	 * @throws IOException if something went wrong while reading the image or writing the photomosaic
+	 * @throws IllegalArgumentException if the provided filename is not a valid image, or a previous frame is given for a streamed photomosaic
+	 */
+	public PhotoMosaic(String filename, int width, MosaicDatabase database, MosaicOptions options, MosaicFrame previousFrame) throws IOException, IllegalArgumentException {
+		this.previousFrame = previousFrame;
+		this.patchSize = database.getPatchSize();
+		this.uniqueBox = options.getUniqueBox();
+		this.threads = options.getThreads();
+		this.showProgress = options.getShowProgress();
+		recordSettings(filename, width, database.getPath(), options);
+
+		create(readImage(filename), width, new File(filename).getName(), null, database, options);
+		metrics.finish();
+	}
+
+	/**
+	 * Create a photomosaic of an image in memory, using a DB that has already
+	 * been loaded. Nothing is written out; the photomosaic is returned by
+	 * getImage().
+	 * @param original the image we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param database the loaded DB, which can be shared with other photomosaics
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if streaming is requested, since that needs an output file or stream
+	 */
+	public PhotoMosaic(BufferedImage original, int width, MosaicDatabase database, MosaicOptions options) throws IOException, IllegalArgumentException {
+		this(original, width, database, options, (MosaicFrame) null);
+	}
+
+	/**
+	 * Create a photomosaic of an image in memory as the next frame of a
+	 * sequence, using a DB that has already been loaded. Patches that have
+	 * barely changed since the previous frame keep its database images.
+	 * Nothing is written out; the photomosaic is returned by getImage().
+	 * @param original the image we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param database the loaded DB, which can be shared with other photomosaics
+	 * @param options the unique box size, search, threading and reuse settings; the tile pack and cache settings are the DB's
+	 * @param previousFrame the previous frame's getFrame(), or null to match every patch
+	 * @throws IOException if a database image could not be read, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if streaming is requested, since that needs an output file or stream
+	 */
+	public PhotoMosaic(BufferedImage original, int width, MosaicDatabase database, MosaicOptions options, MosaicFrame previousFrame) throws IOException, IllegalArgumentException {
+		this.previousFrame = previousFrame;
+		if (options.getStreaming()) {
+			throw new IllegalArgumentException("A streamed photomosaic has to be written to a file or stream.");
 		}
-		if (image == null) {
+		this.patchSize = database.getPatchSize();
+		this.uniqueBox = options.getUniqueBox();
+		this.threads = options.getThreads();
+		this.showProgress = options.getShowProgress();
+		recordSettings(null, width, database.getPath(), options);
+
+		create(original, width, null, null, database, options);
+		metrics.finish();
+	}
+
+	/**
+	 * Create a photomosaic of an image in memory, using a DB that has already
+	 * been loaded, and write it to a stream as a PNG a strip at a time (as
+	 * if streaming was requested). Only the strip being worked on is held in
+	 * memory, so getImage() returns just the last strip.
+	 * @param original the image we'll create a photomosaic of
+	 * @param width the width to scale the input image to
+	 * @param database the loaded DB, which can be shared with other photomosaics
+	 * @param options the unique box size, search and threading settings; the tile pack and cache settings are the DB's
+	 * @param out the stream to write the PNG to, which is left open
+	 * @throws IOException if a database image could not be read, the stream could not be written to, or interrupted while creating the photomosaic
+	 * @throws IllegalArgumentException if previews are requested, since the photomosaic is never in memory to preview
+	 */
+	public PhotoMosaic(BufferedImage original, int width, MosaicDatabase database, MosaicOptions options, OutputStream out) throws IOException, IllegalArgumentException {
+		this.patchSize = database.getPatchSize();
+		this.uniqueBox = options.getUniqueBox();
+		this.threads = options.getThreads();
+		this.showProgress = options.getShowProgress();
+		recordSettings(null, width, database.getPath(), options);
+
+		create(original, width, null, out, database, options);
+		metrics.finish();
+	}
+
+	/**
+	 * @return the photomosaic image, or the last strip of it if it was streamed
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * @return the database images placed on this photomosaic and the features they were matched for, to pass to the next frame of a sequence, or null if it was streamed
+	 */
+	public MosaicFrame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return the timings and counts of the run that created this photomosaic
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Read in the original image.
+	 * @param filename the file we'll create a photomosaic of
+	 * @return the image
+	 * @throws IOException if something went wrong while reading the image
+	 * @throws IllegalArgumentException if the provided filename is not a valid image
+	 */
+	private BufferedImage readImage(String filename) throws IOException, IllegalArgumentException {
+		long start = System.nanoTime();
+		BufferedImage original = ImageIO.read(new File(filename));
+		if (original == null) {
 			throw new IllegalArgumentException(filename + " is not a valid image.");
 		}
+		metrics.time(RunMetrics.Phase.DECODE, start);
+		return original;
+	}
 
-		// Set up the tile representation of our image; this will let us
-		// determine if a tile has already been placed in a region
-		placedTiles = new String[width/patchSize][width/patchSize];
+	/**
+	 * Determine where the photomosaic of an image file will be written.
+	 * @param filename the file we'll create a photomosaic of
+	 * @param options the streaming and output settings
+	 * @return the photomosaic file
+	 */
+	public static File outputFile(String filename, MosaicOptions options) {
+		String fileBaseName = new File(filename).getName();
+		return new File(options.getOutputDirectory(), MOSAIC_OUTPUT_PREFIX + (options.getStreaming() ? pngName(fileBaseName) : fileBaseName));
+	}
+
+	/**
+	 * Set up matching against a loaded DB and create the photomosaic.
+	 * @param original the input image
+	 * @param width the width to scale the input image to
+	 * @param fileBaseName the name of the input image file, or null to not write anything out
+	 * @param pngOut the stream to write the photomosaic to as a PNG a strip at a time, or null
+	 * @param database the loaded DB
+	 * @param options the unique box size, search and threading settings
+	 * @throws IOException if a database image could not be read or the output could not be written
+	 */
+	private void create(BufferedImage original, int width, String fileBaseName, OutputStream pngOut, MosaicDatabase database, MosaicOptions options) throws IOException {
+		if (options.getPreviews() > 0 && (pngOut != null || options.getStreaming())) {
+			throw new IllegalArgumentException("Previews can't be created for a streamed photomosaic.");
+		}
+		if (previousFrame != null && (pngOut != null || options.getStreaming())) {
+			throw new IllegalArgumentException("A streamed photomosaic can't keep the previous frame's database images.");
+		}
+		this.reuseThreshold = options.getReuseThreshold();
+		this.database = database;
+		this.outputDirectory = options.getOutputDirectory();
+		db = database.getDatabase();
+		metrics.setting("colourSpace", db.getColourSpace().name());
+		metrics.allocation("inputImage", (long) original.getWidth() * original.getHeight() * 4);
+		// The index is built once per DB; it is shared by every patch
+		TileIndex index = null;
+		if (options.getSearchCandidates() > 0) {
+			index = options.getQuantized() ? database.getQuantizedIndex(metrics) : database.getIndex(metrics);
+		}
+		matcher = new TileMatcher(db, index, options.getSearchCandidates(), metrics);
+		dbCache = database.getCache();
+		tilePack = database.getTilePack();
+		if (tilePack == null) {
+			// The tile cache counts this run's hits and misses as it goes;
+			// both are reported even if one stays at 0
+			metrics.count(RunMetrics.Counter.CACHE_HITS, 0);
+			metrics.count(RunMetrics.Counter.CACHE_MISSES, 0);
+		}
+		if (options.getSearchCandidates() <= 0) {
+			metrics.allocation("matchScratch", (long) threads * db.size() * 4);
+		}
+
+		if (threads > 1) {
+			pool = Executors.newFixedThreadPool(threads);
+		}
+		resampler = new Resampler(options.getScaleFilter(), pool, threads);
+		try {
+			if (pngOut != null || options.getStreaming()) {
+				// The partial patches at the right and bottom edges are left off
+				int size = width/patchSize*patchSize;
+				try (PngStreamWriter out = pngOut != null
+					? new PngStreamWriter(pngOut, size, size)
+					: new PngStreamWriter(new File(outputDirectory, MOSAIC_OUTPUT_PREFIX + pngName(fileBaseName)), size, size)) {
+					renderStreaming(original, width, out);
+				}
+			}
+			else {
+				renderWhole(original, width, fileBaseName, options);
+			}
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+
+		if (tilePack == null) {
+			metrics.allocation("tileCache", dbCache.getBytes());
+		}
+	}
 
+	/**
+	 * Record the settings the photomosaic is being created with in the run
+	 * report.
+	 * @param filename the file we'll create a photomosaic of, or null if it isn't from a file
+	 * @param width the width to scale the input image to
+	 * @param dbFilePath the path to the binary DB file or DB csv file
+	 * @param options the unique box size, search and threading settings
+	 */
+	private void recordSettings(String filename, int width, String dbFilePath, MosaicOptions options) {
+		if (filename != null) {
+			metrics.setting("input", filename);
+		}
+		metrics.setting("width", width);
+		metrics.setting("db", dbFilePath);
+		metrics.setting("patchSize", patchSize);
+		metrics.setting("uniqueBox", uniqueBox);
+		metrics.setting("searchCandidates", options.getSearchCandidates());
+		metrics.setting("quantized", options.getQuantized());
+		metrics.setting("threads", threads);
+		metrics.setting("useTilePack", options.getUseTilePack());
+		metrics.setting("cacheBytes", options.getCacheBytes());
+		metrics.setting("streaming", options.getStreaming());
+		metrics.setting("scaleFilter", options.getScaleFilter().name());
+		metrics.setting("writeScaledInput", options.getWriteScaledInput());
+		metrics.setting("previews", options.getPreviews());
+		if (previousFrame != null) {
+			metrics.setting("reuseThreshold", options.getReuseThreshold());
+		}
+	}
+
+	/**
+	 * Create the photomosaic with the whole image in memory at once, writing
+	 * it out as a JPEG file, optionally along with the scaled input image and
+	 * the previews.
+	 * @param original the input image
+	 * @param width the width to scale the input image to
+	 * @param fileBaseName the name of the input image file, or null to not write anything out
+	 * @param options whether to write out the scaled input image, and the preview settings
+	 * @throws IOException if a database image could not be read or the output could not be written
+	 */
+	private void renderWhole(BufferedImage original, int width, String fileBaseName, MosaicOptions options) throws IOException {
 		// Resize the input image to width x width
-		image = scaleImage(image, width);
+		long start = System.nanoTime();
+		image = scaleImage(original, width);
+		start = metrics.time(RunMetrics.Phase.SCALE, start);
 
 		//
 		// Write out the scaled image to a file
 		//
-		String fileBaseName = new File(filename).getName();
-		String outName = SCALED_INPUT_PREFIX + fileBaseName;
-		ImageIO.write(image, "jpg", new File(outName));
+		if (fileBaseName != null && options.getWriteScaledInput()) {
+			ImageIO.write(image, "jpg", new File(outputDirectory, SCALED_INPUT_PREFIX + fileBaseName));
+			start = metrics.time(RunMetrics.Phase.WRITE, start);
+		}
+
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		scanline = image.getWidth();
+		metrics.allocation("image", pixels.length * 4L);
+		renderPreviews(width, fileBaseName, options);
+		start = System.nanoTime();
 
 		//
-		// Load up the database image paths into memory
+		// Extract the average RGB values of every patch up front, before any
+		// of the patches are replaced. Each patch is compared against every
+		// database candidate, so this saves recomputing them each time.
+		// They're converted to the DB's colour space, so they can be compared.
 		//
-		java.util.List<DBImage> dbImages = loadDbImages(dbFilePath);
-		// Set up a map for caching BufferedImage instances for each database
-		// image
-		dbCache = new HashMap<String, BufferedImage>();
+		patches = new PatchFeatures(image, patchSize, db.getGrid(), db.getColourSpace());
+		metrics.time(RunMetrics.Phase.FEATURES, start);
+		metrics.allocation("patchFeatures", patches.getFeatures().length * 4L);
+
+		// Set up the tile representation of our image; this will let us
+		// determine if a tile has already been placed in a region
+		int columns = width/patchSize;
+		placedTiles = new PlacedTiles(columns, columns, columns);
+		metrics.allocation("placedTiles", (long) columns * columns * 4);
+		placedTiles.startRows(0, columns);
+		createWindows();
+		if (previousFrame != null && !previousFrame.fits(db, patches.getColumns(), patches.getRows())) {
+			// A different size of frame or DB; every patch is matched
+			previousFrame = null;
+		}
 
 		//
-		// Loop through each patchSize by patchSize region of the original image.
-		// We will swap out each of these regions with the most appropriate
-		// database image.
+		// Swap out each patchSize by patchSize region of the original image
+		// with the most appropriate database image.
 		//
-		for (int j = 0; j < image.getHeight(); j+=patchSize) {
-			for (int i = 0; i < image.getWidth(); i+=patchSize) {
-				System.out.print("."); // Print a dot to show that something's happening
-				BufferedImage region = image.getSubimage(
-					i, j, patchSize, patchSize
-				);
-
-				// Find the closest matching DB image for this region
-				String closestMatch = findClosest(region, dbImages, i/patchSize, j/patchSize);
-
-				// We've placed the tile down, so update the array representing
-				// the placed down tiles.
-				placedTiles[i/patchSize][j/patchSize] = closestMatch;
-
-				// The patch that we will paste into our original image
-				BufferedImage closestMatchImg = null;
-				if (!dbCache.containsKey(closestMatch)) {
-					// We don't have a BufferedImage cached for this image,
-					// so let's load up a new instance.
-					closestMatchImg = ImageIO.read(new File(closestMatch));
-					dbCache.put(closestMatch, closestMatchImg);
-				}
-				else {
-					// We have a cached BufferedImage for this DB image, so use it.
-					closestMatchImg = dbCache.get(closestMatch);
-				}
+		renderRows(0, patches.getRows());
 
-				//
-				// Turn the closest matching database image into an array of RGB values
-				//
-				int[] closestRGBs = closestMatchImg.getRGB(
-					0, 0, closestMatchImg.getWidth(), closestMatchImg.getHeight(),
-					null, 0, closestMatchImg.getWidth()
-				);
+		int[] tiles = new int[patches.getColumns() * patches.getRows()];
+		for (int y = 0; y < patches.getRows(); y++) {
+			for (int x = 0; x < patches.getColumns(); x++) {
+				tiles[y*patches.getColumns() + x] = placedTiles.get(x, y);
+			}
+		}
+		frame = new MosaicFrame(db, patches.getColumns(), patches.getRows(), patches.getFeatures(), tiles);
+
+		if (options.getPreviewListener() != null) {
+			options.getPreviewListener().passDone(image, options.getPreviews() + 1, options.getPreviews() + 1);
+		}
+		if (fileBaseName != null) {
+			start = System.nanoTime();
+			ImageIO.write(image, "jpg", new File(outputDirectory, MOSAIC_OUTPUT_PREFIX + fileBaseName));
+			metrics.time(RunMetrics.Phase.WRITE, start);
+		}
+	}
+
+	/**
+	 * Create the coarse previews of the photomosaic, handing each to the
+	 * preview listener and writing it out as a JPEG file as soon as it is
+	 * done. Each preview matches patches 2^n times the patch size, starting
+	 * from the largest, and draws its tiles scaled up to fit them, so the
+	 * first takes a fraction of the time of the photomosaic. The unique box
+	 * covers the same area of the image as in the photomosaic, so it spans
+	 * fewer tiles. The scaled input image is left as it is.
+	 * @param width the width the input image was scaled to
+	 * @param fileBaseName the name of the input image file, or null to not write anything out
+	 * @param options the number of previews and the preview listener
+	 * @throws IOException if a database image could not be read or a preview could not be written
+	 */
+	private void renderPreviews(int width, String fileBaseName, MosaicOptions options) throws IOException {
+		BufferedImage scaled = image;
+		int[] scaledPixels = pixels;
+		int photomosaicBox = uniqueBox;
+		int passes = options.getPreviews() + 1;
+		// The previews whose patches are bigger than the image are skipped,
+		// by starting from the first one whose patches fit
+		int largestScale = 31 - Integer.numberOfLeadingZeros(width / patchSize);
+		try {
+			for (int pass = Math.max(passes - largestScale, 1); pass < passes; pass++) {
+				tileScale = 1 << (passes - pass);
+				int cellSize = patchSize * tileScale;
+				int columns = width / cellSize;
 
 				//
-				// Apply the DB image to the patch on the original image
+				// Start from the scaled input image, so the partial patches at
+				// the right and bottom edges show it like the photomosaic does
 				//
-				image.setRGB(
-					i, j, patchSize, patchSize, closestRGBs, 0, patchSize
-				);
+				long start = System.nanoTime();
+				image = new BufferedImage(width, width, BufferedImage.TYPE_INT_RGB);
+				pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+				System.arraycopy(scaledPixels, 0, pixels, 0, pixels.length);
+				patches = new PatchFeatures(scaled, cellSize, db.getGrid(), db.getColourSpace());
+
+				uniqueBox = photomosaicBox / tileScale;
+				placedTiles = new PlacedTiles(columns, columns, columns);
+				placedTiles.startRows(0, columns);
+				createWindows();
+				renderRows(0, columns);
+				metrics.time(RunMetrics.Phase.PREVIEW, start);
+
+				if (options.getPreviewListener() != null) {
+					options.getPreviewListener().passDone(image, pass, passes);
+				}
+				if (fileBaseName != null) {
+					start = System.nanoTime();
+					ImageIO.write(image, "jpg", new File(outputDirectory, PREVIEW_PREFIX + pass + "_" + fileBaseName));
+					metrics.time(RunMetrics.Phase.WRITE, start);
+				}
 			}
 		}
-		System.out.println();
-
-		ImageIO.write(image, "jpg", new File(MOSAIC_OUTPUT_PREFIX + fileBaseName));
+		finally {
+			image = scaled;
+			pixels = scaledPixels;
+			uniqueBox = photomosaicBox;
+			tileScale = 1;
+			rowsPlaced.set(0);
+		}
 	}
 
 	/**
-	 * Find the closest matching image to the given image region.
-	 * @param region the image to match a database image to
-	 * @param dbImages the list of database images we will test against
-	 * @param x the x coordinate of our patch in "patch space"
-	 * @param y the y coordinate of our patch in "patch space"
+	 * Create the photomosaic a strip of rows at a time, writing each strip
+	 * out as a PNG as soon as it is done. Only the current strip and the
+	 * rows of placed tiles the unique box can reach are kept in memory, so
+	 * the photomosaic can be far larger than would fit in memory.
+	 * The result is identical to creating the whole photomosaic at once, apart
+	 * from the partial patches at the right and bottom edges being left off.
+	 * @param original the input image
+	 * @param width the width to scale the input image to
+	 * @param out the PNG to write the photomosaic to, with room for every whole patch
+	 * @throws IOException if a database image could not be read or the output could not be written
 	 */
-	private String findClosest(BufferedImage region, java.util.List<DBImage> dbImages, int x, int y) {
-		// Default the closest distance to be impossibly large
-		double closestDistance = Double.POSITIVE_INFINITY;
-		DBImage closestDbImage = null;
-		for (DBImage dbImage : dbImages) {
-			// We grab the DB image's already calculated average RGBs and
-			// compare them with the average regions of the current section
-			// we're looking at.
-			double currentDistance = regionDistance(dbImage.getAverageRGBs(), averageRegions(region)) * uniquenessScore(dbImage.getImagePath(), x, y);
+	private void renderStreaming(BufferedImage original, int width, PngStreamWriter out) throws IOException {
+		int columns = width/patchSize;
+		int rows = width/patchSize;
+		int stripRows = Math.max(threads*2, MIN_STRIP_ROWS);
+		placedTiles = new PlacedTiles(columns, rows, Math.max(uniqueBox/2, 0) + stripRows);
+		metrics.allocation("placedTiles", (long) columns * (Math.max(uniqueBox/2, 0) + stripRows) * 4);
+		createWindows();
 
-			// Set this image as the new closest if it has the smallest distance
-			if (currentDistance < closestDistance) {
-				closestDistance = currentDistance;
-				closestDbImage = dbImage;
-			}
+		image = new BufferedImage(width, stripRows*patchSize, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		scanline = width;
+		metrics.allocation("image", pixels.length * 4L);
+		int[] source = PatchFeatures.pixels(original);
+
+		for (bandStart = 0; bandStart < rows; bandStart += stripRows) {
+			int bandEnd = Math.min(bandStart + stripRows, rows);
+
+			// Scale just this strip of the input image, and extract its
+			// patches' features before any of them are replaced
+			long start = System.nanoTime();
+			resampler.scaleRows(
+				source, original.getWidth(), original.getHeight(), pixels, 0, scanline,
+				width, width, bandStart*patchSize, Math.min((bandStart + stripRows)*patchSize, width)
+			);
+			start = metrics.time(RunMetrics.Phase.SCALE, start);
+			patches = new PatchFeatures(image, patchSize, db.getGrid(), db.getColourSpace());
+			metrics.time(RunMetrics.Phase.FEATURES, start);
+			metrics.allocation("patchFeatures", patches.getFeatures().length * 4L);
+
+			placedTiles.startRows(bandStart, bandEnd);
+			renderRows(bandStart, bandEnd);
+
+			start = System.nanoTime();
+			out.writeRows(pixels, 0, scanline, (bandEnd - bandStart)*patchSize);
+			metrics.time(RunMetrics.Phase.WRITE, start);
 		}
+	}
 
-		// Return the path to the closest matching image file
-		return closestDbImage.getImagePath();
+	/**
+	 * Set up a uniqueness window over the placed tiles for each thread.
+	 */
+	private void createWindows() {
+		windows = new UniquenessWindow[threads];
+		for (int t = 0; t < threads; t++) {
+			windows[t] = new UniquenessWindow(placedTiles, uniqueBox, db.size());
+		}
+		metrics.allocation("uniquenessWindows", (long) threads * db.size() * 4);
 	}
 
 	/**
-	 * Determine whether a given location in "patch space" is valid.
-	 * @param x the x coordinate in "patch space"
-	 * @param y the y coordinate in "patch space"
-	 * @return if the location is valid
+	 * Place a database image on every patch in a range of rows, on the
+	 * thread pool if there is one.
+	 * @param rowStart the first row of patches
+	 * @param rowEnd one past the last row of patches
+	 * @throws IOException if a database image could not be read
 	 */
-	private boolean validNeighbour(int x, int y) {
-		return x >= 0 && y >= 0 && x < placedTiles.length && y < placedTiles[x].length;
+	private void renderRows(int rowStart, int rowEnd) throws IOException {
+		if (pool != null) {
+			renderParallel(rowStart, rowEnd);
+		}
+		else {
+			renderSerial(rowStart, rowEnd);
+		}
+	}
+
+	/**
+	 * Place a database image on every patch in a range of rows, one patch at
+	 * a time.
+	 * @param rowStart the first row of patches
+	 * @param rowEnd one past the last row of patches
+	 * @throws IOException if a database image could not be read
+	 */
+	private void renderSerial(int rowStart, int rowEnd) throws IOException {
+		float[] distances = matcher.createScratch();
+		UniquenessWindow window = windows[0];
+
+		//
+		// Loop through each patchSize by patchSize region of the original image.
+		// We will swap out each of these regions with the most appropriate
+		// database image.
+		//
+		for (int y = rowStart; y < rowEnd; y++) {
+			window.startRow(y);
+			for (int x = 0; x < patches.getColumns(); x++) {
+				placeTile(x, y, distances, window);
+			}
+			window.endRow();
+			rowPlaced();
+		}
 	}
 
 	/**
-	 * Determine how unique a database image is in a certain region.
-	 * @param imagePath the image whose uniqueness we want to check
-	 * @param tileX the x coordinate in "patch space"
-	 * @param tileY the y coordinate in "patch space"
-	 * @return the double score representing the uniqueness of the imagePath
+	 * Place a database image on every patch in a range of rows, matching
+	 * several rows of patches at once.
+	 * The result is identical to placing them one at a time: rows are worked
+	 * on as a wavefront, where each row stays far enough behind the row above
+	 * that every patch sees exactly the tiles the serial loop would have
+	 * placed in its unique box by then, and none of the ones it wouldn't have.
+	 * Every row above rowStart must already be placed.
+	 * @param rowStart the first row of patches
+	 * @param rowEnd one past the last row of patches
+	 * @throws IOException if a database image could not be read
 	 */
-	private double uniquenessScore(String imagePath, int tileX, int tileY) {
-		int occurances = 0;
-		for (int y = -uniqueBox/2; y <= uniqueBox/2; y++) {
-			for (int x = -uniqueBox/2; x <= uniqueBox/2; x++) {
-				if (!validNeighbour(tileX+x, tileY+y)) {
-					continue;
+	private void renderParallel(int rowStart, int rowEnd) throws IOException {
+		final int rows = rowEnd - rowStart;
+		final int columns = patches.getColumns();
+		// How far ahead the row above has to be before a patch can be matched
+		final int reach = Math.max(uniqueBox/2, 0) + 1;
+		// The number of patches placed so far in each row
+		final AtomicIntegerArray progress = new AtomicIntegerArray(rows);
+		final AtomicInteger nextRow = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean();
+
+		java.util.List<Future<Void>> workers = new ArrayList<Future<Void>>();
+		for (int t = 0; t < Math.min(threads, rows); t++) {
+			final UniquenessWindow window = windows[t];
+			workers.add(pool.submit(() -> {
+				try {
+					float[] distances = matcher.createScratch();
+					// Rows are handed out in order, so the row above is
+					// always already being worked on by another thread
+					int y;
+					while ((y = nextRow.getAndIncrement()) < rows) {
+						window.startRow(rowStart + y);
+						for (int x = 0; x < columns; x++) {
+							int needed = Math.min(x + reach, columns);
+							while (y > 0 && progress.get(y-1) < needed) {
+								if (failed.get()) {
+									return null;
+								}
+								Thread.onSpinWait();
+								Thread.yield();
+							}
+							placeTile(x, rowStart + y, distances, window);
+							progress.set(y, x + 1);
+						}
+						window.endRow();
+						rowPlaced();
+					}
 				}
-				else if (placedTiles[tileX+x][tileY+y] != null && placedTiles[tileX+x][tileY+y].equals(imagePath)) {
-					occurances++;
+				catch (IOException | RuntimeException | Error e) {
+					// Stop the other threads from waiting on this one forever,
+					// even if it ran out of memory
+					failed.set(true);
+					throw e;
 				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<Void> worker : workers) {
+				worker.get();
 			}
 		}
-		return 1.0 + 0.5*occurances;
-		//
-		// DEBUG: Use the line below to nullify the effect of this method and just
-		// repeat images all over
-		//
-		// return 1.0;
+		catch (InterruptedException e) {
+			failed.set(true);
+			throw new IOException("Interrupted while creating the photomosaic", e);
+		}
+		catch (ExecutionException e) {
+			failed.set(true);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		}
 	}
 
 	/**
-	 * Determine the distance between two images in 12 dimensional space.
-	 * The 12 dimensions come from the 4 RGB tuples representing the average RGB
-	 * values in 4 square regions of the image.
-	 * @param first the first array of 4 RGB tuples
-	 * @param second the second array of 4 RGB tuples
+	 * Print how far through the photomosaic we are whenever another tenth of
+	 * the rows of patches have been placed. Previews aren't reported.
 	 */
-	private double regionDistance(Color[] first, Color[] second) {
-		// This should never happen but it's included incase something messes
-		// up in the future.
-		if (first.length != second.length) {
-			System.err.println("[FATAL] sanity check failed; comparing two different length sets of tuples!");
-			System.exit(1);
+	private void rowPlaced() {
+		int rows = placedTiles.getRows();
+		int placed = rowsPlaced.incrementAndGet();
+		if (showProgress && tileScale == 1 && placed*10/rows != (placed - 1)*10/rows) {
+			System.out.println("[INFO] placed " + placed*100/rows + "% of the patches");
+		}
+	}
+
+	/**
+	 * Move a uniqueness window to a patch, find the closest matching database
+	 * image for the patch and paste it over the patch.
+	 * @param x the x coordinate of the patch in "patch space"
+	 * @param y the y coordinate of the patch in "patch space"
+	 * @param distances scratch space for the distance of every database image
+	 * @param window the count of each database image placed around the patch
+	 * @throws IOException if the database image could not be read
+	 */
+	private void placeTile(int x, int y, float[] distances, UniquenessWindow window) throws IOException {
+		long start = System.nanoTime();
+		window.moveTo(x);
+		start = metrics.time(RunMetrics.Phase.UNIQUENESS, start);
+
+		// Keep the previous frame's DB image if the patch has barely changed,
+		// otherwise find the closest matching DB image for this region
+		int closestId = PlacedTiles.EMPTY;
+		if (previousFrame != null && tileScale == 1) {
+			closestId = previousFrame.reuse(x, y, patches.getFeatures(), patches.offset(x, y - bandStart), reuseThreshold);
+		}
+		if (closestId == PlacedTiles.EMPTY) {
+			closestId = matcher.findClosest(patches.getFeatures(), patches.offset(x, y - bandStart), distances, window);
+		}
+		else {
+			metrics.count(RunMetrics.Counter.PATCHES_REUSED, 1);
+		}
+		start = metrics.time(RunMetrics.Phase.MATCH, start);
+
+		// We've placed the tile down, so update the representation of the
+		// placed down tiles.
+		placedTiles.set(x, y, closestId);
+		window.place(x, closestId);
+		start = metrics.time(RunMetrics.Phase.UNIQUENESS, start);
+		metrics.count(RunMetrics.Counter.PATCHES, 1);
+
+		// Where the patch starts in the part of the image held in memory
+		int cellSize = patchSize * tileScale;
+		int offset = (y - bandStart)*cellSize*scanline + x*cellSize;
+
+		if (tileScale > 1) {
+			placeScaled(closestId, offset, start);
+			return;
+		}
+		if (tilePack != null) {
+			// Copy the DB image's pixels straight from the tile pack
+			tilePack.copyTile(closestId, pixels, offset, scanline);
+			metrics.time(RunMetrics.Phase.BLIT, start);
+			return;
 		}
 
+		// The RGB values of the patch that we will paste into our original
+		// image, read in from the DB image if they aren't cached
+		int[] closestRGBs = dbCache.get(closestId, this::loadTile, metrics);
+		start = metrics.time(RunMetrics.Phase.TILE_READ, start);
+
 		//
-		// Sum up all of the squared differences for all 12 dimensions to attain
-		// the distance between `first` and `second`.
+		// Apply the DB image to the patch on the original image
 		//
-		double distance = 0;
-		for (int i = 0; i < first.length; i++) {
-			distance +=
-				Math.pow(first[i].getRed()-second[i].getRed(), 2) +
-				Math.pow(first[i].getGreen()-second[i].getGreen(), 2) +
-				Math.pow(first[i].getBlue()-second[i].getBlue(), 2);
+		for (int row = 0; row < patchSize; row++) {
+			System.arraycopy(closestRGBs, row*patchSize, pixels, offset + row*scanline, patchSize);
 		}
+		metrics.time(RunMetrics.Phase.BLIT, start);
+	}
 
-		return distance;
+	/**
+	 * Paste a database image over a preview's patch, repeating each of its
+	 * pixels tileScale times across and down.
+	 * @param id the id of the database image
+	 * @param offset where the patch starts in the pixels array
+	 * @param start the System.nanoTime() the tile started being fetched at
+	 * @throws IOException if the database image could not be read
+	 */
+	private void placeScaled(int id, int offset, long start) throws IOException {
+		int[] rgbs;
+		if (tilePack != null) {
+			rgbs = new int[patchSize*patchSize];
+			tilePack.copyTile(id, rgbs, 0, patchSize);
+		}
+		else {
+			rgbs = dbCache.get(id, this::loadTile, metrics);
+			start = metrics.time(RunMetrics.Phase.TILE_READ, start);
+		}
+
+		int cellSize = patchSize * tileScale;
+		for (int row = 0; row < patchSize; row++) {
+			// Scale up one row, then copy it down the rest of its rows
+			int first = offset + row*tileScale*scanline;
+			for (int x = 0; x < cellSize; x++) {
+				pixels[first + x] = rgbs[row*patchSize + x/tileScale];
+			}
+			for (int copy = 1; copy < tileScale; copy++) {
+				System.arraycopy(pixels, first, pixels, first + copy*scanline, cellSize);
+			}
+		}
+		metrics.time(RunMetrics.Phase.BLIT, start);
+	}
+
+	/**
+	 * Decode a database image that isn't in the tile cache.
+	 * @param id the id of the database image
+	 * @return the packed RGB pixels of the database image
+	 * @throws IOException if the database image could not be read, or isn't patchSize by patchSize
+	 */
+	private int[] loadTile(int id) throws IOException {
+		long start = System.nanoTime();
+		int[] rgbs = database.readTile(id);
+		metrics.time(RunMetrics.Phase.TILE_DECODE, start);
+		metrics.count(RunMetrics.Counter.TILES_DECODED, 1);
+		return rgbs;
 	}
 
 	/**
@@ -265,47 +950,31 @@ public class PhotoMosaic {
 	 * @return an int array with the four regions' average colours
 	 */
 	public static Color[] averageRegions(BufferedImage image) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-
-		//
-		// Get the average colour for the 4 square regions
-		//
-		return new Color[] {
-			calculateAverage(image, 0, 0, height/2, width/2),
-			calculateAverage(image, 0, width/2, height/2, width),
-			calculateAverage(image, height/2, 0, height, width/2),
-			calculateAverage(image, height/2, width/2, height, width)
-		};
+		return averageRegions(image, PatchFeatures.DEFAULT_GRID);
 	}
 
 	/**
-	 * Get the average colour for a specified region of an image.
+	 * Get the average colours for a grid of square regions of a given image.
 	 * @param image the input image
-	 * @param xStart the starting x pixel location
-	 * @param xEnd the ending x pixel location
-	 * @param yStart the starting y pixel location
-	 * @param yEnd the ending y pixel location
-	 * @return the average colour for the region
-	 */
-	private static Color calculateAverage(BufferedImage image, int yStart, int xStart, int yEnd, int xEnd) {
-		int totalPixels = (yEnd-yStart)*(xEnd-xStart); // The total number of pixels in this region
-
-		int totalRed = 0;
-		int totalGreen = 0;
-		int totalBlue = 0;
-		// Sum all of the red, green, and blue values in the region separately
-		for (int y = yStart; y < yEnd; y++) {
-			for (int x = xStart; x < xEnd; x++) {
-				Color c = new Color(image.getRGB(x, y));
-				totalRed += c.getRed();
-				totalGreen += c.getGreen();
-				totalBlue += c.getBlue();
-			}
-		}
+	 * @param grid the number of regions across and down the image
+	 * @return an array with the regions' average colours, in row major order
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public static Color[] averageRegions(BufferedImage image, int grid) throws IllegalArgumentException {
+		float[] features = new float[PatchFeatures.dimensions(grid)];
+		PatchFeatures.extract(
+			PatchFeatures.pixels(image), 0, image.getWidth(),
+			image.getWidth(), image.getHeight(), grid, features, 0
+		);
 
-		// Return the average colour
-		return new Color(totalRed/totalPixels, totalGreen/totalPixels, totalBlue/totalPixels);
+		//
+		// Get the average colour for each square region
+		//
+		Color[] averages = new Color[grid * grid];
+		for (int i = 0; i < averages.length; i++) {
+			averages[i] = new Color((int) features[i*3], (int) features[i*3 + 1], (int) features[i*3 + 2]);
+		}
+		return averages;
 	}
 
 	/**
@@ -313,66 +982,19 @@ public class PhotoMosaic {
 	 * @param image the image to scale
 	 * @param width the image is scaled so its height and width equal this value
 	 * @return the scaled image
+	 * @throws IOException if interrupted while scaling
 	 */
-	private BufferedImage scaleImage(BufferedImage image, int width) {
-		// Scale the image
-		Image scaled = image.getScaledInstance(width, width, Image.SCALE_SMOOTH);
-		// Create a new image to plop the scaled version on to
-		BufferedImage newImage = new BufferedImage(scaled.getWidth(null), scaled.getHeight(null), BufferedImage.TYPE_INT_RGB);
-		// Draw the scaled image onto the new image
-		newImage.getGraphics().drawImage(scaled, 0, 0, null);
-
-		return newImage;
+	private BufferedImage scaleImage(BufferedImage image, int width) throws IOException {
+		return resampler.scale(image, width, width);
 	}
 
 	/**
-	 * Load up references to the database images specified in the given CSV file.
-	 * @param dbFilePath the path to the CSV file containing database entries
-	 * @throws IllegalArgumentException if the provided path doesn't exist, or could not be loaded
+	 * @param fileBaseName the name of an image file
+	 * @return the name with its extension replaced with .png
 	 */
-	private java.util.List<DBImage> loadDbImages(String dbFilePath) throws IllegalArgumentException {
-		// The number of entries on each line of the CSV file
-		final int NUMENTRIES = 5;
-		// Load up the database file
-		File dbFile = new File(dbFilePath);
-		if (!dbFile.exists()) {
-			throw new IllegalArgumentException(dbFilePath + " does not exist.");
-		}
-
-		//
-		// Iterate over each line of the database CSV, populating a List with
-		// the entries.
-		//
-		java.util.List<DBImage> dbImages = new ArrayList<DBImage>();
-		Scanner scan = null;
-		try {
-			scan = new Scanner(dbFile);
-		}
-		catch (FileNotFoundException e) {
-			throw new IllegalArgumentException("Could not find DB file: " + dbFilePath);
-		}
-		while (scan.hasNextLine()) {
-			String[] entry = scan.nextLine().split(",");
-			if (entry.length != NUMENTRIES) {
-				// Skip lines that don't have the right number of entries (columns)
-				System.err.println("[WARN] invalid entry: " + entry + ". Skipping...");
-				continue;
-			}
-
-			Color[] averageRGBs = new Color[] {
-				// Entries 1 through 4 are the average RGB values for the 4 regions
-				new Color(Integer.parseInt(entry[1])),
-				new Color(Integer.parseInt(entry[2])),
-				new Color(Integer.parseInt(entry[3])),
-				new Color(Integer.parseInt(entry[4])),
-			};
-
-			// Add the new DB image.
-			// Entry 0 is the path to the image.
-			dbImages.add(new DBImage(entry[0], averageRGBs));
-		}
-
-		return dbImages;
+	private static String pngName(String fileBaseName) {
+		int dot = fileBaseName.lastIndexOf('.');
+		return (dot > 0 ? fileBaseName.substring(0, dot) : fileBaseName) + ".png";
 	}
 
 	/**
@@ -380,25 +1002,88 @@ public class PhotoMosaic {
 	 * @param args is used for the input image path, input downscale size, patch size for DB images, and unique box search size
 	 */
 	public static void main(String[] args) {
-		if (args.length < 3) {
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.size() < 3) {
 			// The input image path, downscale size, and patch size are required
-			System.err.println("Usage java PhotoMosaic <input image> <size to downscale input image> <patch size for DB images> [unique box size (default: 21)]");
+			System.err.println("Usage java PhotoMosaic <input image> <size to downscale input image> <patch size for DB images> [unique box size (default: 21)] [options]");
 			System.err.println("e.g. java PhotoMosaic ./img/schnauzer.jpg 512 8 11");
+			System.err.println("  or java PhotoMosaic --batch <directory of images or file listing images> <size to downscale input images> <patch size for DB images> [unique box size] [options]");
+			System.err.println("  or java PhotoMosaic --sequence <directory of frames or file listing frames> <size to downscale frames> <patch size for DB images> [unique box size] [options]");
+			System.err.println("Options:");
+			System.err.println("\t--candidates=N  consider the N closest DB images for each patch (default: " + DEFAULT_SEARCH_CANDIDATES + ")");
+			System.err.println("\t--exact         check every DB image for every patch (slow on large DBs)");
+			System.err.println("\t--quantized     find the candidates by scanning compressed DB features instead of the k-d tree");
+			System.err.println("\t--threads=N     match patches on N threads (default: number of cores)");
+			System.err.println("\t--no-pack       read DB images from their JPEG files even if the DB has a tile pack");
+			System.err.println("\t--cache-mb=N    keep at most N MB of decoded DB images in memory (default: " + MosaicOptions.DEFAULT_CACHE_MB + ")");
+			System.err.println("\t--lanczos       scale the input image with a Lanczos filter instead of averaging");
+			System.err.println("\t--stream        create the photomosaic a strip at a time and write it as a PNG, for very large outputs");
+			System.err.println("\t--no-scaled     don't write out the scaled input image (" + SCALED_INPUT_PREFIX + "<name>)");
+			System.err.println("\t--previews=N    first write N coarse previews (" + PREVIEW_PREFIX + "<pass>_<name>), the first with tiles 2^N times the patch size (N: 0-" + MosaicOptions.MAX_PREVIEWS + ")");
+			System.err.println("\t--report=FILE   write the time spent in each phase and other metrics of the run to FILE as JSON");
+			System.err.println("\t--db=FILE       use this binary DB file, DB CSV file or segmented DB directory (default: ./db/dbNxN" + SegmentedDatabase.EXTENSION + ", ./db/dbNxN" + TileDatabaseFile.EXTENSION + " or ./db/dbNxN.csv)");
+			System.err.println("\t--out=DIR       write the photomosaics to DIR (default: the current directory)");
+			System.err.println("\t--batch         create a photomosaic of every image in a directory, or listed one per line in a file");
+			System.err.println("\t--jobs=N        with --batch, create N photomosaics at once (default: number of cores; --threads defaults to 1)");
+			System.err.println("\t--sequence      create photomosaics of video frames in order (by name in a directory), keeping the previous frame's tiles where the frame barely changed");
+			System.err.println("\t--reuse=N       with --sequence, keep a patch's tile if its colours changed by at most N (RMS, default: " + (int) MosaicOptions.DEFAULT_REUSE_THRESHOLD + ")");
 			System.exit(1);
 		}
 
-		int imageSize = Integer.parseInt(args[1]);
-		int patchSize = Integer.parseInt(args[2]);
+		int imageSize = Integer.parseInt(positional.get(1));
+		int patchSize = Integer.parseInt(positional.get(2));
 		try {
-			if (args.length >= 4) {
-				// If the user provided a unique box search value then use it
-				int uniqueBox = Integer.parseInt(args[3]);
-				PhotoMosaic pm = new PhotoMosaic(args[0], imageSize, "./db/db"+patchSize+"x"+patchSize+".csv", patchSize, uniqueBox);
+			// If the user provided a unique box search value then use it,
+			// otherwise use the default
+			int uniqueBox = DEFAULT_UNIQUE_BOX;
+			if (positional.size() >= 4) {
+				uniqueBox = Integer.parseInt(positional.get(3));
 			}
-			else {
-				// The user didn't provide a unique box size, so we'll just let PhotoMosaic use its default
-				PhotoMosaic pm = new PhotoMosaic(args[0], imageSize, "./db/db"+patchSize+"x"+patchSize+".csv", patchSize);
+			MosaicOptions options = new MosaicOptions()
+				.setUniqueBox(uniqueBox)
+				.setSearchCandidates(cmd.has("exact") ? 0 : cmd.getInt("candidates", DEFAULT_SEARCH_CANDIDATES))
+				.setQuantized(cmd.has("quantized"))
+				.setUseTilePack(!cmd.has("no-pack"))
+				.setCacheBytes(cmd.getInt("cache-mb", MosaicOptions.DEFAULT_CACHE_MB) * 1024L * 1024L)
+				.setStreaming(cmd.has("stream"))
+				.setWriteScaledInput(!cmd.has("no-scaled"))
+				.setPreviews(cmd.getInt("previews", 0))
+				.setScaleFilter(cmd.has("lanczos") ? Resampler.Filter.LANCZOS : Resampler.Filter.AREA)
+				.setOutputDirectory(cmd.get("out", "."));
+			String dbFilePath = cmd.get("db", MosaicDatabase.defaultPath(patchSize));
+			new File(options.getOutputDirectory()).mkdirs();
+
+			if (cmd.has("batch") || cmd.has("sequence")) {
+				//
+				// Several images are created at once, so by default each one
+				// is created on a single thread. The frames of a sequence each
+				// depend on the frame before, so they are created one at a
+				// time on every core.
+				//
+				boolean sequence = cmd.has("sequence");
+				options.setThreads(cmd.getInt("threads", sequence ? Runtime.getRuntime().availableProcessors() : 1))
+					.setReuseThreshold(cmd.getFloat("reuse", MosaicOptions.DEFAULT_REUSE_THRESHOLD));
+				java.util.List<String> inputs = MosaicBatch.listInputs(positional.get(0));
+				MosaicBatch batch = new MosaicBatch(inputs, imageSize, dbFilePath, patchSize, options,
+					sequence ? 1 : cmd.getInt("jobs", Runtime.getRuntime().availableProcessors()));
+				int failures = sequence ? batch.runSequence() : batch.run();
+				System.out.println("[INFO] created " + (inputs.size() - failures) + " of " + inputs.size() + " photomosaics: " + batch.getMetrics().getSummary());
+				if (cmd.has("report")) {
+					batch.writeReport(new File(cmd.get("report", null)));
+					System.out.println("[INFO] wrote batch report: " + cmd.get("report", null));
+				}
+				if (failures > 0) {
+					System.exit(1);
+				}
+				return;
+			}
+
+			options.setReportFile(cmd.get("report", null)).setShowProgress(true);
+			if (cmd.has("threads")) {
+				options.setThreads(cmd.getInt("threads", 1));
 			}
+			PhotoMosaic pm = new PhotoMosaic(positional.get(0), imageSize, dbFilePath, patchSize, options);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,111 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.util.*;
+
+/**
+ * The ids of the database images placed on the image so far, as a grid in
+ * "patch space". This is used in determining whether a given database image
+ * has already been used in a region.
+ *
+ * Only a window of rows is kept in memory at once; rows are recycled as new
+ * rows are started. When the window is at least the unique box size plus the
+ * number of rows worked on at once, every row a patch's unique box can reach
+ * is still held.
+ */
+public class PlacedTiles {
+	/**
+	 * The number of patches across the image.
+	 */
+	private int columns;
+	/**
+	 * The number of patches down the image.
+	 */
+	private int rows;
+	/**
+	 * The number of rows held at once.
+	 */
+	private int windowRows;
+	/**
+	 * Marks a location that no database image has been placed on.
+	 */
+	public static final int EMPTY = -1;
+
+	/**
+	 * The ids of the placed database images, windowRows rows of columns entries.
+	 */
+	private int[] tiles;
+	/**
+	 * The row of the image each row of the window currently holds, or -1.
+	 */
+	private int[] slotRows;
+
+	/**
+	 * Create an empty grid.
+	 * @param columns the number of patches across the image
+	 * @param rows the number of patches down the image
+	 * @param windowRows the number of rows to hold at once
+	 */
+	public PlacedTiles(int columns, int rows, int windowRows) {
+		this.columns = columns;
+		this.rows = rows;
+		this.windowRows = Math.max(1, Math.min(windowRows, rows));
+		tiles = new int[this.windowRows * columns];
+		Arrays.fill(tiles, EMPTY);
+		slotRows = new int[this.windowRows];
+		Arrays.fill(slotRows, -1);
+	}
+
+	/**
+	 * @return the number of patches across the image
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of patches down the image
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Make room for a range of rows, replacing the oldest rows in the window.
+	 * This must not be called while patches are being placed.
+	 * @param rowStart the first row
+	 * @param rowEnd one past the last row
+	 */
+	public void startRows(int rowStart, int rowEnd) {
+		for (int y = rowStart; y < rowEnd; y++) {
+			int slot = y % windowRows;
+			slotRows[slot] = y;
+			Arrays.fill(tiles, slot*columns, (slot+1)*columns, EMPTY);
+		}
+	}
+
+	/**
+	 * @param x the x coordinate in "patch space"
+	 * @param y the y coordinate in "patch space"
+	 * @return the id of the database image placed at the location, or EMPTY if there isn't one or the row is no longer held
+	 */
+	public int get(int x, int y) {
+		if (x < 0 || y < 0 || x >= columns || y >= rows) {
+			return EMPTY;
+		}
+		int slot = y % windowRows;
+		return slotRows[slot] == y ? tiles[slot*columns + x] : EMPTY;
+	}
+
+	/**
+	 * @param x the x coordinate in "patch space"
+	 * @param y the y coordinate in "patch space"
+	 * @param tile the id of the database image placed at the location
+	 */
+	public void set(int x, int y, int tile) {
+		tiles[(y % windowRows)*columns + x] = tile;
+	}
+}
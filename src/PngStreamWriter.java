@@ -0,0 +1,243 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * Writes a PNG file a few rows at a time, so that images far too large to
+ * hold in memory can still be written out.
+ * Pixels are written as 8 bit RGB, with every row Paeth filtered.
+ */
+public class PngStreamWriter implements Closeable {
+	/**
+	 * The 8 bytes every PNG file starts with.
+	 */
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	/**
+	 * The most compressed bytes put in each IDAT chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * The PNG file being written.
+	 */
+	private DataOutputStream out;
+	/**
+	 * Whether the stream the PNG is written to is closed along with this
+	 * writer, rather than just flushed.
+	 */
+	private boolean closeStream;
+	/**
+	 * Compresses the filtered rows into IDAT chunks.
+	 */
+	private DeflaterOutputStream deflater;
+	/**
+	 * The compressor behind the deflater. DeflaterOutputStream doesn't end a
+	 * compressor it was given, so it is ended on close to free its native
+	 * memory rather than waiting for the garbage collector.
+	 */
+	private Deflater compressor;
+	/**
+	 * The width of the image in pixels.
+	 */
+	private int width;
+	/**
+	 * The number of rows still to be written.
+	 */
+	private int rowsLeft;
+	/**
+	 * The unfiltered bytes of the previous row, used by the Paeth filter.
+	 */
+	private byte[] previousRow;
+	/**
+	 * The unfiltered bytes of the row being written.
+	 */
+	private byte[] currentRow;
+	/**
+	 * The filter type byte followed by the filtered bytes of the row being written.
+	 */
+	private byte[] filteredRow;
+
+	/**
+	 * Start writing a PNG file.
+	 * @param file the PNG file to write
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @throws IOException if the file could not be written
+	 */
+	public PngStreamWriter(File file, int width, int height) throws IOException {
+		this(new FileOutputStream(file), width, height, true);
+	}
+
+	/**
+	 * Start writing a PNG to a stream. Closing the writer finishes the PNG
+	 * and flushes the stream, but leaves it open.
+	 * @param stream the stream to write the PNG to
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @throws IOException if the stream could not be written to
+	 */
+	public PngStreamWriter(OutputStream stream, int width, int height) throws IOException {
+		this(stream, width, height, false);
+	}
+
+	/**
+	 * Start writing a PNG to a stream.
+	 * @param stream the stream to write the PNG to
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 * @param closeStream whether to close the stream along with this writer
+	 * @throws IOException if the stream could not be written to
+	 */
+	private PngStreamWriter(OutputStream stream, int width, int height, boolean closeStream) throws IOException {
+		this.width = width;
+		this.closeStream = closeStream;
+		rowsLeft = height;
+		previousRow = new byte[width * 3];
+		currentRow = new byte[width * 3];
+		filteredRow = new byte[width*3 + 1];
+
+		out = new DataOutputStream(new BufferedOutputStream(stream, CHUNK_SIZE));
+		out.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerData = new DataOutputStream(header);
+		headerData.writeInt(width);
+		headerData.writeInt(height);
+		headerData.writeByte(8); // Bit depth
+		headerData.writeByte(2); // Colour type: RGB
+		headerData.writeByte(0); // Compression method: deflate
+		headerData.writeByte(0); // Filter method: adaptive
+		headerData.writeByte(0); // Interlace method: none
+		writeChunk("IHDR", header.toByteArray(), header.size());
+
+		compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater = new DeflaterOutputStream(new IdatOutputStream(), compressor, CHUNK_SIZE);
+	}
+
+	/**
+	 * Write the next rows of the image.
+	 * @param pixels the packed RGB pixels of the rows
+	 * @param offset the position of the first pixel of the first row
+	 * @param scanline the distance between rows in the pixels array
+	 * @param count the number of rows to write
+	 * @throws IOException if the rows could not be written
+	 */
+	public void writeRows(int[] pixels, int offset, int scanline, int count) throws IOException {
+		if (count > rowsLeft) {
+			throw new IOException("more rows written than the image height");
+		}
+		for (int row = 0; row < count; row++) {
+			int start = offset + row*scanline;
+			for (int x = 0; x < width; x++) {
+				int rgb = pixels[start + x];
+				currentRow[x*3] = (byte) (rgb >> 16);
+				currentRow[x*3 + 1] = (byte) (rgb >> 8);
+				currentRow[x*3 + 2] = (byte) rgb;
+			}
+
+			//
+			// Paeth filter the row: each byte is stored as the difference
+			// from whichever of its left, up and up-left neighbours best
+			// predicts it.
+			//
+			filteredRow[0] = 4;
+			for (int i = 0; i < currentRow.length; i++) {
+				int left = i >= 3 ? currentRow[i-3] & 0xff : 0;
+				int up = previousRow[i] & 0xff;
+				int upLeft = i >= 3 ? previousRow[i-3] & 0xff : 0;
+				int estimate = left + up - upLeft;
+				int leftDistance = Math.abs(estimate - left);
+				int upDistance = Math.abs(estimate - up);
+				int upLeftDistance = Math.abs(estimate - upLeft);
+				int predictor;
+				if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+					predictor = left;
+				}
+				else if (upDistance <= upLeftDistance) {
+					predictor = up;
+				}
+				else {
+					predictor = upLeft;
+				}
+				filteredRow[i + 1] = (byte) (currentRow[i] - predictor);
+			}
+			deflater.write(filteredRow);
+
+			byte[] tmp = previousRow;
+			previousRow = currentRow;
+			currentRow = tmp;
+		}
+		rowsLeft -= count;
+	}
+
+	/**
+	 * Finish writing the PNG file.
+	 * @throws IOException if the file could not be written, or not every row was written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			deflater.finish();
+			deflater.flush();
+			writeChunk("IEND", new byte[0], 0);
+			if (rowsLeft != 0) {
+				throw new IOException(rowsLeft + " rows of the image were never written");
+			}
+		}
+		finally {
+			compressor.end();
+			if (closeStream) {
+				out.close();
+			}
+			else {
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Write a PNG chunk.
+	 * @param type the 4 letter chunk type
+	 * @param data the chunk's data
+	 * @param length the number of bytes of data
+	 * @throws IOException if the chunk could not be written
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Splits the compressed image data into IDAT chunks.
+	 */
+	private class IdatOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int chunk = Math.min(len, CHUNK_SIZE);
+				byte[] data = off == 0 && chunk == b.length ? b : java.util.Arrays.copyOfRange(b, off, off + chunk);
+				writeChunk("IDAT", data, chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+	}
+}
@@ -8,19 +8,540 @@ import java.awt.image.*;
 import javax.imageio.*;
 import java.io.*;
 import java.awt.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Process input images, resizing them to be square while also calculating the
- * average RGB values of 4 square regions.
+ * average RGB values of a grid of square regions (2x2 by default).
+ *
+ * Images are processed as a pipeline: one thread lists the input images onto
+ * a bounded queue, several worker threads decode, resize and write them, and
+ * a single writer appends their entries to the DB CSV file in batches. The
+ * CSV file is only ever appended to, so an interrupted run can simply be
+ * started again and will pick up where it left off.
+ *
+ * Once every image has been processed, the whole CSV file is also written out
+ * as a binary DB file, which PhotoMosaic can open without parsing anything.
+ * Optionally, the resized pixels of every DB image are also written to a tile
+ * pack in the same order, so PhotoMosaic doesn't have to decode the JPEGs.
+ *
+ * Each entry records a hash of its input image's file, so that re-running
+ * over a library only decodes images that are new or have changed, and
+ * copies of an image under another name are only added once. Optionally,
+ * images that look almost the same as one already in the DB are skipped too.
+ *
+ * With a segmented DB, the new entries are instead written to the DB's
+ * pending files and added to it as a new segment, so the rest of the DB
+ * doesn't have to be rewritten.
+ *
+ * Images can be resized to several widths in one run, each with its own DB
+ * (a level), so each input image is only read and decoded once. PhotoMosaic
+ * picks the level with the patch size it is asked for.
  */
 public class ProcessDB {
 	/**
-	 * Prepare to process the given input images into the given output directory.
+	 * The number of CSV entries written between flushes of the DB file.
+	 */
+	private static final int WRITE_BATCH = 256;
+	/**
+	 * How often, in milliseconds, progress is reported while processing.
+	 */
+	private static final long REPORT_INTERVAL = 5000;
+	/**
+	 * Placed on the input queue once per worker to tell it there are no more
+	 * images to process.
+	 */
+	private static final File END_OF_INPUT = new File("");
+	/**
+	 * Placed on the entry queue by each worker once it has finished.
+	 */
+	private static final Entry END_OF_ENTRIES = new Entry(null, null);
+	/**
+	 * Returned instead of an entry for an image that was skipped as a near
+	 * duplicate.
+	 */
+	private static final Entry NEAR_DUPLICATE = new Entry(null, null);
+	/**
+	 * The most two near duplicates' region averages can differ by, as a root
+	 * mean square over every value. Perceptual hashes only compare
+	 * brightness, and a re-encoded copy of an image barely changes its
+	 * colours, so this keeps images that differ mostly in colour.
+	 */
+	private static final float NEAR_DUPLICATE_COLOUR_DIFFERENCE = 16;
+
+	/**
+	 * The DBs being added to, one for each width images are resized to,
+	 * from the narrowest to the widest.
+	 */
+	private Level[] levels;
+	/**
+	 * Resizes the input images. Each worker thread resizes its own image, so
+	 * this doesn't use a thread pool of its own.
+	 */
+	private Resampler resampler;
+	/**
+	 * The number of regions across and down each image that average RGB
+	 * values are calculated for.
+	 */
+	private int grid;
+	/**
+	 * The timings and counts of this run.
+	 */
+	private RunMetrics metrics = new RunMetrics("ProcessDB");
+	/**
+	 * The most bits the perceptual hashes of two images can differ in for
+	 * the second to be skipped as a near duplicate, or -1 to only skip exact
+	 * duplicates.
+	 */
+	private int nearDuplicates;
+	/**
+	 * The colour space the binary DB files' features are stored in.
+	 */
+	private ColourSpace colourSpace;
+	/**
+	 * Whether to store product quantized codes of the features in the binary
+	 * DB files.
+	 */
+	private boolean quantize;
+
+	/**
+	 * A processed input image waiting to be written out.
+	 */
+	private static class Entry {
+		/**
+		 * The DB image's line in each level's CSV file, or null for the
+		 * levels it isn't being added to.
+		 */
+		String[] lines;
+		/**
+		 * The DB image's resized pixels for each level, or null for the
+		 * levels it isn't being added to or that have no tile pack.
+		 */
+		int[][] pixels;
+
+		Entry(String[] lines, int[][] pixels) {
+			this.lines = lines;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * The DB for one of the widths images are resized to, and what is known
+	 * about the entries already in it.
+	 */
+	private class Level {
+		/**
+		 * The square width to resize images to.
+		 */
+		int width;
+		/**
+		 * The DB CSV file new entries are appended to.
+		 */
+		File dbCsv;
+		/**
+		 * The tile pack that goes with the DB CSV file.
+		 */
+		File packFile;
+		/**
+		 * The segmented DB new entries are added to, or null if the binary DB
+		 * file is rewritten instead.
+		 */
+		SegmentedDatabase segments;
+		/**
+		 * The tile pack being appended to, or null if no tile pack is being written.
+		 */
+		FileChannel tilePack;
+		/**
+		 * The writer for the DB CSV file.
+		 */
+		Writer csvWriter;
+		/**
+		 * The content hash recorded for each DB image already in the DB, by
+		 * path, or "" if none was recorded.
+		 */
+		Map<String, String> existingHashes = new HashMap<String, String>();
+		/**
+		 * The DB image made from each input image, by content hash, for both
+		 * the DB images already in the DB and those claimed so far by this run.
+		 */
+		ConcurrentHashMap<String, String> contentOwners = new ConcurrentHashMap<String, String>();
+		/**
+		 * The perceptual hashes of the DB images, for finding near duplicates.
+		 * Guarded by this.
+		 */
+		long[] perceptualHashes = new long[16];
+		/**
+		 * The DB image each perceptual hash belongs to. Guarded by this.
+		 */
+		String[] perceptualOwners = new String[16];
+		/**
+		 * The region averages of the DB image each perceptual hash belongs
+		 * to. Guarded by this.
+		 */
+		float[][] perceptualFeatures = new float[16][];
+		/**
+		 * The number of perceptual hashes. Guarded by this.
+		 */
+		int perceptualCount;
+		/**
+		 * The DB images whose input image changed and have been made again.
+		 */
+		Set<String> changed = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Open the DB for a width, reading the entries already in it and
+		 * getting its files ready to be appended to.
+		 * @param out the output directory
+		 * @param width the square width to resize images to
+		 * @param pack whether to also write the DB images' pixels to a tile pack
+		 * @param segmented whether to add the new DB images to a segmented DB as a new segment
+		 * @throws IllegalArgumentException if the DB files could not be read or opened, or use a different grid size
+		 */
+		Level(String out, int width, boolean pack, boolean segmented) throws IllegalArgumentException {
+			this.width = width;
+
+			//
+			// We will write out all the database entries and their average RGB
+			// regions to a file. This will make using the DB images faster/easier
+			// later on in PhotoMosaic.java.
+			//
+			// Entries already in the file are kept, and their images skipped
+			// unless they've changed, so that an interrupted run can be resumed.
+			//
+			// A segmented DB's new entries go in its pending CSV file until they
+			// become a segment, and its segments' entries are skipped too.
+			//
+			dbCsv = new File(out + "/db" + width + "x" + width + ".csv");
+			if (segmented) {
+				segments = new SegmentedDatabase(new File(SegmentedDatabase.segmentsPath(dbCsv.getPath())));
+				int existingGrid = segments.getGrid();
+				if (existingGrid != 0 && existingGrid != grid) {
+					throw new IllegalArgumentException(
+						"Error: " + segments.getDirectory().getPath() + " was created with a " + existingGrid + "x" + existingGrid +
+						" grid, not " + grid + "x" + grid + ". Use the same --grid."
+					);
+				}
+				ColourSpace existingColourSpace = segments.getColourSpace();
+				if (existingColourSpace != null && existingColourSpace != colourSpace) {
+					throw new IllegalArgumentException(
+						"Error: " + segments.getDirectory().getPath() + " was created with " + existingColourSpace +
+						" features, not " + colourSpace + ". Use the same colour space."
+					);
+				}
+				segments.getDirectory().mkdirs();
+				dbCsv = segments.getPendingCsv();
+			}
+			TileDatabase existing = loadExistingEntries(dbCsv, grid);
+			if (segments != null) {
+				rememberEntries(segments.load());
+			}
+			rememberEntries(existing);
+			packFile = new File(TilePack.packPath(dbCsv.getPath()));
+			if (pack) {
+				openTilePack(existing);
+			}
+			try {
+				csvWriter = new BufferedWriter(new FileWriter(dbCsv, true));
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("Error: unable to open/write to: " + dbCsv.getPath());
+			}
+		}
+
+		/**
+		 * Remember the paths and hashes of DB images already in the DB, so
+		 * their input images are skipped unless they've changed.
+		 * @param db the DB images
+		 */
+		void rememberEntries(TileDatabase db) {
+			float[] features = nearDuplicates >= 0 ? db.getInterleavedFeatures() : null;
+			int dimensions = db.getDimensions();
+			if (features != null) {
+				// Near duplicates are compared by their sRGB region averages
+				db.getColourSpace().toRgb(features, 0, features.length);
+			}
+			for (int id = 0; id < db.size(); id++) {
+				String path = db.getPath(id);
+				String contentHash = db.getContentHash(id);
+				existingHashes.put(path, contentHash != null ? contentHash : "");
+				if (contentHash != null) {
+					contentOwners.put(contentHash, path);
+					if (nearDuplicates >= 0) {
+						addPerceptualHash(db.getPerceptualHash(id), Arrays.copyOfRange(features, id * dimensions, (id + 1) * dimensions), path);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Open the tile pack for appending, bringing it in line with the
+		 * entries already in the DB file. Records past the last entry (from a
+		 * run that was interrupted before writing their entries) are removed,
+		 * and any missing records (e.g. if the DB was created without a tile
+		 * pack) are filled in by decoding the DB images.
+		 * @param existing the entries already in the DB file
+		 * @throws IllegalArgumentException if the tile pack could not be opened or filled in
+		 */
+		void openTilePack(TileDatabase existing) throws IllegalArgumentException {
+			try {
+				tilePack = TilePack.openForAppend(packFile, width, existing.size());
+				int records = TilePack.records(tilePack, width);
+				if (records < existing.size()) {
+					System.out.println("[INFO] adding " + (existing.size() - records) + " existing DB images to: " + packFile.getPath());
+				}
+				for (int id = records; id < existing.size(); id++) {
+					BufferedImage image = ImageIO.read(new File(existing.getPath(id)));
+					if (image == null || image.getWidth() != width || image.getHeight() != width) {
+						throw new IOException(existing.getPath(id) + " is not a " + width + "x" + width + " image");
+					}
+					TilePack.append(tilePack, image.getRGB(0, 0, width, width, null, 0, width));
+				}
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("Error: unable to build tile pack " + packFile.getPath() + ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Check an image's perceptual hash and region averages against every
+		 * DB image's, and claim them if none are close. This is a linear
+		 * scan, but comparing two hashes is a single popcount, so it takes
+		 * far less time than decoding the image did.
+		 * @param hash the perceptual hash
+		 * @param features the region averages of the DB image
+		 * @param outName the path of the DB image
+		 * @return the path of a DB image that looks almost the same, or null if there isn't one
+		 */
+		synchronized String claimPerceptualHash(long hash, float[] features, String outName) {
+			float maxDistance = NEAR_DUPLICATE_COLOUR_DIFFERENCE * NEAR_DUPLICATE_COLOUR_DIFFERENCE * features.length;
+			for (int i = 0; i < perceptualCount; i++) {
+				// A changed image is allowed to look like its old self
+				if (ImageHash.distance(hash, perceptualHashes[i]) <= nearDuplicates && !perceptualOwners[i].equals(outName)) {
+					float distance = 0;
+					for (int d = 0; d < features.length; d++) {
+						float diff = features[d] - perceptualFeatures[i][d];
+						distance += diff*diff;
+					}
+					if (distance <= maxDistance) {
+						return perceptualOwners[i];
+					}
+				}
+			}
+			addPerceptualHash(hash, features, outName);
+			return null;
+		}
+
+		/**
+		 * Remember a DB image's perceptual hash.
+		 * @param hash the perceptual hash
+		 * @param features the region averages of the DB image
+		 * @param outName the path of the DB image
+		 */
+		synchronized void addPerceptualHash(long hash, float[] features, String outName) {
+			if (perceptualCount == perceptualHashes.length) {
+				perceptualHashes = Arrays.copyOf(perceptualHashes, perceptualCount * 2);
+				perceptualOwners = Arrays.copyOf(perceptualOwners, perceptualCount * 2);
+				perceptualFeatures = Arrays.copyOf(perceptualFeatures, perceptualCount * 2);
+			}
+			perceptualHashes[perceptualCount] = hash;
+			perceptualOwners[perceptualCount] = outName;
+			perceptualFeatures[perceptualCount] = features;
+			perceptualCount++;
+		}
+
+		/**
+		 * Determine the path of the DB image for an input image.
+		 * @param out the output directory
+		 * @param f the input image
+		 * @return the output file path
+		 */
+		String outputName(String out, File f) {
+			// Get the basename of the input image
+			String inputBasename = f.getName();
+			if (inputBasename.lastIndexOf(".") > 0) {
+				inputBasename = inputBasename.substring(0, inputBasename.lastIndexOf("."));
+			}
+			return out + "/" + width + "x" + width + "_" + inputBasename + ".jpg";
+		}
+
+		/**
+		 * Close the DB CSV file and tile pack.
+		 */
+		void close() {
+			try {
+				csvWriter.close();
+				if (tilePack != null) {
+					tilePack.close();
+				}
+			}
+			catch (IOException e) {
+				System.err.println("[WARN] error closing DB file: " + dbCsv.getPath());
+			}
+		}
+
+		/**
+		 * Finish the DB once every image has been processed: either add the
+		 * new entries to the segmented DB as one segment, or rebuild the
+		 * binary DB file from the full CSV file, including the entries from
+		 * earlier runs.
+		 * @throws IllegalArgumentException if the DB could not be written
+		 */
+		void finish() throws IllegalArgumentException {
+			if (segments != null) {
+				try {
+					long start = System.nanoTime();
+					// The changed images' old entries are in earlier segments
+					segments.delete(changed);
+					int added = segments.commitPending(width, colourSpace);
+					metrics.time(RunMetrics.Phase.DB_WRITE, start);
+					System.out.println("[INFO] added " + added + " DB images to: " + segments.getDirectory().getPath());
+				}
+				catch (IOException e) {
+					throw new IllegalArgumentException("Error: unable to add a segment to: " + segments.getDirectory().getPath() + ": " + e.getMessage());
+				}
+				return;
+			}
+
+			String dbBinaryName = TileDatabaseFile.binaryPath(dbCsv.getPath());
+			try {
+				long start = System.nanoTime();
+				if (!changed.isEmpty()) {
+					removeReplacedEntries();
+				}
+				TileDatabase db = TileDatabase.loadCsv(dbCsv.getPath());
+				db.convertTo(colourSpace);
+				if (quantize) {
+					db.quantize();
+				}
+				TileDatabaseFile.write(db, width, new File(dbBinaryName));
+				metrics.time(RunMetrics.Phase.DB_WRITE, start);
+				System.out.println("[INFO] successfully created: " + dbBinaryName);
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("Error: unable to open/write to: " + dbBinaryName);
+			}
+		}
+
+		/**
+		 * Remove the entries of changed input images that were replaced by a
+		 * later entry for the same DB image, from both the DB CSV file and
+		 * the tile pack.
+		 * @throws IOException if the files could not be rewritten
+		 */
+		void removeReplacedEntries() throws IOException {
+			java.util.List<String> lines = Files.readAllLines(dbCsv.toPath());
+			Map<String, Integer> latest = new HashMap<String, Integer>();
+			for (int i = 0; i < lines.size(); i++) {
+				latest.put(entryPath(lines.get(i)), i);
+			}
+
+			// The tile pack goes first, so it never has fewer records than the CSV file has entries
+			if (tilePack != null) {
+				TilePack oldPack = new TilePack(packFile, width);
+				File tmp = new File(packFile.getPath() + ".tmp");
+				try (FileChannel channel = TilePack.openForAppend(tmp, width, 0)) {
+					int[] pixels = new int[width * width];
+					for (int i = 0; i < lines.size(); i++) {
+						if (latest.get(entryPath(lines.get(i))) == i) {
+							oldPack.copyTile(i, pixels, 0, width);
+							TilePack.append(channel, pixels);
+						}
+					}
+				}
+				Files.move(tmp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			else if (packFile.exists()) {
+				System.err.println("[WARN] deleting " + packFile.getPath() + ", which no longer lines up with the DB. Run with --pack to rebuild it.");
+				packFile.delete();
+			}
+
+			File tmp = new File(dbCsv.getPath() + ".tmp");
+			try (Writer out = new BufferedWriter(new FileWriter(tmp))) {
+				for (int i = 0; i < lines.size(); i++) {
+					if (latest.get(entryPath(lines.get(i))) == i) {
+						out.write(lines.get(i));
+						out.write('\n');
+					}
+				}
+			}
+			Files.move(tmp.toPath(), dbCsv.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Prepare to process the given input images into the given output
+	 * directory, with the default settings.
 	 * @param in the input directory of images
 	 * @param out the output directory where the DB image blobs will be placed
+	 * @param width the square width to resize images to
 	 * @throws IllegalArgumentException if the given input directory is not a directory
 	 */
 	public ProcessDB(String in, String out, int width) throws IllegalArgumentException {
+		this(in, out, new int[] { width }, new ProcessDBOptions());
+	}
+
+	/**
+	 * Prepare to process the given input images into the given output
+	 * directory, resizing each one to several widths with a DB for each.
+	 * @param in the input directory of images
+	 * @param out the output directory where the DB image blobs will be placed
+	 * @param widths the square widths to resize images to
+	 * @param options the settings to process the images with
+	 * @throws IllegalArgumentException if the given input directory is not a directory, there are no widths or the same width is given twice, or a DB file uses a different grid size or colour space
+	 */
+	public ProcessDB(String in, String out, int[] widths, ProcessDBOptions options) throws IllegalArgumentException {
+		int threads = options.getThreads();
+		boolean pack = options.getPack();
+		boolean segmented = options.getSegmented();
+		Resampler.Filter filter = options.getScaleFilter();
+		this.nearDuplicates = options.getNearDuplicates();
+		this.colourSpace = options.getColourSpace();
+		this.quantize = options.getQuantize();
+		this.resampler = new Resampler(filter);
+		this.grid = options.getGrid();
+
+		// Sorted, so a width given twice ends up next to itself
+		widths = widths.clone();
+		Arrays.sort(widths);
+		if (widths.length == 0 || widths[0] < 1) {
+			throw new IllegalArgumentException("The widths to resize images to must be at least 1.");
+		}
+		for (int l = 1; l < widths.length; l++) {
+			if (widths[l] == widths[l - 1]) {
+				throw new IllegalArgumentException("The width " + widths[l] + " was given more than once.");
+			}
+		}
+		metrics.setting("input", in);
+		metrics.setting("output", out);
+		if (widths.length == 1) {
+			metrics.setting("width", widths[0]);
+		}
+		else {
+			metrics.setting("widths", Arrays.toString(widths));
+		}
+		metrics.setting("threads", threads);
+		metrics.setting("pack", pack);
+		metrics.setting("scaleFilter", filter.name());
+		metrics.setting("grid", grid);
+		metrics.setting("segmented", segmented);
+		metrics.setting("nearDuplicates", nearDuplicates);
+		metrics.setting("colourSpace", colourSpace.name());
+		metrics.setting("quantize", quantize);
+		// Report every count, even if nothing was skipped
+		metrics.count(RunMetrics.Counter.IMAGES_PROCESSED, 0);
+		metrics.count(RunMetrics.Counter.IMAGES_SKIPPED, 0);
+		metrics.count(RunMetrics.Counter.IMAGES_RESUMED, 0);
+		metrics.count(RunMetrics.Counter.IMAGES_CHANGED, 0);
+		metrics.count(RunMetrics.Counter.DUPLICATES, 0);
+		metrics.count(RunMetrics.Counter.NEAR_DUPLICATES, 0);
+		if (segmented && quantize) {
+			System.err.println("[WARN] segments aren't quantized; PhotoMosaic --quantized quantizes a segmented DB when it loads it.");
+		}
+
 		//
 		// Create a File for the input directory, ensuring that it actually is
 		// a directory.
@@ -36,134 +557,638 @@ public class ProcessDB {
 		new File(out).mkdir();
 
 		//
-		// We will write out all the database entries and their average RGB
-		// regions to a file. This will make using the DB images faster/easier
-		// later on in PhotoMosaic.java.
+		// Open the DB for each width
 		//
-		PrintWriter csvWriter = null;
-		String dbCsvName = out + "/db" + width + "x" + width + ".csv";
-		try {
-			if (inputDir.exists() && !inputDir.isDirectory()) {
-				// Append to the DB file if it already exists
-				csvWriter = new PrintWriter(new FileOutputStream(new File(dbCsvName), true));
-			}
-			else {
-				// The DB file doesn't exist, so we'll create it
-				csvWriter = new PrintWriter(new File(dbCsvName));
-			}
-
-		}
-		catch (FileNotFoundException e) {
-			throw new IllegalArgumentException("Error: unable to open/write to: " + dbCsvName);
+		levels = new Level[widths.length];
+		for (int l = 0; l < levels.length; l++) {
+			levels[l] = new Level(out, widths[l], pack, segmented);
 		}
 
 		//
 		// Allow the user to have either provided a directory of images,
 		// or a single image to add.
 		//
-		File[] inputImages;
-		if (!inputDir.isDirectory()) {
-			inputImages = new File[] { inputDir };
-		}
-		else {
-			inputImages = inputDir.listFiles();
+		final File[] inputImages = inputDir.isDirectory() ? inputDir.listFiles() : new File[] { inputDir };
+
+		//
+		// Set up the pipeline. Both queues are bounded so that neither the
+		// lister nor the workers can run too far ahead of the writer. The
+		// stages run on daemon threads, and if any stage fails every other
+		// one is interrupted, so a failure can never leave a stage blocked
+		// on a queue that nothing will empty.
+		//
+		BlockingQueue<File> inputs = new ArrayBlockingQueue<File>(threads * 4);
+		BlockingQueue<Entry> entries = new ArrayBlockingQueue<Entry>(WRITE_BATCH * 2);
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		ExecutorService stages = Executors.newFixedThreadPool(threads + 1, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		stages.submit(() -> {
+			try {
+				listInputs(inputImages, out, inputs);
+			}
+			catch (InterruptedException e) {
+				// Cancelled; nothing is waiting for the rest of the inputs
+				return;
+			}
+			catch (RuntimeException | Error e) {
+				failure.compareAndSet(null, e);
+			}
+			// The workers stop at these, or when the pipeline is cancelled
+			try {
+				for (int t = 0; t < threads; t++) {
+					inputs.put(END_OF_INPUT);
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		});
+
+		for (int t = 0; t < threads; t++) {
+			stages.submit(() -> {
+				try {
+					File f;
+					while ((f = inputs.take()) != END_OF_INPUT && failure.get() == null) {
+						Entry entry = processImage(f, out);
+						if (entry != null) {
+							entries.put(entry);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				catch (RuntimeException | Error e) {
+					failure.compareAndSet(null, e);
+				}
+				// The writer stops once every worker's marker has arrived, or
+				// as soon as it sees a failure
+				try {
+					entries.put(END_OF_ENTRIES);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			});
 		}
 
 		//
-		// Process each image, resizing it and storing its average RGB values
+		// Write out the entries as the workers finish them, reporting the
+		// throughput as we go.
 		//
+		try {
+			writeEntries(entries, threads, failure);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Error: unable to write to the DB files in: " + out + ": " + e.getMessage());
+		}
+		finally {
+			// Stop any stage still running, e.g. blocked on a full queue
+			// after the writer failed
+			stages.shutdownNow();
+			for (Level level : levels) {
+				level.close();
+			}
+		}
+		Throwable cause = failure.get();
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		reportSkipped();
+
+		for (Level level : levels) {
+			level.finish();
+		}
+		metrics.finish();
+		System.out.println("[INFO] time: " + metrics.getSummary());
+	}
+
+	/**
+	 * @return the timings and counts of this run
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Read the entries already in the DB file, if there is one.
+	 * If a previous run was interrupted part way through writing an entry,
+	 * the incomplete entry is removed.
+	 * @param dbCsv the DB CSV file
+	 * @param grid the grid size the new entries will use
+	 * @return the entries already in the DB file
+	 * @throws IllegalArgumentException if the DB file could not be read, or its entries use a different grid size
+	 */
+	private static TileDatabase loadExistingEntries(File dbCsv, int grid) throws IllegalArgumentException {
+		if (!dbCsv.exists()) {
+			return new TileDatabase(PatchFeatures.dimensions(grid));
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(dbCsv, "rw")) {
+			//
+			// Every complete entry ends with a newline, so drop anything after
+			// the last one.
+			//
+			long length = raf.length();
+			long end = length;
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			if (end != length) {
+				System.err.println("[WARN] removing incomplete entry from the end of: " + dbCsv.getPath());
+				raf.setLength(end);
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Error: unable to read: " + dbCsv.getPath());
+		}
+
+		// Every entry in a DB file has to use the same grid
+		TileDatabase existing = TileDatabase.loadCsv(dbCsv.getPath());
+		if (existing.size() > 0 && existing.getGrid() != grid) {
+			int existingGrid = existing.getGrid();
+			throw new IllegalArgumentException(
+				"Error: " + dbCsv.getPath() + " was created with a " + existingGrid + "x" + existingGrid +
+				" grid, not " + grid + "x" + grid + ". Use the same --grid, or delete it to start over."
+			);
+		}
+		return existing;
+	}
+
+	/**
+	 * Queue up every input image that might need a DB entry. Images with an
+	 * entry in every level but no recorded hash can't be checked for
+	 * changes, so they are skipped here without being read.
+	 * @param inputImages the input images
+	 * @param out the output directory
+	 * @param inputs the queue to put the images to process on
+	 * @throws InterruptedException if interrupted while waiting for space on the queue
+	 */
+	private void listInputs(File[] inputImages, String out, BlockingQueue<File> inputs) throws InterruptedException {
+		// The DB images claimed so far; two inputs with the same basename
+		// would otherwise overwrite each other's DB image
+		Set<String> claimed = new HashSet<String>();
+		int resumed = 0;
 		for (File f : inputImages) {
-			// Get the basename of the input image
-			String inputBasename = f.getName().substring(0, f.getName().lastIndexOf("."));
-			// Construct the output file path
-			String outName = out + "/" + width + "x" + width + "_" + inputBasename + ".jpg";
-			if (new File(outName).exists()) {
+			boolean unhashed = true;
+			for (Level level : levels) {
+				unhashed &= "".equals(level.existingHashes.get(level.outputName(out, f)));
+			}
+			if (unhashed) {
+				resumed++;
+				continue;
+			}
+			String outName = levels[0].outputName(out, f);
+			if (!claimed.add(outName)) {
 				System.err.println("[WARN] skipping already existing DB file: " + outName);
 				continue;
 			}
-			BufferedImage image = null;
-			try {
-				image = ImageIO.read(f);
+			inputs.put(f);
+		}
+		metrics.count(RunMetrics.Counter.IMAGES_RESUMED, resumed);
+	}
+
+	/**
+	 * Print how many input images were skipped because they were already in
+	 * the DB or duplicates, and how many had changed.
+	 */
+	private void reportSkipped() {
+		long resumed = metrics.get(RunMetrics.Counter.IMAGES_RESUMED);
+		if (resumed > 0) {
+			System.out.println("[INFO] skipped " + resumed + " images already in the DB");
+		}
+		long duplicates = metrics.get(RunMetrics.Counter.DUPLICATES);
+		long nearDuplicateCount = metrics.get(RunMetrics.Counter.NEAR_DUPLICATES);
+		if (duplicates + nearDuplicateCount > 0) {
+			System.out.println("[INFO] skipped " + duplicates + " copies and " + nearDuplicateCount + " near copies of other images");
+		}
+		long changed = metrics.get(RunMetrics.Counter.IMAGES_CHANGED);
+		if (changed > 0) {
+			System.out.println("[INFO] replaced the DB images of " + changed + " input images that changed");
+		}
+	}
+
+	/**
+	 * @param line a line of the DB CSV file
+	 * @return the path of the DB image the line is the entry for
+	 */
+	private static String entryPath(String line) {
+		return line.substring(0, Math.max(line.indexOf(','), 0));
+	}
+
+	/**
+	 * Hash an input image's file and, for each level it isn't already in
+	 * (and isn't a copy of another input image in), resize it, write it out
+	 * as a DB image and calculate its DB entry.
+	 * @param f the input image
+	 * @param out the output directory
+	 * @return the entry for the DB images, or null if the image was skipped
+	 */
+	private Entry processImage(File f, String out) {
+		long start = System.nanoTime();
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(f.toPath());
+		}
+		catch (IOException e) {
+			System.err.println("[WARN] error reading image file: " + f.getName());
+			metrics.count(RunMetrics.Counter.IMAGES_SKIPPED, 1);
+			return null;
+		}
+		String contentHash = ImageHash.contentHash(bytes);
+		start = metrics.time(RunMetrics.Phase.HASH, start);
+
+		//
+		// Work out which levels need a DB image: those without one made from
+		// the same file, unless another input image with the same contents
+		// already has one. Entries with no recorded hash are left alone.
+		//
+		String[] outNames = new String[levels.length];
+		String copyOf = null;
+		boolean needed = false;
+		for (int l = 0; l < levels.length; l++) {
+			Level level = levels[l];
+			String outName = level.outputName(out, f);
+			String recorded = level.existingHashes.get(outName);
+			if (recorded != null && (recorded.isEmpty() || recorded.equals(contentHash))) {
+				continue;
 			}
-			catch (Exception e) {
-				System.err.println("[WARN] error reading image file: " + f.getName());
-				e.printStackTrace();
+			String owner = level.contentOwners.putIfAbsent(contentHash, outName);
+			if (owner != null) {
+				copyOf = owner;
 				continue;
 			}
-			if (image == null) {
-				System.err.println("[WARN] skipping non-image file: " + f.getName());
+			outNames[l] = outName;
+			needed = true;
+		}
+		if (!needed) {
+			if (copyOf != null) {
+				System.out.println("[INFO] skipping " + f.getName() + ", which is a copy of the image in: " + copyOf);
+				metrics.count(RunMetrics.Counter.DUPLICATES, 1);
+			}
+			else {
+				metrics.count(RunMetrics.Counter.IMAGES_RESUMED, 1);
+			}
+			return null;
+		}
+
+		Entry entry = processImage(f, bytes, contentHash, outNames, start);
+		boolean added = false;
+		boolean changed = false;
+		for (int l = 0; l < levels.length; l++) {
+			if (outNames[l] == null) {
 				continue;
 			}
+			Level level = levels[l];
+			if (entry == null || entry == NEAR_DUPLICATE || entry.lines[l] == null) {
+				// Let another copy of the image have a go
+				level.contentOwners.remove(contentHash, outNames[l]);
+				continue;
+			}
+			added = true;
+			String recorded = level.existingHashes.get(outNames[l]);
+			if (recorded != null) {
+				// The input image has changed since its DB image was made
+				level.contentOwners.remove(recorded, outNames[l]);
+				level.changed.add(outNames[l]);
+				changed = true;
+			}
+		}
+		if (!added) {
+			metrics.count(entry == NEAR_DUPLICATE ? RunMetrics.Counter.NEAR_DUPLICATES : RunMetrics.Counter.IMAGES_SKIPPED, 1);
+			return null;
+		}
+		if (changed) {
+			metrics.count(RunMetrics.Counter.IMAGES_CHANGED, 1);
+		}
+		metrics.count(RunMetrics.Counter.IMAGES_PROCESSED, 1);
+		return entry;
+	}
+
+	/**
+	 * Resize an input image to each level's width, write it out as a DB
+	 * image and calculate its DB entry, timing each step.
+	 * @param f the input image
+	 * @param bytes the contents of the input image's file
+	 * @param contentHash the content hash of the input image
+	 * @param outNames the path to write each level's DB image to, or null for the levels it isn't being added to
+	 * @param start the System.nanoTime() processing started at
+	 * @return the entry for the DB images, NEAR_DUPLICATE if it looks almost the same as another DB image, or null if the image was skipped
+	 */
+	private Entry processImage(File f, byte[] bytes, String contentHash, String[] outNames, long start) {
+		BufferedImage image = null;
+		try {
+			image = ImageIO.read(new ByteArrayInputStream(bytes));
+		}
+		catch (Exception e) {
+			System.err.println("[WARN] error reading image file: " + f.getName());
+			e.printStackTrace();
+			return null;
+		}
+		if (image == null) {
+			System.err.println("[WARN] skipping non-image file: " + f.getName());
+			return null;
+		}
+		start = metrics.time(RunMetrics.Phase.DECODE, start);
+
+		//
+		// The perceptual hash is taken from the input image, since DB images
+		// can be too small to tell apart.
+		//
+		long perceptualHash;
+		try {
+			BufferedImage thumbnail = resampler.scale(image, ImageHash.WIDTH, ImageHash.HEIGHT);
+			perceptualHash = ImageHash.perceptualHash(PatchFeatures.pixels(thumbnail), ImageHash.WIDTH, ImageHash.HEIGHT);
+		}
+		catch (IOException e) {
+			System.err.println("[WARN] error resizing image file: " + f.getName());
+			e.printStackTrace();
+			return null;
+		}
+		start = metrics.time(RunMetrics.Phase.HASH, start);
+
+		String[] lines = new String[levels.length];
+		int[][] pixels = new int[levels.length][];
+		String nearDuplicateOf = null;
+		for (int l = 0; l < levels.length; l++) {
+			if (outNames[l] == null) {
+				continue;
+			}
+			Level level = levels[l];
+			int width = level.width;
 
 			// Resize the image to be square
-			Image scaled = image.getScaledInstance(width, width, Image.SCALE_SMOOTH);
-			BufferedImage dbBufferedImage = new BufferedImage(scaled.getWidth(null), scaled.getHeight(null), BufferedImage.TYPE_INT_RGB);
-			// Draw the scaled image onto our DBImage
-			dbBufferedImage.getGraphics().drawImage(scaled, 0, 0, null);
+			BufferedImage dbBufferedImage = null;
+			try {
+				dbBufferedImage = resampler.scale(image, width, width);
+			}
+			catch (IOException e) {
+				System.err.println("[WARN] error resizing image file: " + f.getName());
+				e.printStackTrace();
+				return null;
+			}
+			int[] levelPixels = dbBufferedImage.getRGB(0, 0, width, width, null, 0, width);
+			start = metrics.time(RunMetrics.Phase.SCALE, start);
+
+			// Skip the image if it looks almost the same as another DB image
+			if (nearDuplicates >= 0) {
+				float[] features = new float[PatchFeatures.dimensions(grid)];
+				PatchFeatures.extract(levelPixels, 0, width, width, width, grid, features, 0);
+				String original = level.claimPerceptualHash(perceptualHash, features, outNames[l]);
+				start = metrics.time(RunMetrics.Phase.HASH, start);
+				if (original != null) {
+					nearDuplicateOf = original;
+					continue;
+				}
+			}
 
 			//
 			// Write the DB image to a file
 			//
+			byte[] jpeg;
 			try {
-				writeDbJpg(outName, width, dbBufferedImage);
+				jpeg = writeDbJpg(outNames[l], width, dbBufferedImage);
 			}
 			catch (Exception e) {
-				System.err.println("[WARN] error writing processed image file: " + outName);
+				System.err.println("[WARN] error writing processed image file: " + outNames[l]);
 				System.err.println("\tSkipping...");
 				e.printStackTrace();
 				continue;
 			}
+			start = metrics.time(RunMetrics.Phase.WRITE, start);
 
 			//
-			// Write out the database entry to the CSV file.
+			// Build the database entry for the CSV file.
 			//
 			// The first column is the resized filename, and the following
-			// columns are the average RGB values of 4 square regions of the
-			// patch image.
+			// columns are the average RGB values of each square region of the
+			// patch image (4 of them with the default 2x2 grid), followed by
+			// the input image's content hash and perceptual hash.
 			//
-			Color[] averageRgbs = PhotoMosaic.averageRegions(dbBufferedImage);
-			StringBuilder sb = new StringBuilder(outName + ",");
+			Color[] averageRgbs = PhotoMosaic.averageRegions(dbBufferedImage, grid);
+			StringBuilder sb = new StringBuilder(outNames[l] + ",");
 			for (int i = 0; i < averageRgbs.length; i++) {
 				sb.append(averageRgbs[i].getRGB());
-				if (i != averageRgbs.length-1) {
-					sb.append(",");
+				sb.append(",");
+			}
+			sb.append(contentHash).append(",").append(String.format("%016x", perceptualHash));
+			lines[l] = sb.toString();
+			start = metrics.time(RunMetrics.Phase.FEATURES, start);
+
+			// The tile pack holds the pixels of the JPEG file, exactly as
+			// PhotoMosaic would decode them without it, so the pack never
+			// changes what a photomosaic looks like
+			if (level.tilePack != null) {
+				pixels[l] = decodeDbJpg(jpeg, width);
+				if (pixels[l] == null) {
+					System.err.println("[WARN] error decoding processed image file: " + outNames[l]);
+					System.err.println("\tSkipping...");
+					lines[l] = null;
+					continue;
 				}
+				start = metrics.time(RunMetrics.Phase.DECODE, start);
 			}
+		}
 
-			csvWriter.println(sb.toString());
-			csvWriter.flush();
+		for (String line : lines) {
+			if (line != null) {
+				return new Entry(lines, pixels);
+			}
 		}
-		csvWriter.close();
+		if (nearDuplicateOf != null) {
+			System.out.println("[INFO] skipping " + f.getName() + ", which looks almost the same as: " + nearDuplicateOf);
+			return NEAR_DUPLICATE;
+		}
+		return null;
+	}
+
+	/**
+	 * Append entries to the DB files as they arrive, flushing them in
+	 * batches, until every worker has finished or a stage has failed.
+	 * @param entries the queue the workers put their entries on
+	 * @param workers the number of workers
+	 * @param failure the first failure of the lister or a worker, or null
+	 * @throws IOException if a DB file or tile pack could not be written, or this thread was interrupted
+	 */
+	private void writeEntries(BlockingQueue<Entry> entries, int workers, AtomicReference<Throwable> failure) throws IOException {
+		java.util.List<Entry> batch = new ArrayList<Entry>(WRITE_BATCH);
+		long start = System.nanoTime();
+		long lastReport = System.currentTimeMillis();
+		int finished = 0;
+		int written = 0;
+		while (finished < workers && failure.get() == null) {
+			try {
+				batch.add(entries.take());
+			}
+			catch (InterruptedException e) {
+				// Not every image was written, so the DB must not be finished
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the DB images; run the same command again to resume", e);
+			}
+			entries.drainTo(batch, WRITE_BATCH - batch.size());
+			long batchStart = System.nanoTime();
+
+			// The tile pack records are written before their CSV entries, so
+			// a crash never leaves an entry without a record
+			for (Entry entry : batch) {
+				if (entry == END_OF_ENTRIES) {
+					continue;
+				}
+				for (int l = 0; l < levels.length; l++) {
+					if (entry.pixels[l] != null) {
+						TilePack.append(levels[l].tilePack, entry.pixels[l]);
+					}
+				}
+			}
+			for (Entry entry : batch) {
+				if (entry == END_OF_ENTRIES) {
+					finished++;
+					continue;
+				}
+				for (int l = 0; l < levels.length; l++) {
+					if (entry.lines[l] != null) {
+						levels[l].csvWriter.write(entry.lines[l]);
+						levels[l].csvWriter.write('\n');
+					}
+				}
+				written++;
+			}
+			// Only whole entries are flushed, so a crash can leave at most
+			// one incomplete line at the end of each file
+			for (Level level : levels) {
+				level.csvWriter.flush();
+			}
+			batch.clear();
+			metrics.time(RunMetrics.Phase.DB_WRITE, batchStart);
+
+			if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+				lastReport = System.currentTimeMillis();
+				reportThroughput(written, start);
+			}
+		}
+		reportThroughput(written, start);
+	}
+
+	/**
+	 * Print how many images have been processed and how quickly.
+	 * @param processed the number of images processed so far
+	 * @param start the System.nanoTime() processing started at
+	 */
+	private static void reportThroughput(int processed, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("[INFO] processed %d images in %.1fs (%.1f images/sec)%n", processed, seconds, processed / Math.max(seconds, 1e-9));
 	}
 
 	/**
 	 * Write out a resized database image to a file.
+	 * The image is written to a temporary file first and moved into place, so
+	 * an interrupted run never leaves a partially written DB image behind.
 	 * @param outName the output filename
 	 * @param width the width of the image
 	 * @param dbBufferedImage the BufferedImage instance for the resized image
+	 * @return the JPEG file's contents
+	 * @throws IOException if the file could not be written
 	 */
-	private void writeDbJpg(String outName, int width, BufferedImage dbBufferedImage) throws IOException {
+	private byte[] writeDbJpg(String outName, int width, BufferedImage dbBufferedImage) throws IOException {
 		//
 		// Write out the scaled image to a file
 		//
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		if (!ImageIO.write(dbBufferedImage, "jpg", encoded)) {
+			throw new IOException("no JPEG writer available");
+		}
+		byte[] jpeg = encoded.toByteArray();
+		File tmp = new File(outName + ".tmp");
+		Files.write(tmp.toPath(), jpeg);
+		Files.move(tmp.toPath(), Paths.get(outName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("[INFO] successfully created: " + outName);
+		return jpeg;
+	}
+
+	/**
+	 * Decode a database image that was just written, for the tile pack.
+	 * @param jpeg the JPEG file's contents
+	 * @param width the width of the image
+	 * @return the packed RGB pixels of the image, or null if it could not be decoded
+	 */
+	private static int[] decodeDbJpg(byte[] jpeg, int width) {
 		try {
-			ImageIO.write(dbBufferedImage, "jpg", new File(outName));
+			BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+			if (decoded == null || decoded.getWidth() != width || decoded.getHeight() != width) {
+				return null;
+			}
+			return decoded.getRGB(0, 0, width, width, null, 0, width);
 		}
 		catch (IOException e) {
-			throw e;
+			return null;
 		}
-		System.out.println("[INFO] successfully created: " + outName);
 	}
 
 	public static void main(String[] args) {
 		final String DBOUTPUTDIR = "./db";
-		if (args.length != 2) {
-			System.err.println("Usage: java ProcessDB <directory with images to put in DB> <downscale size>");
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.size() != 2) {
+			System.err.println("Usage: java ProcessDB <directory with images to put in DB> <downscale size>[,<downscale size>...] [--threads=N] [--pack] [--lanczos] [--grid=N] [--segments] [--near-duplicates=N] [--lab] [--quantize] [--report=FILE]");
 			System.err.println("e.g. java ProcessDB ./input/ 32");
 			System.err.println("^-- This would process the images in ./input/ and resize them to 32x32.");
-			System.err.println("    A CSV file '" + DBOUTPUTDIR + "/db32x32.csv' is created that will be used by the PhotoMosaic program.");
+			System.err.println("    A CSV file '" + DBOUTPUTDIR + "/db32x32.csv' and binary DB file '" + DBOUTPUTDIR + "/db32x32" + TileDatabaseFile.EXTENSION + "'");
+			System.err.println("    are created that will be used by the PhotoMosaic program.");
+			System.err.println("    Several sizes, e.g. 8,16,32, create a DB for each size while only decoding");
+			System.err.println("    each image once. PhotoMosaic uses the DB for the patch size it is given.");
+			System.err.println("    Images are processed on all cores unless --threads is given. Re-running");
+			System.err.println("    the same command resumes an interrupted run. --pack also writes the resized");
+			System.err.println("    pixels to '" + DBOUTPUTDIR + "/db32x32" + TilePack.EXTENSION + "' so PhotoMosaic doesn't have to decode them.");
+			System.err.println("    --lanczos resizes with a Lanczos filter instead of averaging.");
+			System.err.println("    --grid=N averages an NxN grid of regions of each image instead of 2x2 (N: " + PatchFeatures.MIN_GRID + "-" + PatchFeatures.MAX_GRID + ");");
+			System.err.println("    PhotoMosaic matches with whichever grid the DB was created with.");
+			System.err.println("    --segments adds the new images to '" + DBOUTPUTDIR + "/db32x32" + SegmentedDatabase.EXTENSION + "' as a new segment instead");
+			System.err.println("    of rewriting the whole DB. See SegmentedDatabase for deleting and compacting.");
+			System.err.println("    Images already in the DB are skipped unless their file has changed, as are copies");
+			System.err.println("    of another image. --near-duplicates=N also skips images whose perceptual hash is");
+			System.err.println("    within N bits (of 64) of another DB image's and whose colours are close, e.g. 4.");
+			System.err.println("    --lab stores the binary DB's features in CIELAB, so PhotoMosaic matches colours by how");
+			System.err.println("    different they look rather than by their RGB values. Re-running with or without it");
+			System.err.println("    rewrites a binary DB in that colour space; a segmented DB keeps the one it was created with.");
+			System.err.println("    --quantize also stores each DB image's features compressed to a byte per region in the");
+			System.err.println("    binary DB, for PhotoMosaic --quantized on very large DBs.");
+			System.err.println("    --report=FILE writes the time spent in each phase and other metrics of the run to FILE as JSON.");
 			System.exit(1);
 		}
-		ProcessDB pdb = new ProcessDB(args[0], DBOUTPUTDIR, Integer.parseInt(args[1]));
+		String[] sizes = positional.get(1).split(",");
+		int[] widths = new int[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			widths[i] = Integer.parseInt(sizes[i].trim());
+		}
+		ProcessDBOptions options = new ProcessDBOptions()
+			.setThreads(cmd.getInt("threads", Runtime.getRuntime().availableProcessors()))
+			.setPack(cmd.has("pack"))
+			.setScaleFilter(cmd.has("lanczos") ? Resampler.Filter.LANCZOS : Resampler.Filter.AREA)
+			.setGrid(cmd.getInt("grid", PatchFeatures.DEFAULT_GRID))
+			.setSegmented(cmd.has("segments"))
+			.setNearDuplicates(cmd.getInt("near-duplicates", -1))
+			.setColourSpace(cmd.has("lab") ? ColourSpace.LAB : ColourSpace.RGB)
+			.setQuantize(cmd.has("quantize"));
+		ProcessDB pdb = new ProcessDB(positional.get(0), DBOUTPUTDIR, widths, options);
+		if (cmd.has("report")) {
+			try {
+				pdb.getMetrics().writeReport(new File(cmd.get("report", null)));
+				System.out.println("[INFO] wrote run report: " + cmd.get("report", null));
+			}
+			catch (IOException e) {
+				System.err.println("[WARN] unable to write run report: " + cmd.get("report", null));
+			}
+		}
 	}
 }
@@ -0,0 +1,183 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * The tunable settings used when processing images into a DB.
+ * Each setter returns this object so settings can be chained.
+ */
+public class ProcessDBOptions {
+	/**
+	 * The number of images to decode and resize at once.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Whether to also write the DB images' pixels to a tile pack.
+	 */
+	private boolean pack = false;
+	/**
+	 * The filter used to resize images.
+	 */
+	private Resampler.Filter scaleFilter = Resampler.Filter.AREA;
+	/**
+	 * The number of regions across and down each image to calculate average
+	 * RGB values for.
+	 */
+	private int grid = PatchFeatures.DEFAULT_GRID;
+	/**
+	 * Whether to add the new DB images to a segmented DB as a new segment,
+	 * instead of rewriting the binary DB file.
+	 */
+	private boolean segmented = false;
+	/**
+	 * The most bits the perceptual hashes of two images can differ in for the
+	 * second to be skipped as a near duplicate, or -1 to only skip exact
+	 * duplicates.
+	 */
+	private int nearDuplicates = -1;
+	/**
+	 * The colour space to store the binary DB files' features in.
+	 */
+	private ColourSpace colourSpace = ColourSpace.RGB;
+	/**
+	 * Whether to store product quantized codes of the features in the binary
+	 * DB files.
+	 */
+	private boolean quantize = false;
+
+	/**
+	 * @return the number of images to decode and resize at once
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads the number of images to decode and resize at once
+	 * @return these options
+	 * @throws IllegalArgumentException if the number of threads isn't positive
+	 */
+	public ProcessDBOptions setThreads(int threads) throws IllegalArgumentException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1.");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @return whether to also write the DB images' pixels to a tile pack
+	 */
+	public boolean getPack() {
+		return pack;
+	}
+
+	/**
+	 * @param pack whether to also write the DB images' pixels to a tile pack
+	 * @return these options
+	 */
+	public ProcessDBOptions setPack(boolean pack) {
+		this.pack = pack;
+		return this;
+	}
+
+	/**
+	 * @return the filter used to resize images
+	 */
+	public Resampler.Filter getScaleFilter() {
+		return scaleFilter;
+	}
+
+	/**
+	 * @param scaleFilter the filter used to resize images
+	 * @return these options
+	 */
+	public ProcessDBOptions setScaleFilter(Resampler.Filter scaleFilter) {
+		this.scaleFilter = scaleFilter;
+		return this;
+	}
+
+	/**
+	 * @return the number of regions across and down each image to calculate average RGB values for
+	 */
+	public int getGrid() {
+		return grid;
+	}
+
+	/**
+	 * @param grid the number of regions across and down each image to calculate average RGB values for
+	 * @return these options
+	 * @throws IllegalArgumentException if the grid size isn't supported
+	 */
+	public ProcessDBOptions setGrid(int grid) throws IllegalArgumentException {
+		PatchFeatures.dimensions(grid);
+		this.grid = grid;
+		return this;
+	}
+
+	/**
+	 * @return whether to add the new DB images to a segmented DB as a new segment, instead of rewriting the binary DB file
+	 */
+	public boolean getSegmented() {
+		return segmented;
+	}
+
+	/**
+	 * @param segmented whether to add the new DB images to a segmented DB as a new segment, instead of rewriting the binary DB file
+	 * @return these options
+	 */
+	public ProcessDBOptions setSegmented(boolean segmented) {
+		this.segmented = segmented;
+		return this;
+	}
+
+	/**
+	 * @return the most bits the perceptual hashes of two images can differ in for the second to be skipped as a near duplicate, or -1 to only skip exact duplicates
+	 */
+	public int getNearDuplicates() {
+		return nearDuplicates;
+	}
+
+	/**
+	 * @param nearDuplicates the most bits the perceptual hashes of two images can differ in for the second to be skipped as a near duplicate, or -1 to only skip exact duplicates
+	 * @return these options
+	 */
+	public ProcessDBOptions setNearDuplicates(int nearDuplicates) {
+		this.nearDuplicates = nearDuplicates;
+		return this;
+	}
+
+	/**
+	 * @return the colour space to store the binary DB files' features in
+	 */
+	public ColourSpace getColourSpace() {
+		return colourSpace;
+	}
+
+	/**
+	 * @param colourSpace the colour space to store the binary DB files' features in; the CSV files always hold sRGB
+	 * @return these options
+	 */
+	public ProcessDBOptions setColourSpace(ColourSpace colourSpace) {
+		this.colourSpace = colourSpace;
+		return this;
+	}
+
+	/**
+	 * @return whether to store product quantized codes of the features in the binary DB files
+	 */
+	public boolean getQuantize() {
+		return quantize;
+	}
+
+	/**
+	 * @param quantize whether to store product quantized codes of the features in the binary DB files; segmented DBs are quantized when they are loaded instead
+	 * @return these options
+	 */
+	public ProcessDBOptions setQuantize(boolean quantize) {
+		this.quantize = quantize;
+		return this;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.util.*;
+
+/**
+ * Compresses feature vectors into one byte per region by product
+ * quantization. Each region's three colour values (a subspace) are replaced
+ * by the closest of 256 centroids learned for that region, so a 2x2 grid's 12
+ * floats become 4 bytes.
+ *
+ * The squared distance from a query to a compressed vector is approximated
+ * by adding up, for each region, the distance from the query's region to the
+ * centroid the vector was given. Those distances are worked out once per
+ * query as a table of 256 per region, so comparing against each vector is
+ * just a few table lookups.
+ */
+public class ProductQuantizer {
+	/**
+	 * The number of centroids learned for each region; each code is a byte.
+	 */
+	public static final int CENTROIDS = 256;
+	/**
+	 * The number of values in each region's part of a feature vector.
+	 */
+	private static final int SUBSPACE_DIMENSIONS = 3;
+	/**
+	 * The most feature vectors the centroids are learned from. Larger DBs
+	 * are sampled, since the centroids barely change past this.
+	 */
+	private static final int TRAINING_SAMPLE = 65536;
+	/**
+	 * The number of rounds of k-means used to learn the centroids.
+	 */
+	private static final int ITERATIONS = 16;
+	/**
+	 * The number of values in each feature vector.
+	 */
+	private int dimensions;
+	/**
+	 * The number of regions (subspaces), and so bytes, in each code.
+	 */
+	private int subspaces;
+	/**
+	 * The centroids of every region, one region after another, each as
+	 * CENTROIDS tuples of colour values.
+	 */
+	private float[] centroids;
+
+	/**
+	 * Create a quantizer from centroids that have already been learned.
+	 * @param dimensions the number of values in each feature vector
+	 * @param centroids the centroids of every region, one region after another, each as CENTROIDS tuples of colour values
+	 * @throws IllegalArgumentException if there aren't CENTROIDS centroids for every region
+	 */
+	public ProductQuantizer(int dimensions, float[] centroids) throws IllegalArgumentException {
+		if (dimensions % SUBSPACE_DIMENSIONS != 0 || centroids.length != dimensions * CENTROIDS) {
+			throw new IllegalArgumentException("Expected " + CENTROIDS + " centroids for each of " + dimensions / SUBSPACE_DIMENSIONS + " regions.");
+		}
+		this.dimensions = dimensions;
+		this.subspaces = dimensions / SUBSPACE_DIMENSIONS;
+		this.centroids = centroids;
+	}
+
+	/**
+	 * Learn the centroids of each region from a set of feature vectors, by
+	 * k-means. The vectors are sampled with a fixed seed, so the same
+	 * features always give the same centroids.
+	 * @param features the feature vectors, one after the other
+	 * @param dimensions the number of values in each feature vector
+	 * @return the quantizer
+	 */
+	public static ProductQuantizer train(float[] features, int dimensions) {
+		int size = features.length / dimensions;
+		Random random = new Random(dimensions);
+
+		//
+		// Pick the training vectors: every vector in a small DB, or a random
+		// sample of a large one
+		//
+		int[] sample = new int[Math.min(size, TRAINING_SAMPLE)];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = i;
+		}
+		for (int i = sample.length; i < size; i++) {
+			// Reservoir sampling keeps every vector equally likely
+			int j = random.nextInt(i + 1);
+			if (j < sample.length) {
+				sample[j] = i;
+			}
+		}
+
+		float[] centroids = new float[dimensions * CENTROIDS];
+		int subspaces = dimensions / SUBSPACE_DIMENSIONS;
+		float[] points = new float[sample.length * SUBSPACE_DIMENSIONS];
+		for (int s = 0; s < subspaces; s++) {
+			for (int i = 0; i < sample.length; i++) {
+				System.arraycopy(features, sample[i]*dimensions + s*SUBSPACE_DIMENSIONS, points, i*SUBSPACE_DIMENSIONS, SUBSPACE_DIMENSIONS);
+			}
+			kMeans(points, sample.length, centroids, s * CENTROIDS * SUBSPACE_DIMENSIONS, random);
+		}
+		return new ProductQuantizer(dimensions, centroids);
+	}
+
+	/**
+	 * Learn one region's centroids from its colour values by Lloyd's
+	 * algorithm, starting from randomly chosen points. A centroid left with
+	 * no points is moved onto a random point.
+	 * @param points the region's colour values of each training vector
+	 * @param count the number of training vectors
+	 * @param centroids the array to store the centroids in
+	 * @param offset the position of the region's centroids in the centroids array
+	 * @param random picks the starting centroids
+	 */
+	private static void kMeans(float[] points, int count, float[] centroids, int offset, Random random) {
+		if (count == 0) {
+			return;
+		}
+		for (int c = 0; c < CENTROIDS; c++) {
+			// With fewer points than centroids, every point gets a centroid
+			int point = count <= CENTROIDS ? c % count : random.nextInt(count);
+			System.arraycopy(points, point * SUBSPACE_DIMENSIONS, centroids, offset + c*SUBSPACE_DIMENSIONS, SUBSPACE_DIMENSIONS);
+		}
+
+		double[] sums = new double[CENTROIDS * SUBSPACE_DIMENSIONS];
+		int[] members = new int[CENTROIDS];
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			Arrays.fill(sums, 0);
+			Arrays.fill(members, 0);
+			for (int i = 0; i < count; i++) {
+				int c = closest(points, i * SUBSPACE_DIMENSIONS, centroids, offset);
+				for (int d = 0; d < SUBSPACE_DIMENSIONS; d++) {
+					sums[c*SUBSPACE_DIMENSIONS + d] += points[i*SUBSPACE_DIMENSIONS + d];
+				}
+				members[c]++;
+			}
+			for (int c = 0; c < CENTROIDS; c++) {
+				if (members[c] == 0) {
+					System.arraycopy(points, random.nextInt(count) * SUBSPACE_DIMENSIONS, centroids, offset + c*SUBSPACE_DIMENSIONS, SUBSPACE_DIMENSIONS);
+					continue;
+				}
+				for (int d = 0; d < SUBSPACE_DIMENSIONS; d++) {
+					centroids[offset + c*SUBSPACE_DIMENSIONS + d] = (float) (sums[c*SUBSPACE_DIMENSIONS + d] / members[c]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the centroid closest to one region's colour values.
+	 * @param values the array holding the colour values
+	 * @param valueOffset the position of the colour values
+	 * @param centroids the array holding the region's centroids
+	 * @param offset the position of the region's centroids
+	 * @return the number of the closest centroid
+	 */
+	private static int closest(float[] values, int valueOffset, float[] centroids, int offset) {
+		int closest = 0;
+		float closestDistance = Float.POSITIVE_INFINITY;
+		for (int c = 0; c < CENTROIDS; c++) {
+			float distance = 0;
+			for (int d = 0; d < SUBSPACE_DIMENSIONS; d++) {
+				float diff = values[valueOffset + d] - centroids[offset + c*SUBSPACE_DIMENSIONS + d];
+				distance += diff*diff;
+			}
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closest = c;
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Compress feature vectors into codes.
+	 * @param features the feature vectors, one after the other
+	 * @return the code of each feature vector, one after the other, each as a byte per region
+	 */
+	public byte[] encode(float[] features) {
+		int size = features.length / dimensions;
+		byte[] codes = new byte[size * subspaces];
+		for (int i = 0; i < size; i++) {
+			for (int s = 0; s < subspaces; s++) {
+				codes[i*subspaces + s] = (byte) closest(features, i*dimensions + s*SUBSPACE_DIMENSIONS, centroids, s * CENTROIDS * SUBSPACE_DIMENSIONS);
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * Work out the squared distance from each region of a query to each of
+	 * that region's centroids. The approximate distance to a code is then
+	 * the sum of table[s*CENTROIDS + code[s]] over every region s.
+	 * @param query the array holding the feature vector
+	 * @param offset the position of the feature vector in the query array
+	 * @param table the array to store the distances in, CENTROIDS per region
+	 */
+	public void distanceTable(float[] query, int offset, float[] table) {
+		for (int s = 0; s < subspaces; s++) {
+			int base = s * CENTROIDS;
+			for (int c = 0; c < CENTROIDS; c++) {
+				float distance = 0;
+				for (int d = 0; d < SUBSPACE_DIMENSIONS; d++) {
+					float diff = query[offset + s*SUBSPACE_DIMENSIONS + d] - centroids[(base + c)*SUBSPACE_DIMENSIONS + d];
+					distance += diff*diff;
+				}
+				table[base + c] = distance;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of values in each feature vector
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * @return the number of bytes in each code
+	 */
+	public int getSubspaces() {
+		return subspaces;
+	}
+
+	/**
+	 * @return the centroids of every region, one region after another, each as CENTROIDS tuples of colour values
+	 */
+	public float[] getCentroids() {
+		return centroids;
+	}
+}
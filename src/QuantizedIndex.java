@@ -0,0 +1,262 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A nearest neighbour index over the product quantized codes of the database
+ * images. Every code is compared against the query using a table of
+ * distances, which only reads a byte per region of each database image, and
+ * a shortlist of the closest codes is then re-ranked by their exact
+ * distances.
+ *
+ * Unlike the k-d tree, this looks at every database image, so the time it
+ * takes doesn't depend on how the features are spread out, and it only needs
+ * the codes besides the database itself.
+ */
+public class QuantizedIndex implements TileIndex {
+	/**
+	 * The default number of codes kept for re-ranking for each candidate
+	 * asked for.
+	 */
+	public static final int DEFAULT_RERANK_FACTOR = 16;
+	/**
+	 * The database, used to re-rank the shortlist by exact distance.
+	 */
+	private TileDatabase db;
+	/**
+	 * The quantizer the codes were made with.
+	 */
+	private ProductQuantizer quantizer;
+	/**
+	 * The code of each database image, one after the other in id order.
+	 */
+	private byte[] codes;
+	/**
+	 * The number of bytes in each code.
+	 */
+	private int subspaces;
+	/**
+	 * The number of codes kept for re-ranking for each candidate asked for.
+	 */
+	private int rerankFactor;
+
+	/**
+	 * Create an index over a database's codes, quantizing the database first
+	 * if it hasn't been.
+	 * @param db the database
+	 */
+	public QuantizedIndex(TileDatabase db) {
+		this(db, DEFAULT_RERANK_FACTOR);
+	}
+
+	/**
+	 * Create an index over a database's codes, quantizing the database first
+	 * if it hasn't been.
+	 * @param db the database
+	 * @param rerankFactor the number of codes kept for re-ranking for each candidate asked for
+	 * @throws IllegalArgumentException if rerankFactor isn't positive
+	 */
+	public QuantizedIndex(TileDatabase db, int rerankFactor) throws IllegalArgumentException {
+		if (rerankFactor < 1) {
+			throw new IllegalArgumentException("The re-rank factor must be at least 1.");
+		}
+		if (db.getQuantizer() == null) {
+			db.quantize();
+		}
+		this.db = db;
+		this.quantizer = db.getQuantizer();
+		this.codes = db.getCodes();
+		this.subspaces = quantizer.getSubspaces();
+		this.rerankFactor = rerankFactor;
+	}
+
+	@Override
+	public int[] nearest(float[] query, int offset, int k) {
+		int size = codes.length / subspaces;
+		float[] table = new float[subspaces * ProductQuantizer.CENTROIDS];
+		quantizer.distanceTable(query, offset, table);
+
+		// Approximate pass: keep the codes with the smallest table distances
+		NeighbourHeap shortlist = new NeighbourHeap((int) Math.min((long) k * rerankFactor, size));
+		if (subspaces == 4) {
+			scan2x2(table, shortlist);
+		}
+		else {
+			scan(table, shortlist);
+		}
+
+		//
+		// Exact pass over the shortlist
+		//
+		NeighbourHeap heap = new NeighbourHeap(k);
+		for (int id : shortlist.sortedIds()) {
+			heap.offer(id, db.distance(id, query, offset));
+		}
+		return heap.sortedIds();
+	}
+
+	/**
+	 * Offer every code to the shortlist by its table distance.
+	 * Ids only increase, so a code that ties the worst one kept can never
+	 * replace it, and only codes closer than that need to be offered.
+	 * @param table the distance from the query to each region's centroids
+	 * @param shortlist the closest codes so far
+	 */
+	private void scan(float[] table, NeighbourHeap shortlist) {
+		int size = codes.length / subspaces;
+		float worst = shortlist.worst();
+		for (int id = 0, c = 0; id < size; id++, c += subspaces) {
+			float distance = 0;
+			for (int s = 0, t = 0; s < subspaces; s++, t += ProductQuantizer.CENTROIDS) {
+				distance += table[t + (codes[c + s] & 0xff)];
+			}
+			if (distance < worst) {
+				shortlist.offer(id, distance);
+				worst = shortlist.worst();
+			}
+		}
+	}
+
+	/**
+	 * Offer every code to the shortlist by its table distance, for the
+	 * default 2x2 grid. This is the same as scan with the loop over the
+	 * regions unrolled, which the JIT doesn't do itself and which makes it
+	 * over twice as fast.
+	 * @param table the distance from the query to each region's centroids
+	 * @param shortlist the closest codes so far
+	 */
+	private void scan2x2(float[] table, NeighbourHeap shortlist) {
+		int size = codes.length / 4;
+		float worst = shortlist.worst();
+		for (int id = 0, c = 0; id < size; id++, c += 4) {
+			float distance = table[codes[c] & 0xff]
+				+ table[ProductQuantizer.CENTROIDS + (codes[c + 1] & 0xff)]
+				+ table[2*ProductQuantizer.CENTROIDS + (codes[c + 2] & 0xff)]
+				+ table[3*ProductQuantizer.CENTROIDS + (codes[c + 3] & 0xff)];
+			if (distance < worst) {
+				shortlist.offer(id, distance);
+				worst = shortlist.worst();
+			}
+		}
+	}
+
+	/**
+	 * Measure how closely quantized matching follows exact matching on a DB,
+	 * and how fast each is. Queries are DB images' features with noise added,
+	 * standing in for the patches of an input image.
+	 * @param args the DB file and options
+	 */
+	public static void main(String[] args) {
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.size() != 1) {
+			System.err.println("Usage: java QuantizedIndex <binary DB file, DB CSV file or segmented DB directory> [--queries=N] [--candidates=N] [--rerank=N]");
+			System.err.println("Compares quantized matching against the k-d tree and checking every DB image, on N queries (default: 1000).");
+			System.exit(1);
+		}
+		File dbFile = new File(positional.get(0));
+		TileDatabase db = dbFile.isDirectory() ? new SegmentedDatabase(dbFile).load() : TileDatabase.open(dbFile.getPath());
+		int queries = cmd.getInt("queries", 1000);
+		int k = cmd.getInt("candidates", PhotoMosaic.DEFAULT_SEARCH_CANDIDATES);
+		int dimensions = db.getDimensions();
+		if (db.size() == 0) {
+			System.err.println("Error: " + dbFile.getPath() + " is empty.");
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		boolean stored = db.getQuantizer() != null;
+		QuantizedIndex quantized = new QuantizedIndex(db, cmd.getInt("rerank", DEFAULT_RERANK_FACTOR));
+		System.out.printf("[INFO] quantizer: %s in %.2fs%n", stored ? "read from the DB file" : "trained", (System.nanoTime() - start) / 1e9);
+		start = System.nanoTime();
+		KDTreeIndex tree = new KDTreeIndex(db.getInterleavedFeatures(), dimensions);
+		System.out.printf("[INFO] k-d tree: built in %.2fs%n", (System.nanoTime() - start) / 1e9);
+		System.out.printf("[INFO] memory per DB image: %d bytes of features, %d bytes of k-d tree, %d bytes of codes%n",
+			dimensions * 4, dimensions * 4 + 5, quantized.subspaces);
+
+		//
+		// Queries are random DB images, moved by about as much as a patch
+		// differs from its closest DB image
+		//
+		Random random = new Random(1);
+		float[] features = db.getInterleavedFeatures();
+		float[] query = new float[queries * dimensions];
+		for (int q = 0; q < queries; q++) {
+			int id = random.nextInt(db.size());
+			for (int d = 0; d < dimensions; d++) {
+				query[q*dimensions + d] = features[id*dimensions + d] + (float) random.nextGaussian() * 8;
+			}
+		}
+
+		//
+		// Find the exact answers by checking every DB image, and time each
+		// way of finding them. The first round only warms up the JIT.
+		//
+		int[][] exact = new int[queries][];
+		int[][] approximate = new int[queries][];
+		float[] distances = new float[db.size()];
+		double exactMicros = 0;
+		double treeMicros = 0;
+		double quantizedMicros = 0;
+		for (int round = 0; round < 2; round++) {
+			start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				db.distances(query, q*dimensions, distances);
+				NeighbourHeap heap = new NeighbourHeap(Math.min(k, db.size()));
+				for (int id = 0; id < db.size(); id++) {
+					heap.offer(id, distances[id]);
+				}
+				exact[q] = heap.sortedIds();
+			}
+			exactMicros = (System.nanoTime() - start) / 1e3 / queries;
+
+			start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				tree.nearest(query, q*dimensions, k);
+			}
+			treeMicros = (System.nanoTime() - start) / 1e3 / queries;
+
+			start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				approximate[q] = quantized.nearest(query, q*dimensions, k);
+			}
+			quantizedMicros = (System.nanoTime() - start) / 1e3 / queries;
+		}
+
+		//
+		// Compare the answers: how often the closest DB image was found, how
+		// many of the k closest were found, and how much further the closest
+		// DB image found is on average
+		//
+		int firstFound = 0;
+		long found = 0;
+		double exactDistance = 0;
+		double approximateDistance = 0;
+		for (int q = 0; q < queries; q++) {
+			if (approximate[q][0] == exact[q][0]) {
+				firstFound++;
+			}
+			Set<Integer> closest = new HashSet<Integer>();
+			for (int id : exact[q]) {
+				closest.add(id);
+			}
+			for (int id : approximate[q]) {
+				if (closest.contains(id)) {
+					found++;
+				}
+			}
+			exactDistance += Math.sqrt(db.distance(exact[q][0], query, q*dimensions));
+			approximateDistance += Math.sqrt(db.distance(approximate[q][0], query, q*dimensions));
+		}
+		System.out.printf("[INFO] %d queries, %d candidates each, over %d DB images%n", queries, k, db.size());
+		System.out.printf("[INFO] time per query: every DB image %.1fus, k-d tree %.1fus, quantized %.1fus%n", exactMicros, treeMicros, quantizedMicros);
+		System.out.printf("[INFO] closest DB image found: %.1f%% of queries%n", 100.0 * firstFound / queries);
+		System.out.printf("[INFO] closest %d DB images found: %.1f%%%n", k, 100.0 * found / ((long) queries * exact[0].length));
+		System.out.printf("[INFO] mean distance to the closest DB image found: exact %.3f, quantized %.3f%n", exactDistance / queries, approximateDistance / queries);
+	}
+}
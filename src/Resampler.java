@@ -0,0 +1,396 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+/**
+ * Scales images by working directly on their packed RGB pixels.
+ * This replaces Image.getScaledInstance, which is slow and can only use one
+ * core.
+ *
+ * Scaling is done in two passes: each source row is first scaled to the new
+ * width, then each output row is blended from the rows it covers. The weights
+ * for each pass are worked out once per scale rather than once per pixel.
+ * Both passes can be split across several threads; the result is the same no
+ * matter how many threads are used.
+ */
+public class Resampler {
+	/**
+	 * The ways a pixel's colour can be worked out from the source pixels.
+	 */
+	public enum Filter {
+		/**
+		 * Average the source pixels under each output pixel, weighted by how
+		 * much of them it covers. This is what Image.SCALE_SMOOTH does.
+		 */
+		AREA,
+		/**
+		 * Lanczos with 3 lobes, which keeps more detail when shrinking at the
+		 * cost of being slower.
+		 */
+		LANCZOS
+	}
+
+	/**
+	 * The number of lobes used by the Lanczos filter.
+	 */
+	private static final int LANCZOS_LOBES = 3;
+	/**
+	 * The fewest rows given to each thread. Splitting the work up any finer
+	 * costs more than it saves.
+	 */
+	private static final int MIN_ROWS_PER_TASK = 16;
+
+	/**
+	 * The filter used to work out each output pixel.
+	 */
+	private Filter filter;
+	/**
+	 * The threads to scale on, or null to scale on the calling thread.
+	 */
+	private ExecutorService pool;
+	/**
+	 * The number of threads in the pool.
+	 */
+	private int threads;
+
+	/**
+	 * The source pixels that go into each output pixel along one axis.
+	 */
+	private static class Weights {
+		/**
+		 * The most source pixels that go into any output pixel.
+		 */
+		int taps;
+		/**
+		 * The first source pixel that goes into each output pixel.
+		 */
+		int[] first;
+		/**
+		 * The weight of each source pixel, taps per output pixel.
+		 */
+		float[] weights;
+	}
+
+	/**
+	 * Create a resampler that scales on the calling thread.
+	 * @param filter the filter used to work out each output pixel
+	 */
+	public Resampler(Filter filter) {
+		this(filter, null, 1);
+	}
+
+	/**
+	 * Create a resampler that splits its work across a thread pool.
+	 * @param filter the filter used to work out each output pixel
+	 * @param pool the threads to scale on, or null to scale on the calling thread
+	 * @param threads the number of threads in the pool
+	 */
+	public Resampler(Filter filter, ExecutorService pool, int threads) {
+		this.filter = filter;
+		this.pool = pool;
+		this.threads = pool == null ? 1 : Math.max(threads, 1);
+	}
+
+	/**
+	 * Scale an image.
+	 * @param image the image to scale
+	 * @param width the width to scale the image to
+	 * @param height the height to scale the image to
+	 * @return the scaled image
+	 * @throws IOException if interrupted while waiting on the thread pool
+	 */
+	public BufferedImage scale(BufferedImage image, int width, int height) throws IOException {
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+		scaleRows(
+			PatchFeatures.pixels(image), image.getWidth(), image.getHeight(),
+			pixels, 0, width, width, height, 0, height
+		);
+		return scaled;
+	}
+
+	/**
+	 * Scale some of the rows of an image, as if the whole image were scaled.
+	 * Only the source rows those rows cover are read, so a large output can
+	 * be made a strip at a time.
+	 * @param source the packed RGB pixels of the image to scale
+	 * @param sourceWidth the width of the image to scale
+	 * @param sourceHeight the height of the image to scale
+	 * @param out the packed RGB pixels to write the scaled rows to
+	 * @param offset the position in out of the first scaled row
+	 * @param scanline the distance between rows in out
+	 * @param width the width to scale the image to
+	 * @param height the height to scale the image to
+	 * @param rowStart the first scaled row to work out
+	 * @param rowEnd one past the last scaled row to work out
+	 * @throws IOException if interrupted while waiting on the thread pool
+	 */
+	public void scaleRows(int[] source, int sourceWidth, int sourceHeight, int[] out, int offset, int scanline, int width, int height, int rowStart, int rowEnd) throws IOException {
+		Weights across = weights(sourceWidth, width);
+		Weights down = weights(sourceHeight, height);
+
+		// The source rows the requested rows cover
+		int sourceStart = down.first[rowStart];
+		int sourceEnd = sourceStart;
+		for (int y = rowStart; y < rowEnd; y++) {
+			sourceEnd = Math.max(sourceEnd, down.first[y] + down.taps);
+		}
+		sourceEnd = Math.min(sourceEnd, sourceHeight);
+		final int first = sourceStart;
+
+		//
+		// Scale each source row to the new width, keeping the three channels
+		// of each pixel as floats so no precision is lost between the passes.
+		//
+		final float[] rows = new float[(sourceEnd - sourceStart) * width * 3];
+		forEachRow(sourceStart, sourceEnd, (start, end) -> {
+			for (int y = start; y < end; y++) {
+				int in = y * sourceWidth;
+				int row = (y - first) * width * 3;
+				for (int x = 0; x < width; x++) {
+					float r = 0, g = 0, b = 0;
+					int tap = x * across.taps;
+					int from = in + across.first[x];
+					for (int k = 0; k < across.taps; k++) {
+						float weight = across.weights[tap + k];
+						int rgb = source[from + k];
+						r += weight * ((rgb >> 16) & 0xff);
+						g += weight * ((rgb >> 8) & 0xff);
+						b += weight * (rgb & 0xff);
+					}
+					rows[row + x*3] = r;
+					rows[row + x*3 + 1] = g;
+					rows[row + x*3 + 2] = b;
+				}
+			}
+		});
+
+		//
+		// Blend the scaled rows into each output row
+		//
+		forEachRow(rowStart, rowEnd, (start, end) -> {
+			float[] sum = new float[width * 3];
+			for (int y = start; y < end; y++) {
+				Arrays.fill(sum, 0);
+				int tap = y * down.taps;
+				for (int k = 0; k < down.taps; k++) {
+					float weight = down.weights[tap + k];
+					if (weight == 0) {
+						continue;
+					}
+					int row = (down.first[y] + k - first) * width * 3;
+					for (int i = 0; i < sum.length; i++) {
+						sum[i] += weight * rows[row + i];
+					}
+				}
+
+				int row = offset + (y - rowStart) * scanline;
+				for (int x = 0; x < width; x++) {
+					out[row + x] = (clamp(sum[x*3]) << 16) | (clamp(sum[x*3 + 1]) << 8) | clamp(sum[x*3 + 2]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Work out which source pixels go into each output pixel along one axis,
+	 * and how much each counts for.
+	 * Source pixels past the edges are treated as copies of the edge pixels.
+	 * @param sourceSize the number of source pixels
+	 * @param size the number of output pixels
+	 * @return the weights for every output pixel
+	 */
+	private Weights weights(int sourceSize, int size) {
+		double scale = (double) sourceSize / size;
+		// Only stretch the filter when shrinking; when enlarging, each output
+		// pixel is worked out from the source pixels nearest it
+		double stretch = Math.max(scale, 1.0);
+		double support = filter == Filter.LANCZOS ? LANCZOS_LOBES * stretch : stretch/2 + 0.5;
+
+		Weights w = new Weights();
+		w.taps = Math.min((int) Math.ceil(support * 2) + 2, sourceSize);
+		w.first = new int[size];
+		w.weights = new float[size * w.taps];
+		double[] raw = new double[w.taps];
+		for (int i = 0; i < size; i++) {
+			// The centre of the output pixel, in source pixels
+			double centre = (i + 0.5) * scale;
+			int first = Math.max(0, Math.min((int) Math.floor(centre - support), sourceSize - w.taps));
+			Arrays.fill(raw, 0);
+
+			double total = 0;
+			for (int j = (int) Math.floor(centre - support); j <= (int) Math.ceil(centre + support); j++) {
+				double weight;
+				if (filter == Filter.LANCZOS) {
+					weight = lanczos((j + 0.5 - centre) / stretch);
+				}
+				else {
+					// How much of the source pixel the output pixel covers
+					double low = Math.max(j, centre - scale/2);
+					double high = Math.min(j + 1, centre + scale/2);
+					weight = Math.max(high - low, 0);
+				}
+				if (weight == 0) {
+					continue;
+				}
+				int k = Math.max(0, Math.min(j, sourceSize - 1)) - first;
+				raw[Math.max(0, Math.min(k, w.taps - 1))] += weight;
+				total += weight;
+			}
+
+			w.first[i] = first;
+			for (int k = 0; k < w.taps; k++) {
+				w.weights[i*w.taps + k] = (float) (raw[k] / total);
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * @param x the distance from the centre of the filter, in pixels
+	 * @return the Lanczos filter's weight at that distance
+	 */
+	private static double lanczos(double x) {
+		if (x == 0) {
+			return 1;
+		}
+		if (Math.abs(x) >= LANCZOS_LOBES) {
+			return 0;
+		}
+		double px = Math.PI * x;
+		return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+	}
+
+	/**
+	 * @param channel a blended colour channel
+	 * @return the channel rounded to the nearest value from 0 to 255
+	 */
+	private static int clamp(float channel) {
+		return Math.max(0, Math.min(255, Math.round(channel)));
+	}
+
+	/**
+	 * Work on a range of rows.
+	 */
+	private interface RowTask {
+		/**
+		 * @param start the first row
+		 * @param end one past the last row
+		 */
+		void run(int start, int end);
+	}
+
+	/**
+	 * Split a range of rows across the thread pool, or work on them all on
+	 * this thread if there is no pool.
+	 * @param start the first row
+	 * @param end one past the last row
+	 * @param task the work to do on each part of the range
+	 * @throws IOException if interrupted while waiting on the thread pool
+	 */
+	private void forEachRow(int start, int end, RowTask task) throws IOException {
+		int parts = Math.min(threads, (end - start + MIN_ROWS_PER_TASK - 1) / MIN_ROWS_PER_TASK);
+		if (parts <= 1) {
+			task.run(start, end);
+			return;
+		}
+
+		java.util.List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < parts; p++) {
+			int partStart = start + (int) ((long) (end - start) * p / parts);
+			int partEnd = start + (int) ((long) (end - start) * (p + 1) / parts);
+			tasks.add(() -> {
+				task.run(partStart, partEnd);
+				return null;
+			});
+		}
+		try {
+			for (Future<Void> part : pool.invokeAll(tasks)) {
+				part.get();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while scaling an image", e);
+		}
+		catch (ExecutionException e) {
+			// A row task can't throw a checked exception
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	/**
+	 * Compare how long scaling an image takes with Image.getScaledInstance
+	 * and with a Resampler.
+	 * @param args the image to scale, the size to scale it to, and optionally the number of repetitions
+	 */
+	public static void main(String[] args) {
+		CommandLine cmd = new CommandLine(args);
+		java.util.List<String> positional = cmd.getPositional();
+		if (positional.size() < 2) {
+			System.err.println("Usage: java Resampler <image> <size> [repetitions (default: 20)] [--threads=N]");
+			System.err.println("e.g. java Resampler ./img/schnauzer.jpg 32");
+			System.err.println("^-- This times scaling the image to 32x32 with Image.getScaledInstance and");
+			System.err.println("    with each Resampler filter.");
+			System.exit(1);
+		}
+
+		try {
+			BufferedImage image = ImageIO.read(new File(positional.get(0)));
+			if (image == null) {
+				throw new IllegalArgumentException(positional.get(0) + " is not a valid image.");
+			}
+			int size = Integer.parseInt(positional.get(1));
+			int repetitions = positional.size() >= 3 ? Integer.parseInt(positional.get(2)) : 20;
+			int threads = cmd.getInt("threads", 1);
+			ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+			// The scaling PhotoMosaic and ProcessDB did before
+			long start = System.nanoTime();
+			for (int i = 0; i < repetitions; i++) {
+				Image scaled = image.getScaledInstance(size, size, Image.SCALE_SMOOTH);
+				BufferedImage newImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+				newImage.getGraphics().drawImage(scaled, 0, 0, null);
+			}
+			report("getScaledInstance", start, repetitions);
+
+			for (Filter filter : Filter.values()) {
+				Resampler resampler = new Resampler(filter, pool, threads);
+				start = System.nanoTime();
+				for (int i = 0; i < repetitions; i++) {
+					resampler.scale(image, size, size);
+				}
+				report(filter.toString(), start, repetitions);
+			}
+
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print how long each repetition of a scaling method took.
+	 * @param name the scaling method
+	 * @param start when the repetitions started, from System.nanoTime
+	 * @param repetitions the number of repetitions
+	 */
+	private static void report(String name, long start, int repetitions) {
+		double millis = (System.nanoTime() - start) / 1e6 / repetitions;
+		System.out.println(String.format("[INFO] %-18s %10.2f ms per image", name, millis));
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Times the phases of a run of PhotoMosaic or ProcessDB and counts the work
+ * done in them, so that a run can be written out as a JSON report.
+ *
+ * Timing a phase is just two System.nanoTime() calls and two LongAdder
+ * adds, so it is cheap enough to do for every patch. A LongAdder spreads its
+ * adds over several cells under contention, so render threads timing the
+ * same phase don't fight over one cache line. Phases run on several threads
+ * at once are timed on each thread and added up, so their total can be more
+ * than the wall clock time of the run.
+ *
+ * Only the phases and counters a run actually uses are reported.
+ */
+public class RunMetrics {
+	/**
+	 * The parts of a run that are timed.
+	 */
+	public enum Phase {
+		/** Loading the DB file. */
+		DB_LOAD("dbLoad"),
+		/** Building the nearest neighbour index over the DB. */
+		INDEX_BUILD("indexBuild"),
+		/** Reading input image files and hashing their contents. */
+		HASH("hash"),
+		/** Decoding input images. */
+		DECODE("decode"),
+		/** Scaling images. */
+		SCALE("scale"),
+		/** Averaging the regions of images or patches. */
+		FEATURES("features"),
+		/** Finding the closest database image for each patch. */
+		MATCH("match"),
+		/** Keeping the uniqueness windows up to date as tiles are placed. */
+		UNIQUENESS("uniqueness"),
+		/** Getting the pixels of placed database images from the tile cache. */
+		TILE_READ("tileRead"),
+		/** Decoding database images the tile cache didn't have. This is part of TILE_READ. */
+		TILE_DECODE("tileDecode"),
+		/** Copying database images into the photomosaic. */
+		BLIT("blit"),
+		/** Creating the coarse previews of a photomosaic. Their matching, uniqueness, tile reads and blits are also counted in those phases. */
+		PREVIEW("preview"),
+		/** Encoding and writing output images. */
+		WRITE("write"),
+		/** Writing the DB CSV file, binary DB file and tile pack. */
+		DB_WRITE("dbWrite");
+
+		/**
+		 * The name the phase is reported under.
+		 */
+		private final String key;
+
+		Phase(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The things that are counted.
+	 */
+	public enum Counter {
+		/** Patches that have had a database image placed on them. */
+		PATCHES("patches"),
+		/** Patches that kept the database image placed on them in the previous frame of a sequence. */
+		PATCHES_REUSED("patchesReused"),
+		/** Database images compared against a patch, with the uniqueness penalty applied. */
+		CANDIDATES("candidatesEvaluated"),
+		/** Tile cache lookups that found the database image. */
+		CACHE_HITS("cacheHits"),
+		/** Tile cache lookups that had to load the database image. */
+		CACHE_MISSES("cacheMisses"),
+		/** Database images decoded from their JPEG files. */
+		TILES_DECODED("tilesDecoded"),
+		/** Input images turned into DB images. */
+		IMAGES_PROCESSED("imagesProcessed"),
+		/** Input images that could not be turned into DB images. */
+		IMAGES_SKIPPED("imagesSkipped"),
+		/** Input images already in the DB from an earlier run. */
+		IMAGES_RESUMED("imagesResumed"),
+		/** Input images that changed since they were added to the DB, and were added again. */
+		IMAGES_CHANGED("imagesChanged"),
+		/** Input images skipped because another input image has the same contents. */
+		DUPLICATES("duplicatesSkipped"),
+		/** Input images skipped because another input image looks almost the same. */
+		NEAR_DUPLICATES("nearDuplicatesSkipped");
+
+		/**
+		 * The name the counter is reported under.
+		 */
+		private final String key;
+
+		Counter(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * The name of the program being measured.
+	 */
+	private String program;
+	/**
+	 * The System.nanoTime() the run started at.
+	 */
+	private long start = System.nanoTime();
+	/**
+	 * The System.nanoTime() the run finished at, or 0 if it is still going.
+	 */
+	private volatile long end;
+	/**
+	 * The nanoseconds spent in each phase, indexed by ordinal.
+	 */
+	private LongAdder[] phaseNanos = adders(Phase.values().length);
+	/**
+	 * The number of times each phase was timed, indexed by ordinal.
+	 */
+	private LongAdder[] phaseCalls = adders(Phase.values().length);
+	/**
+	 * The value of each counter, indexed by ordinal.
+	 */
+	private LongAdder[] counters = adders(Counter.values().length);
+	/**
+	 * Whether each counter has been used, indexed by ordinal.
+	 */
+	private AtomicIntegerArray countersUsed = new AtomicIntegerArray(Counter.values().length);
+	/**
+	 * The settings the run was made with, in the order they were recorded.
+	 */
+	private Map<String, Object> settings = new LinkedHashMap<String, Object>();
+	/**
+	 * The estimated size in bytes of the largest buffers the run allocated,
+	 * in the order they were recorded.
+	 */
+	private Map<String, Long> allocations = new LinkedHashMap<String, Long>();
+
+	/**
+	 * Start measuring a run.
+	 * @param program the name of the program being measured
+	 */
+	public RunMetrics(String program) {
+		this.program = program;
+	}
+
+	/**
+	 * @param count the number of adders
+	 * @return an array of new adders
+	 */
+	private static LongAdder[] adders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * Add the time since a phase started to the phase.
+	 * @param phase the phase
+	 * @param start the System.nanoTime() the phase started at
+	 * @return the current System.nanoTime(), to start timing the next phase from
+	 */
+	public long time(Phase phase, long start) {
+		long now = System.nanoTime();
+		phaseNanos[phase.ordinal()].add(now - start);
+		phaseCalls[phase.ordinal()].increment();
+		return now;
+	}
+
+	/**
+	 * Add to a counter.
+	 * @param counter the counter
+	 * @param amount the amount to add
+	 */
+	public void count(Counter counter, long amount) {
+		counters[counter.ordinal()].add(amount);
+		// Only written once, so the flag's cache line stays shared
+		if (countersUsed.get(counter.ordinal()) == 0) {
+			countersUsed.set(counter.ordinal(), 1);
+		}
+	}
+
+	/**
+	 * @param counter a counter
+	 * @return the counter's value
+	 */
+	public long get(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * @param phase a phase
+	 * @return the seconds spent in the phase, added up over every thread
+	 */
+	public double seconds(Phase phase) {
+		return phaseNanos[phase.ordinal()].sum() / 1e9;
+	}
+
+	/**
+	 * @param phase a phase
+	 * @return the number of times the phase was timed
+	 */
+	public long calls(Phase phase) {
+		return phaseCalls[phase.ordinal()].sum();
+	}
+
+	/**
+	 * Record a setting the run was made with.
+	 * @param name the name of the setting
+	 * @param value the setting's value: a string, number or boolean
+	 */
+	public synchronized void setting(String name, Object value) {
+		settings.put(name, value);
+	}
+
+	/**
+	 * Record the estimated size of a buffer the run allocated. If the buffer
+	 * is allocated more than once, the largest size is kept.
+	 * @param name the name of the buffer
+	 * @param bytes the estimated size of the buffer in bytes
+	 */
+	public synchronized void allocation(String name, long bytes) {
+		allocations.merge(name, bytes, Math::max);
+	}
+
+	/**
+	 * Stop the run's wall clock.
+	 */
+	public void finish() {
+		end = System.nanoTime();
+	}
+
+	/**
+	 * @return the seconds the run took, or has taken so far
+	 */
+	public double wallSeconds() {
+		long stop = end != 0 ? end : System.nanoTime();
+		return (stop - start) / 1e9;
+	}
+
+	/**
+	 * @return a one line summary of the time spent in each phase
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder(String.format("%.2fs total", wallSeconds()));
+		for (Phase phase : Phase.values()) {
+			if (calls(phase) > 0) {
+				sb.append(String.format(", %s %.2fs", phase.key, seconds(phase)));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the run as a JSON object
+	 */
+	public synchronized String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"program\": ").append(quote(program)).append(",\n");
+		sb.append("  \"wallSeconds\": ").append(number(wallSeconds())).append(",\n");
+
+		sb.append("  \"settings\": {");
+		String separator = "\n";
+		for (Map.Entry<String, Object> setting : settings.entrySet()) {
+			Object value = setting.getValue();
+			String json = value instanceof Number || value instanceof Boolean ? value.toString() : quote(String.valueOf(value));
+			sb.append(separator).append("    ").append(quote(setting.getKey())).append(": ").append(json);
+			separator = ",\n";
+		}
+		sb.append(settings.isEmpty() ? "},\n" : "\n  },\n");
+
+		sb.append("  \"phases\": {");
+		separator = "\n";
+		boolean any = false;
+		for (Phase phase : Phase.values()) {
+			long calls = calls(phase);
+			if (calls > 0) {
+				sb.append(separator).append("    ").append(quote(phase.key))
+					.append(": { \"seconds\": ").append(number(seconds(phase)))
+					.append(", \"calls\": ").append(calls).append(" }");
+				separator = ",\n";
+				any = true;
+			}
+		}
+		sb.append(any ? "\n  },\n" : "},\n");
+
+		sb.append("  \"counters\": {");
+		separator = "\n";
+		any = false;
+		for (Counter counter : Counter.values()) {
+			if (countersUsed.get(counter.ordinal()) != 0) {
+				sb.append(separator).append("    ").append(quote(counter.key)).append(": ").append(get(counter));
+				separator = ",\n";
+				any = true;
+			}
+		}
+		sb.append(any ? "\n  },\n" : "},\n");
+
+		sb.append("  \"allocations\": {");
+		separator = "\n";
+		for (Map.Entry<String, Long> allocation : allocations.entrySet()) {
+			sb.append(separator).append("    ").append(quote(allocation.getKey())).append(": ").append(allocation.getValue());
+			separator = ",\n";
+		}
+		sb.append(allocations.isEmpty() ? "},\n" : "\n  },\n");
+
+		//
+		// What the JVM saw of the run, for sizing the heap of render workers
+		//
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcMillis += Math.max(gc.getCollectionTime(), 0);
+		}
+		sb.append("  \"jvm\": {\n");
+		sb.append("    \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+		sb.append("    \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+		sb.append("    \"peakHeapBytes\": ").append(peakHeap).append(",\n");
+		sb.append("    \"gcCount\": ").append(gcCount).append(",\n");
+		sb.append("    \"gcSeconds\": ").append(number(gcMillis / 1000.0)).append("\n");
+		sb.append("  }\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Write the run out as a JSON file.
+	 * @param file the file to write
+	 * @throws IOException if the file could not be written
+	 */
+	public void writeReport(File file) throws IOException {
+		try (Writer out = new BufferedWriter(new FileWriter(file))) {
+			out.write(toJson());
+		}
+	}
+
+	/**
+	 * @param value a number of seconds
+	 * @return the number as a JSON number, to the microsecond
+	 */
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.6f", value);
+	}
+
+	/**
+	 * @param value a string
+	 * @return the string as a quoted and escaped JSON string
+	 */
+	public static String quote(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A DB made up of segments, so database images can be added and removed
+ * without rewriting the whole DB.
+ *
+ * A segmented DB is a directory holding:
+ * <ul>
+ * <li>segments: binary DB files named seg-NNNNNN.bin, each with an optional
+ *     tile pack, which are never changed once written</li>
+ * <li>MANIFEST: the names of the segments making up the DB, oldest first,
+ *     which is replaced in one step whenever a segment is added</li>
+ * <li>TOMBSTONES: the DB images that have been deleted, one per line as the
+ *     number of the newest segment at the time followed by a tab and the
+ *     DB image's path. Only entries in that segment or older are deleted, so
+ *     an image can be added again later.</li>
+ * <li>pending.csv and pending.pack: the entries ProcessDB is in the middle of
+ *     adding, which become a new segment when it finishes</li>
+ * </ul>
+ * Compacting the DB merges every segment into one, leaving out the deleted
+ * entries. Only one process should change a segmented DB at a time.
+ */
+public class SegmentedDatabase {
+	/**
+	 * The extension of segmented DB directories.
+	 */
+	public static final String EXTENSION = ".segments";
+	/**
+	 * The name of the file listing the segments.
+	 */
+	private static final String MANIFEST = "MANIFEST";
+	/**
+	 * The name of the file listing the deleted DB images.
+	 */
+	private static final String TOMBSTONES = "TOMBSTONES";
+	/**
+	 * The name of the entries being added, without an extension.
+	 */
+	private static final String PENDING = "pending";
+	/**
+	 * The names of segments: "seg-" followed by their number.
+	 */
+	private static final Pattern SEGMENT_NAME = Pattern.compile("seg-(\\d+)");
+
+	/**
+	 * The directory holding the DB.
+	 */
+	private File dir;
+	/**
+	 * The names of the segments making up the DB, oldest first.
+	 */
+	private java.util.List<String> segments = new ArrayList<String>();
+	/**
+	 * The deleted DB images, mapped to the newest segment they are deleted from.
+	 */
+	private Map<String, Integer> deleted = new HashMap<String, Integer>();
+	/**
+	 * After load(), which segment each database image is in, indexed by id.
+	 */
+	private int[] segmentOf;
+	/**
+	 * After load(), the id of each database image in its segment, indexed by id.
+	 */
+	private int[] segmentIds;
+
+	/**
+	 * Open a segmented DB. The directory doesn't have to exist yet; it is
+	 * created when the first segment is added.
+	 * @param dir the directory holding the DB
+	 * @throws IllegalArgumentException if the manifest or tombstones could not be read
+	 */
+	public SegmentedDatabase(File dir) throws IllegalArgumentException {
+		this.dir = dir;
+		try {
+			for (String line : readLines(new File(dir, MANIFEST))) {
+				segments.add(line);
+			}
+			for (String line : readLines(new File(dir, TOMBSTONES))) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					deleted.merge(line.substring(tab + 1), Integer.parseInt(line.substring(0, tab)), Math::max);
+				}
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			throw new IllegalArgumentException("Error: unable to read segmented DB: " + dir.getPath());
+		}
+	}
+
+	/**
+	 * @return the directory holding the DB
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @return the names of the segments making up the DB, oldest first
+	 */
+	public java.util.List<String> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * @return the DB CSV file ProcessDB writes new entries to before they become a segment
+	 */
+	public File getPendingCsv() {
+		return new File(dir, PENDING + ".csv");
+	}
+
+	/**
+	 * @return the number of regions across and down each database image, or 0 if the DB is empty
+	 * @throws IllegalArgumentException if the first segment could not be read
+	 */
+	public int getGrid() throws IllegalArgumentException {
+		return segments.isEmpty() ? 0 : TileDatabaseFile.map(segmentFile(segments.get(0), TileDatabaseFile.EXTENSION)).getGrid();
+	}
+
+	/**
+	 * @return the colour space of the database images' features, or null if the DB is empty
+	 * @throws IllegalArgumentException if the first segment could not be read
+	 */
+	public ColourSpace getColourSpace() throws IllegalArgumentException {
+		return segments.isEmpty() ? null : TileDatabaseFile.map(segmentFile(segments.get(0), TileDatabaseFile.EXTENSION)).getColourSpace();
+	}
+
+	/**
+	 * @return the square database image width, or 0 if the DB is empty
+	 * @throws IOException if the first segment could not be read
+	 */
+	public int getPatchSize() throws IOException {
+		return segments.isEmpty() ? 0 : TileDatabaseFile.readPatchSize(segmentFile(segments.get(0), TileDatabaseFile.EXTENSION));
+	}
+
+	/**
+	 * Load every entry that hasn't been deleted from every segment.
+	 * Entries are in segment order, so ids are stable until the DB changes.
+	 * @return the database
+	 * @throws IllegalArgumentException if a segment could not be read, or the segments' grid sizes or colour spaces differ
+	 */
+	public TileDatabase load() throws IllegalArgumentException {
+		TileDatabase db = null;
+		segmentOf = new int[16];
+		segmentIds = new int[16];
+		for (int s = 0; s < segments.size(); s++) {
+			TileDatabase segment = TileDatabaseFile.map(segmentFile(segments.get(s), TileDatabaseFile.EXTENSION));
+			if (db == null) {
+				db = new TileDatabase(segment.getDimensions(), segment.getColourSpace());
+			}
+			else if (segment.getDimensions() != db.getDimensions()) {
+				throw new IllegalArgumentException(segments.get(s) + " uses a different grid size to the rest of " + dir.getPath() + ".");
+			}
+			else if (segment.getColourSpace() != db.getColourSpace()) {
+				throw new IllegalArgumentException(segments.get(s) + " uses a different colour space to the rest of " + dir.getPath() + ".");
+			}
+
+			int number = segmentNumber(segments.get(s));
+			for (int id = 0; id < segment.size(); id++) {
+				if (isDeleted(segment.getPath(id), number)) {
+					continue;
+				}
+				int newId = db.add(segment, id);
+				if (newId == segmentOf.length) {
+					segmentOf = Arrays.copyOf(segmentOf, newId * 2);
+					segmentIds = Arrays.copyOf(segmentIds, newId * 2);
+				}
+				segmentOf[newId] = s;
+				segmentIds[newId] = id;
+			}
+		}
+
+		if (db == null) {
+			// An empty DB; assume the default grid
+			db = new TileDatabase(PatchFeatures.dimensions(PatchFeatures.DEFAULT_GRID));
+		}
+		segmentOf = Arrays.copyOf(segmentOf, db.size());
+		segmentIds = Arrays.copyOf(segmentIds, db.size());
+		return db;
+	}
+
+	/**
+	 * Join the tile packs of every segment, in the same order as the
+	 * database returned by the last call to load().
+	 * @param patchSize the width of each database image
+	 * @return the joined tile pack, or null if some segment has no tile pack
+	 * @throws IllegalArgumentException if load() hasn't been called
+	 */
+	public TilePack openTilePack(int patchSize) throws IllegalArgumentException {
+		if (segmentOf == null) {
+			throw new IllegalArgumentException("The DB has to be loaded before its tile packs are opened.");
+		}
+		TilePack[] packs = new TilePack[segments.size()];
+		for (int s = 0; s < packs.length; s++) {
+			File packFile = segmentFile(segments.get(s), TilePack.EXTENSION);
+			if (!packFile.exists()) {
+				if (s > 0) {
+					System.err.println("[WARN] " + segments.get(s) + " has no tile pack, so none of " + dir.getPath() + "'s tile packs can be used.");
+				}
+				return null;
+			}
+			try {
+				packs[s] = new TilePack(packFile, patchSize);
+			}
+			catch (IOException e) {
+				System.err.println("[WARN] unable to open tile pack: " + e.getMessage() + " Ignoring it...");
+				return null;
+			}
+		}
+		return TilePack.join(packs, segmentOf, segmentIds);
+	}
+
+	/**
+	 * @return the paths of every database image that hasn't been deleted
+	 * @throws IllegalArgumentException if a segment could not be read
+	 */
+	public Set<String> livePaths() throws IllegalArgumentException {
+		TileDatabase db = load();
+		Set<String> paths = new HashSet<String>();
+		for (int id = 0; id < db.size(); id++) {
+			paths.add(db.getPath(id));
+		}
+		return paths;
+	}
+
+	/**
+	 * Turn the pending entries written by ProcessDB into a new segment, along
+	 * with their tile pack if there is one. Entries that are already in the
+	 * DB (e.g. from a run that was interrupted while adding its segment) are
+	 * left out. The pending entries' sRGB features are converted to the DB's
+	 * colour space.
+	 * @param patchSize the width of each database image
+	 * @param colourSpace the colour space of the DB's features
+	 * @return the number of entries added
+	 * @throws IOException if the segment could not be written
+	 * @throws IllegalArgumentException if the DB's segments use a different colour space
+	 */
+	public int commitPending(int patchSize, ColourSpace colourSpace) throws IOException, IllegalArgumentException {
+		File pendingCsv = getPendingCsv();
+		File pendingPack = new File(TilePack.packPath(pendingCsv.getPath()));
+		if (!pendingCsv.exists()) {
+			return 0;
+		}
+		ColourSpace existing = getColourSpace();
+		if (existing != null && existing != colourSpace) {
+			throw new IllegalArgumentException(dir.getPath() + " holds " + existing + " features, not " + colourSpace + ".");
+		}
+		TileDatabase pending = TileDatabase.loadCsv(pendingCsv.getPath());
+		pending.convertTo(colourSpace);
+		TilePack pack = null;
+		if (pendingPack.exists()) {
+			pack = new TilePack(pendingPack, patchSize);
+			if (pack.size() != pending.size()) {
+				throw new IOException(pendingPack.getPath() + " has " + pack.size() + " DB images but " + pendingCsv.getPath() + " has " + pending.size() + ".");
+			}
+		}
+
+		//
+		// Leave out anything already in the DB, and any entry replaced by a
+		// later one for the same path
+		//
+		Set<String> live = livePaths();
+		Map<String, Integer> latest = new HashMap<String, Integer>();
+		for (int id = 0; id < pending.size(); id++) {
+			latest.put(pending.getPath(id), id);
+		}
+		TileDatabase added = new TileDatabase(pending.getDimensions(), colourSpace);
+		int[] packIds = new int[pending.size()];
+		for (int id = 0; id < pending.size(); id++) {
+			String path = pending.getPath(id);
+			if (!live.contains(path) && latest.get(path) == id) {
+				packIds[added.add(pending, id)] = id;
+			}
+		}
+
+		if (added.size() > 0) {
+			TilePack addedPack = pack == null ? null : TilePack.join(new TilePack[] { pack }, new int[added.size()], Arrays.copyOf(packIds, added.size()));
+			segments.add(writeSegment(added, addedPack, patchSize));
+			writeManifest();
+		}
+		pendingCsv.delete();
+		pendingPack.delete();
+		return added.size();
+	}
+
+	/**
+	 * Add every entry of another DB file as a new segment, e.g. to turn a
+	 * single file DB into a segmented one. Its tile pack is copied too, if
+	 * it has one. Entries already in the DB are left out, and features are
+	 * converted to the DB's colour space.
+	 * @param dbFilePath the path to the binary DB file or DB csv file
+	 * @param patchSize the width of each database image
+	 * @return the number of entries added
+	 * @throws IOException if the segment could not be written
+	 * @throws IllegalArgumentException if the DB file could not be read, or uses a different grid size
+	 */
+	public int importDatabase(String dbFilePath, int patchSize) throws IOException, IllegalArgumentException {
+		TileDatabase source = TileDatabase.open(dbFilePath);
+		int grid = getGrid();
+		if (grid != 0 && grid != source.getGrid()) {
+			throw new IllegalArgumentException(dbFilePath + " uses a different grid size to " + dir.getPath() + ".");
+		}
+		ColourSpace colourSpace = getColourSpace();
+		if (colourSpace != null) {
+			source.convertTo(colourSpace);
+		}
+
+		TilePack pack = null;
+		File packFile = new File(TilePack.packPath(dbFilePath));
+		if (packFile.exists()) {
+			pack = new TilePack(packFile, patchSize);
+			if (pack.size() != source.size()) {
+				System.err.println("[WARN] " + packFile.getPath() + " has " + pack.size() + " DB images but the DB has " + source.size() + ". Ignoring it...");
+				pack = null;
+			}
+		}
+
+		Set<String> live = livePaths();
+		TileDatabase added = new TileDatabase(source.getDimensions(), source.getColourSpace());
+		int[] packIds = new int[source.size()];
+		for (int id = 0; id < source.size(); id++) {
+			if (!live.contains(source.getPath(id))) {
+				packIds[added.add(source, id)] = id;
+			}
+		}
+		if (added.size() > 0) {
+			TilePack addedPack = pack == null ? null : TilePack.join(new TilePack[] { pack }, new int[added.size()], Arrays.copyOf(packIds, added.size()));
+			segments.add(writeSegment(added, addedPack, patchSize));
+			writeManifest();
+		}
+		return added.size();
+	}
+
+	/**
+	 * Delete DB images by recording tombstones for them. Their entries stay
+	 * in the segments until the DB is compacted.
+	 * @param paths the paths of the DB images, as recorded in the DB
+	 * @return the number of DB images deleted; paths that aren't in the DB are ignored
+	 * @throws IOException if the tombstones could not be written
+	 */
+	public int delete(Collection<String> paths) throws IOException {
+		if (segments.isEmpty()) {
+			return 0;
+		}
+		Set<String> live = livePaths();
+		int newest = segmentNumber(segments.get(segments.size() - 1));
+		int count = 0;
+		try (Writer out = new BufferedWriter(new FileWriter(new File(dir, TOMBSTONES), true))) {
+			for (String path : paths) {
+				if (live.remove(path)) {
+					out.write(newest + "\t" + path + "\n");
+					deleted.merge(path, newest, Math::max);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Merge every segment into one, leaving out deleted entries. The new
+	 * segment is written and the manifest replaced before the old segments
+	 * are removed, so the DB can be read at any point.
+	 * @return whether anything was merged; a DB with one segment and no tombstones is already compact
+	 * @throws IOException if the new segment could not be written
+	 */
+	public boolean compact() throws IOException {
+		if (segments.size() <= 1 && deleted.isEmpty()) {
+			return false;
+		}
+		int patchSize = getPatchSize();
+		TileDatabase db = load();
+		TilePack pack = openTilePack(patchSize);
+
+		java.util.List<String> old = new ArrayList<String>(segments);
+		segments.clear();
+		segments.add(writeSegment(db, pack, patchSize));
+		writeManifest();
+
+		// Every tombstone is for an older segment than the new one
+		new File(dir, TOMBSTONES).delete();
+		deleted.clear();
+		for (String name : old) {
+			segmentFile(name, TileDatabaseFile.EXTENSION).delete();
+			segmentFile(name, TilePack.EXTENSION).delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Write out a new segment. It doesn't become part of the DB until it is
+	 * in the manifest.
+	 * @param db the segment's entries
+	 * @param pack the tile pack holding the entries' pixels, in the same order, or null
+	 * @param patchSize the width of each database image
+	 * @return the name of the segment
+	 * @throws IOException if the segment could not be written
+	 */
+	private String writeSegment(TileDatabase db, TilePack pack, int patchSize) throws IOException {
+		dir.mkdirs();
+		String name = nextSegmentName();
+		if (pack != null) {
+			// The pack goes first, so the segment is never without it
+			File packFile = segmentFile(name, TilePack.EXTENSION);
+			try (FileChannel channel = TilePack.openForAppend(packFile, patchSize, 0)) {
+				int[] pixels = new int[patchSize * patchSize];
+				for (int id = 0; id < db.size(); id++) {
+					pack.copyTile(id, pixels, 0, patchSize);
+					TilePack.append(channel, pixels);
+				}
+			}
+		}
+		TileDatabaseFile.write(db, patchSize, segmentFile(name, TileDatabaseFile.EXTENSION));
+		return name;
+	}
+
+	/**
+	 * Replace the manifest with the current list of segments.
+	 * @throws IOException if the manifest could not be written
+	 */
+	private void writeManifest() throws IOException {
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		try (Writer out = new BufferedWriter(new FileWriter(tmp))) {
+			out.write("# The segments of this DB, oldest first\n");
+			for (String name : segments) {
+				out.write(name + "\n");
+			}
+		}
+		Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the name for a new segment, numbered after every segment file
+	 * in the directory, even those left behind by an interrupted run
+	 */
+	private String nextSegmentName() {
+		int newest = 0;
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher m = SEGMENT_NAME.matcher(name);
+				if (m.lookingAt()) {
+					newest = Math.max(newest, Integer.parseInt(m.group(1)));
+				}
+			}
+		}
+		return String.format("seg-%06d", newest + 1);
+	}
+
+	/**
+	 * @param path the path of a DB image
+	 * @param segmentNumber the number of the segment its entry is in
+	 * @return whether the entry has been deleted
+	 */
+	private boolean isDeleted(String path, int segmentNumber) {
+		Integer newest = deleted.get(path);
+		return newest != null && segmentNumber <= newest;
+	}
+
+	/**
+	 * @param name the name of a segment
+	 * @param extension the extension of one of the segment's files
+	 * @return the segment's file
+	 */
+	private File segmentFile(String name, String extension) {
+		return new File(dir, name + extension);
+	}
+
+	/**
+	 * @param name the name of a segment
+	 * @return the segment's number
+	 * @throws IllegalArgumentException if the name isn't a segment name
+	 */
+	private static int segmentNumber(String name) throws IllegalArgumentException {
+		Matcher m = SEGMENT_NAME.matcher(name);
+		if (!m.matches()) {
+			throw new IllegalArgumentException(name + " is not a segment name.");
+		}
+		return Integer.parseInt(m.group(1));
+	}
+
+	/**
+	 * @param file a text file
+	 * @return the lines of the file that aren't blank or comments, or none if the file doesn't exist
+	 * @throws IOException if the file could not be read
+	 */
+	private static java.util.List<String> readLines(File file) throws IOException {
+		java.util.List<String> lines = new ArrayList<String>();
+		if (!file.exists()) {
+			return lines;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isBlank() && !line.startsWith("#")) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Determine the path of the segmented DB that goes with a DB file.
+	 * @param dbFilePath the path to a DB CSV file or binary DB file
+	 * @return the path to the segmented DB directory
+	 */
+	public static String segmentsPath(String dbFilePath) {
+		int dot = dbFilePath.lastIndexOf('.');
+		if (dot > dbFilePath.lastIndexOf('/')) {
+			dbFilePath = dbFilePath.substring(0, dot);
+		}
+		return dbFilePath + EXTENSION;
+	}
+
+	/**
+	 * List, delete from, compact or import into a segmented DB.
+	 * @param args the segmented DB directory, the command and its arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: java SegmentedDatabase <segmented DB directory> <command> [arguments]");
+			System.err.println("e.g. java SegmentedDatabase ./db/db32x32" + EXTENSION + " compact");
+			System.err.println("Commands:");
+			System.err.println("\tlist                list the segments and how many entries are deleted");
+			System.err.println("\tdelete <path>...    delete DB images, by the path recorded in the DB");
+			System.err.println("\tcompact             merge every segment into one, dropping deleted entries");
+			System.err.println("\timport <DB file>    add the entries of a DB CSV file or binary DB file as a new segment");
+			System.err.println("Segmented DBs are created with ProcessDB --segments.");
+			System.exit(1);
+		}
+
+		try {
+			SegmentedDatabase segments = new SegmentedDatabase(new File(args[0]));
+			switch (args[1]) {
+				case "list":
+					for (String name : segments.getSegments()) {
+						System.out.println(name + ": " + TileDatabaseFile.map(segments.segmentFile(name, TileDatabaseFile.EXTENSION)).size() + " entries"
+							+ (segments.segmentFile(name, TilePack.EXTENSION).exists() ? ", with a tile pack" : ""));
+					}
+					System.out.println("[INFO] " + segments.load().size() + " DB images in " + segments.getSegments().size() + " segments, " + segments.deleted.size() + " tombstones"
+						+ (segments.getSegments().isEmpty() ? "" : ", " + segments.getColourSpace() + " features"));
+					break;
+				case "delete":
+					int count = segments.delete(Arrays.asList(args).subList(2, args.length));
+					System.out.println("[INFO] deleted " + count + " of " + (args.length - 2) + " DB images");
+					break;
+				case "compact":
+					if (segments.compact()) {
+						System.out.println("[INFO] compacted " + args[0] + " into " + segments.getSegments().get(0));
+					}
+					else {
+						System.out.println("[INFO] " + args[0] + " is already compact");
+					}
+					break;
+				case "import":
+					// Segmented DBs are named after their patch size, e.g. "db32x32.segments"
+					Matcher m = Pattern.compile("db(\\d+)x\\d+").matcher(new File(args[0]).getName());
+					if (args.length != 3 || !m.find()) {
+						throw new IllegalArgumentException("import takes one DB file, into a directory named like db32x32" + EXTENSION + ".");
+					}
+					int added = segments.importDatabase(args[2], Integer.parseInt(m.group(1)));
+					System.out.println("[INFO] imported " + added + " DB images from: " + args[2]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown command: " + args[1]);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
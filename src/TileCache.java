@@ -0,0 +1,192 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bounded cache of database image pixels, keyed by database image id.
+ * The cache holds at most a set number of bytes of pixels; once full, the
+ * least recently used images are evicted to make room. It is safe to use from
+ * several threads at once.
+ */
+public class TileCache {
+	/**
+	 * Loads the pixels of a database image that isn't in the cache.
+	 */
+	public interface Loader {
+		/**
+		 * @param id the id of the database image
+		 * @return the packed RGB pixels of the database image
+		 * @throws IOException if the database image could not be read
+		 */
+		int[] load(int id) throws IOException;
+	}
+
+	/**
+	 * The most bytes of pixels to keep in the cache.
+	 */
+	private long maxBytes;
+	/**
+	 * The bytes of pixels currently in the cache.
+	 */
+	private long bytes;
+	/**
+	 * Loads database images on a miss.
+	 */
+	private Loader loader;
+	/**
+	 * The cached pixels, in least to most recently used order.
+	 */
+	private LinkedHashMap<Integer, int[]> entries;
+	/**
+	 * The number of lookups that found the image in the cache.
+	 */
+	private long hits;
+	/**
+	 * The number of lookups that had to load the image.
+	 */
+	private long misses;
+	/**
+	 * The number of images evicted to make room for others.
+	 */
+	private long evictions;
+
+	/**
+	 * Create an empty cache.
+	 * @param maxBytes the most bytes of pixels to keep in the cache
+	 * @param loader loads the pixels of database images that aren't cached
+	 */
+	public TileCache(long maxBytes, Loader loader) {
+		this.maxBytes = maxBytes;
+		this.loader = loader;
+		entries = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get the pixels of a database image, loading them if they aren't cached.
+	 * The returned array is shared and must not be modified.
+	 * @param id the id of the database image
+	 * @return the packed RGB pixels of the database image
+	 * @throws IOException if the database image had to be loaded and could not be read
+	 */
+	public int[] get(int id) throws IOException {
+		return get(id, loader);
+	}
+
+	/**
+	 * Get the pixels of a database image, loading them with the given loader
+	 * if they aren't cached. This lets each user of a shared cache measure its
+	 * own loads. The returned array is shared and must not be modified.
+	 * @param id the id of the database image
+	 * @param loader loads the pixels of the database image if it isn't cached
+	 * @return the packed RGB pixels of the database image
+	 * @throws IOException if the database image had to be loaded and could not be read
+	 */
+	public int[] get(int id, Loader loader) throws IOException {
+		return get(id, loader, null);
+	}
+
+	/**
+	 * Get the pixels of a database image, loading them with the given loader
+	 * if they aren't cached, and count the lookup as a hit or miss in a run's
+	 * metrics as well as the cache's own totals. A shared cache's totals
+	 * cover every run, so this is how each run gets its own hit rate. The
+	 * returned array is shared and must not be modified.
+	 * @param id the id of the database image
+	 * @param loader loads the pixels of the database image if it isn't cached
+	 * @param metrics the run to count the lookup in, or null
+	 * @return the packed RGB pixels of the database image
+	 * @throws IOException if the database image had to be loaded and could not be read
+	 */
+	public int[] get(int id, Loader loader, RunMetrics metrics) throws IOException {
+		synchronized (this) {
+			int[] pixels = entries.get(id);
+			if (pixels != null) {
+				hits++;
+				if (metrics != null) {
+					metrics.count(RunMetrics.Counter.CACHE_HITS, 1);
+				}
+				return pixels;
+			}
+			misses++;
+		}
+		if (metrics != null) {
+			metrics.count(RunMetrics.Counter.CACHE_MISSES, 1);
+		}
+
+		// Load outside of the lock so other threads aren't held up by the
+		// decode. Two threads may occasionally load the same image; the
+		// second one just replaces the first.
+		int[] pixels = loader.load(id);
+		put(id, pixels);
+		return pixels;
+	}
+
+	/**
+	 * Add pixels to the cache, evicting the least recently used images until
+	 * they fit. Images bigger than the whole cache aren't kept.
+	 * @param id the id of the database image
+	 * @param pixels the packed RGB pixels of the database image
+	 */
+	private synchronized void put(int id, int[] pixels) {
+		long size = pixels.length * 4L;
+		if (size > maxBytes) {
+			return;
+		}
+		int[] previous = entries.put(id, pixels);
+		if (previous != null) {
+			bytes -= previous.length * 4L;
+		}
+		bytes += size;
+
+		Iterator<int[]> eldest = entries.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().length * 4L;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found the image in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to load the image
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of images evicted to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the bytes of pixels currently in the cache
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return a one line summary of how well the cache has done
+	 */
+	public synchronized String getStats() {
+		long lookups = hits + misses;
+		return String.format(
+			"%d hits, %d misses, %d evictions (%.1f%% hit rate, %.1fMB cached)",
+			hits, misses, evictions, lookups == 0 ? 0.0 : 100.0 * hits / lookups, bytes / (1024.0 * 1024.0)
+		);
+	}
+}
@@ -0,0 +1,563 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * An in-memory database of patch images used for creating photomosaics.
+ * Database images are addressed by an integer id. Their feature vectors are
+ * stored as one primitive array per dimension, so a scan over every image
+ * walks through memory sequentially, and their paths are kept in a side table.
+ */
+public class TileDatabase {
+	/**
+	 * The number of values in each feature vector.
+	 */
+	private int dimensions;
+	/**
+	 * The feature vectors, stored as one array per dimension indexed by id.
+	 * For databases opened from a binary DB file, these are only copied out
+	 * of the file the first time something needs every feature vector at
+	 * once; until then they are read from the mapped file.
+	 */
+	private volatile float[][] columns;
+	/**
+	 * The feature vectors of a binary DB file, one after the other in id
+	 * order, or null.
+	 */
+	private FloatBuffer mappedFeatures;
+	/**
+	 * The path to the image file of each database image, indexed by id.
+	 * For databases opened from a binary DB file, paths are decoded from the
+	 * file's string table the first time they are asked for.
+	 */
+	private String[] paths;
+	/**
+	 * The UTF-8 encoded paths of a binary DB file, or null.
+	 */
+	private ByteBuffer pathTable;
+	/**
+	 * The end position of each path in the path table, indexed by id.
+	 */
+	private IntBuffer pathEnds;
+	/**
+	 * The content hash of the input image each database image was made
+	 * from, indexed by id, or null if it wasn't recorded.
+	 */
+	private String[] contentHashes;
+	/**
+	 * The perceptual hash of each database image, indexed by id. Only
+	 * meaningful for database images with a content hash.
+	 */
+	private long[] perceptualHashes;
+	/**
+	 * The number of database images with a content hash.
+	 */
+	private int hashed;
+	/**
+	 * The number of database images.
+	 */
+	private int size;
+	/**
+	 * The colour space the feature vectors are in.
+	 */
+	private ColourSpace colourSpace;
+	/**
+	 * The quantizer the codes were made with, or null if the database
+	 * hasn't been quantized.
+	 */
+	private ProductQuantizer quantizer;
+	/**
+	 * The product quantized code of each database image, one after the other
+	 * in id order, or null if the database hasn't been quantized.
+	 */
+	private byte[] codes;
+
+	/**
+	 * Create an empty database with features in sRGB.
+	 * @param dimensions the number of values in each feature vector
+	 */
+	public TileDatabase(int dimensions) {
+		this(dimensions, ColourSpace.RGB);
+	}
+
+	/**
+	 * Create an empty database.
+	 * @param dimensions the number of values in each feature vector
+	 * @param colourSpace the colour space the feature vectors are in
+	 */
+	public TileDatabase(int dimensions, ColourSpace colourSpace) {
+		this.dimensions = dimensions;
+		this.colourSpace = colourSpace;
+		columns = new float[dimensions][16];
+		paths = new String[16];
+		contentHashes = new String[16];
+		perceptualHashes = new long[16];
+	}
+
+	/**
+	 * Create a database from the contents of a binary DB file.
+	 * @param dimensions the number of values in each feature vector
+	 * @param features the feature vectors of all database images, one after the other in id order
+	 * @param pathTable the UTF-8 encoded paths of all database images
+	 * @param pathEnds the end position of each path in the path table
+	 * @param hashes the content hash of every database image (all zeros if it wasn't recorded) followed by their perceptual hashes, or null if none were recorded
+	 * @param colourSpace the colour space the feature vectors are in
+	 */
+	TileDatabase(int dimensions, FloatBuffer features, ByteBuffer pathTable, IntBuffer pathEnds, ByteBuffer hashes, ColourSpace colourSpace) {
+		this.dimensions = dimensions;
+		this.colourSpace = colourSpace;
+		this.pathTable = pathTable;
+		this.pathEnds = pathEnds;
+		size = pathEnds.limit();
+		paths = new String[size];
+		contentHashes = new String[size];
+		perceptualHashes = new long[size];
+		if (hashes != null) {
+			byte[] contentHash = new byte[ImageHash.CONTENT_HASH_LENGTH / 2];
+			for (int id = 0; id < size; id++) {
+				hashes.get(id * contentHash.length, contentHash);
+				if (!isZero(contentHash)) {
+					contentHashes[id] = ImageHash.toHex(contentHash);
+					perceptualHashes[id] = hashes.getLong(size * contentHash.length + id * 8);
+					hashed++;
+				}
+			}
+		}
+
+		mappedFeatures = features;
+	}
+
+	/**
+	 * @return the feature vectors, stored as one array per dimension indexed by id, copying them out of the mapped file if they haven't been
+	 */
+	private float[][] columns() {
+		float[][] copied = columns;
+		if (copied == null) {
+			synchronized (this) {
+				if (columns == null) {
+					float[] interleaved = new float[size * dimensions];
+					mappedFeatures.get(0, interleaved);
+					float[][] built = new float[dimensions][size];
+					for (int id = 0; id < size; id++) {
+						for (int d = 0; d < dimensions; d++) {
+							built[d][id] = interleaved[id*dimensions + d];
+						}
+					}
+					columns = built;
+				}
+				copied = columns;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Add a database image.
+	 * @param path the path to the image file
+	 * @param features the array holding the image's feature vector
+	 * @param offset the position of the feature vector in the features array
+	 * @return the id of the new database image
+	 */
+	public int add(String path, float[] features, int offset) {
+		return add(path, features, offset, null, 0);
+	}
+
+	/**
+	 * Add a database image along with the hashes of the input image it was
+	 * made from.
+	 * @param path the path to the image file
+	 * @param features the array holding the image's feature vector
+	 * @param offset the position of the feature vector in the features array
+	 * @param contentHash the content hash of the input image, or null if unknown
+	 * @param perceptualHash the perceptual hash of the database image
+	 * @return the id of the new database image
+	 */
+	public int add(String path, float[] features, int offset, String contentHash, long perceptualHash) {
+		float[][] columns = columns();
+		if (size == paths.length) {
+			// Grow the storage geometrically so adds are amortised constant time
+			int capacity = size * 2;
+			paths = Arrays.copyOf(paths, capacity);
+			contentHashes = Arrays.copyOf(contentHashes, capacity);
+			perceptualHashes = Arrays.copyOf(perceptualHashes, capacity);
+			for (int d = 0; d < dimensions; d++) {
+				columns[d] = Arrays.copyOf(columns[d], capacity);
+			}
+			this.columns = columns;
+		}
+		paths[size] = path;
+		for (int d = 0; d < dimensions; d++) {
+			columns[d][size] = features[offset + d];
+		}
+		if (contentHash != null) {
+			contentHashes[size] = contentHash;
+			perceptualHashes[size] = perceptualHash;
+			hashed++;
+		}
+		// The codes no longer cover every database image
+		quantizer = null;
+		codes = null;
+		return size++;
+	}
+
+	/**
+	 * Add a copy of another database's database image, with its hashes.
+	 * @param other the other database, with the same number of dimensions and colour space
+	 * @param id the id of the database image in the other database
+	 * @return the id of the new database image
+	 */
+	public int add(TileDatabase other, int id) {
+		float[] features = new float[dimensions];
+		for (int d = 0; d < dimensions; d++) {
+			features[d] = other.feature(id, d);
+		}
+		return add(other.getPath(id), features, 0, other.contentHashes[id], other.perceptualHashes[id]);
+	}
+
+	/**
+	 * @return the number of database images
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of values in each feature vector
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * @return the number of regions across and down each database image that its features were taken from
+	 */
+	public int getGrid() {
+		return (int) Math.round(Math.sqrt(dimensions / 3));
+	}
+
+	/**
+	 * @return the colour space the feature vectors are in
+	 */
+	public ColourSpace getColourSpace() {
+		return colourSpace;
+	}
+
+	/**
+	 * Convert every feature vector into another colour space, in place.
+	 * Converting from anything but sRGB goes through sRGB, so a round trip
+	 * can change features by a fraction.
+	 * @param target the colour space to convert to
+	 */
+	public void convertTo(ColourSpace target) {
+		if (target == colourSpace) {
+			return;
+		}
+		// Convert a block of database images at a time, so the conversion
+		// can work on whole feature vectors without copying every column
+		float[][] columns = columns();
+		float[] block = new float[256 * dimensions];
+		for (int first = 0; first < size; first += 256) {
+			int count = Math.min(256, size - first);
+			for (int d = 0; d < dimensions; d++) {
+				for (int i = 0; i < count; i++) {
+					block[i*dimensions + d] = columns[d][first + i];
+				}
+			}
+			colourSpace.toRgb(block, 0, count * dimensions);
+			target.fromRgb(block, 0, count * dimensions);
+			for (int d = 0; d < dimensions; d++) {
+				for (int i = 0; i < count; i++) {
+					columns[d][first + i] = block[i*dimensions + d];
+				}
+			}
+		}
+		colourSpace = target;
+		quantizer = null;
+		codes = null;
+	}
+
+	/**
+	 * Compress every feature vector into a product quantized code, learning
+	 * the quantizer from the feature vectors. Adding a database image or
+	 * converting the colour space drops the codes.
+	 */
+	public void quantize() {
+		float[] features = getInterleavedFeatures();
+		ProductQuantizer trained = ProductQuantizer.train(features, dimensions);
+		setCodes(trained, trained.encode(features));
+	}
+
+	/**
+	 * @return the quantizer the codes were made with, or null if the database hasn't been quantized
+	 */
+	public ProductQuantizer getQuantizer() {
+		return quantizer;
+	}
+
+	/**
+	 * @return the product quantized code of each database image, one after the other in id order, or null if the database hasn't been quantized
+	 */
+	public byte[] getCodes() {
+		return codes;
+	}
+
+	/**
+	 * Set the product quantized codes of the database images, e.g. those
+	 * read from a binary DB file.
+	 * @param quantizer the quantizer the codes were made with
+	 * @param codes the code of each database image, one after the other in id order
+	 * @throws IllegalArgumentException if the codes don't match the database
+	 */
+	void setCodes(ProductQuantizer quantizer, byte[] codes) throws IllegalArgumentException {
+		if (quantizer.getDimensions() != dimensions || codes.length != (long) size * quantizer.getSubspaces()) {
+			throw new IllegalArgumentException("The codes don't match the database's " + size + " feature vectors of " + dimensions + " values.");
+		}
+		this.quantizer = quantizer;
+		this.codes = codes;
+	}
+
+	/**
+	 * @param id the id of a database image
+	 * @return the path to the image file of the database image
+	 */
+	public String getPath(int id) {
+		String path = paths[id];
+		if (path == null) {
+			// Strings are immutable, so if two threads race to decode the
+			// same path they will both store an equal, complete String
+			int start = id == 0 ? 0 : pathEnds.get(id - 1);
+			byte[] encoded = new byte[pathEnds.get(id) - start];
+			pathTable.get(start, encoded);
+			path = new String(encoded, StandardCharsets.UTF_8);
+			paths[id] = path;
+		}
+		return path;
+	}
+
+	/**
+	 * @param id the id of a database image
+	 * @return the content hash of the input image the database image was made from, or null if it wasn't recorded
+	 */
+	public String getContentHash(int id) {
+		return contentHashes[id];
+	}
+
+	/**
+	 * @param id the id of a database image
+	 * @return the perceptual hash of the database image; only meaningful if it has a content hash
+	 */
+	public long getPerceptualHash(int id) {
+		return perceptualHashes[id];
+	}
+
+	/**
+	 * @return whether any database image has its hashes recorded
+	 */
+	public boolean hasHashes() {
+		return hashed > 0;
+	}
+
+	/**
+	 * @return the feature vectors of all database images, one after the other in id order
+	 */
+	public float[] getInterleavedFeatures() {
+		float[] features = new float[size * dimensions];
+		float[][] columns = this.columns;
+		if (columns == null) {
+			// The mapped file is already in this order
+			mappedFeatures.get(0, features);
+			return features;
+		}
+		for (int d = 0; d < dimensions; d++) {
+			float[] column = columns[d];
+			for (int id = 0; id < size; id++) {
+				features[id*dimensions + d] = column[id];
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * Determine the squared distance between a database image and a feature vector.
+	 * @param id the id of the database image
+	 * @param query the array holding the feature vector
+	 * @param offset the position of the feature vector in the query array
+	 * @return the squared Euclidean distance
+	 */
+	public float distance(int id, float[] query, int offset) {
+		float[][] columns = this.columns;
+		float distance = 0;
+		if (columns == null) {
+			for (int d = 0, i = id*dimensions; d < dimensions; d++, i++) {
+				float diff = mappedFeatures.get(i) - query[offset + d];
+				distance += diff*diff;
+			}
+			return distance;
+		}
+		for (int d = 0; d < dimensions; d++) {
+			float diff = columns[d][id] - query[offset + d];
+			distance += diff*diff;
+		}
+		return distance;
+	}
+
+	/**
+	 * @param id the id of a database image
+	 * @param d the dimension
+	 * @return the database image's feature value for the dimension
+	 */
+	private float feature(int id, int d) {
+		float[][] columns = this.columns;
+		return columns != null ? columns[d][id] : mappedFeatures.get(id*dimensions + d);
+	}
+
+	/**
+	 * Determine the squared distance between every database image and a
+	 * feature vector.
+	 * This works through the database one dimension at a time so that the
+	 * inner loop is a straight pass over a primitive array, which the JIT can
+	 * vectorise.
+	 * @param query the array holding the feature vector
+	 * @param offset the position of the feature vector in the query array
+	 * @param out the array to store each database image's distance in, indexed by id
+	 */
+	public void distances(float[] query, int offset, float[] out) {
+		float[][] columns = columns();
+		Arrays.fill(out, 0, size, 0f);
+		for (int d = 0; d < dimensions; d++) {
+			float[] column = columns[d];
+			float value = query[offset + d];
+			for (int id = 0; id < size; id++) {
+				float diff = column[id] - value;
+				out[id] += diff*diff;
+			}
+		}
+	}
+
+	/**
+	 * Load up the database images from a DB file, either a binary DB file
+	 * written by ProcessDB or ConvertDB, or a DB CSV file.
+	 * @param dbFilePath the path to the DB file
+	 * @return the database
+	 * @throws IllegalArgumentException if the provided path doesn't exist, or could not be loaded
+	 */
+	public static TileDatabase open(String dbFilePath) throws IllegalArgumentException {
+		if (dbFilePath.endsWith(TileDatabaseFile.EXTENSION)) {
+			return TileDatabaseFile.map(new File(dbFilePath));
+		}
+		return loadCsv(dbFilePath);
+	}
+
+	/**
+	 * Load up the database images specified in the given CSV file.
+	 * Each line holds the path to a database image followed by the packed
+	 * average RGB values of each of its square regions, and optionally the
+	 * content hash of its input image and its perceptual hash, in hex. The
+	 * grid size is worked out from the number of regions on the first line.
+	 * CSV files always hold sRGB features.
+	 * @param dbFilePath the path to the CSV file containing database entries
+	 * @return the database
+	 * @throws IllegalArgumentException if the provided path doesn't exist, or could not be loaded
+	 */
+	public static TileDatabase loadCsv(String dbFilePath) throws IllegalArgumentException {
+		// Load up the database file
+		File dbFile = new File(dbFilePath);
+		if (!dbFile.exists()) {
+			throw new IllegalArgumentException(dbFilePath + " does not exist.");
+		}
+
+		//
+		// Iterate over each line of the database CSV, adding each entry to
+		// the database.
+		//
+		TileDatabase db = null;
+		float[] features = null;
+		// The number of regions in each image, and so the number of entries
+		// (columns) after the path on each line
+		int regions = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(dbFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] entry = line.split(",");
+				if (db == null) {
+					int grid = csvGrid(entry.length);
+					if (grid != 0) {
+						regions = grid * grid;
+						db = new TileDatabase(PatchFeatures.dimensions(grid));
+						features = new float[db.getDimensions()];
+					}
+				}
+				if (db == null || (entry.length != regions + 1 && entry.length != regions + 3)) {
+					// Skip lines that don't have the right number of entries (columns)
+					System.err.println("[WARN] invalid entry: " + line + ". Skipping...");
+					continue;
+				}
+
+				// The entries after the path are the packed average RGB values
+				// for each region
+				for (int i = 0; i < regions; i++) {
+					int rgb = Integer.parseInt(entry[i + 1]);
+					features[i*3] = (rgb >> 16) & 0xff;
+					features[i*3 + 1] = (rgb >> 8) & 0xff;
+					features[i*3 + 2] = rgb & 0xff;
+				}
+
+				// Entry 0 is the path to the image.
+				if (entry.length == regions + 3) {
+					db.add(entry[0], features, 0, entry[regions + 1], Long.parseUnsignedLong(entry[regions + 2], 16));
+				}
+				else {
+					db.add(entry[0], features, 0);
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid entry in DB file: " + dbFilePath + ": " + e.getMessage());
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Could not load DB file: " + dbFilePath);
+		}
+
+		if (db == null) {
+			// An empty DB file; assume the default grid
+			db = new TileDatabase(PatchFeatures.dimensions(PatchFeatures.DEFAULT_GRID));
+		}
+		return db;
+	}
+
+	/**
+	 * Work out the grid size of a DB CSV file entry from its number of columns.
+	 * @param columns the number of columns in the entry
+	 * @return the grid size, or 0 if no supported grid size has that many columns
+	 */
+	public static int csvGrid(int columns) {
+		// Entries either end after the regions or have two hash columns
+		for (int extra = 1; extra <= 3; extra += 2) {
+			int grid = (int) Math.round(Math.sqrt(columns - extra));
+			if (grid*grid == columns - extra && grid >= PatchFeatures.MIN_GRID && grid <= PatchFeatures.MAX_GRID) {
+				return grid;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param bytes some bytes
+	 * @return whether every byte is zero
+	 */
+	private static boolean isZero(byte[] bytes) {
+		for (byte b : bytes) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes binary DB files.
+ * A binary DB file holds the same entries as a DB CSV file, but is laid out
+ * so that PhotoMosaic can memory map it and use it with no parsing at all.
+ *
+ * The file is little endian, and made up of:
+ * <ul>
+ * <li>a 40 byte header: the magic number, format version, feature vector
+ *     dimensions, number of entries, patch size, size of the string table,
+ *     the grid size the features were taken with, flags for the optional
+ *     sections, and a CRC32 checksum of everything after the header</li>
+ * <li>a fixed-width record of float features for each entry, in id order</li>
+ * <li>the end position of each entry's path in the string table</li>
+ * <li>the string table: every entry's UTF-8 encoded path, one after another</li>
+ * <li>if the hashes flag is set, the 32 byte content hash of each entry (all
+ *     zeros if it wasn't recorded) followed by the 8 byte perceptual hash of
+ *     each entry</li>
+ * <li>if the codes flag is set, the product quantizer's float centroids (256
+ *     for each region) followed by the one byte per region code of each
+ *     entry</li>
+ * </ul>
+ * The features are average sRGB values, unless the CIELAB flag is set.
+ * Version 1 files, which always used a 2x2 grid, have a 32 byte header with
+ * no grid size or flags. Version 2 files are the same as version 3 files
+ * with no flags set. Both can still be read.
+ *
+ * Opening a file only checks its header and that its sections fit, so that
+ * it starts up without reading every page of the file. The checksum is only
+ * checked by verify(), e.g. `java TileDatabaseFile <binary DB file>`.
+ */
+public class TileDatabaseFile {
+	/**
+	 * The file extension used for binary DB files.
+	 */
+	public static final String EXTENSION = ".bin";
+	/**
+	 * The first 4 bytes of every binary DB file: "PMDB".
+	 */
+	private static final int MAGIC = 0x42444D50;
+	/**
+	 * The version of the format written by this class.
+	 */
+	private static final int VERSION = 3;
+	/**
+	 * The size of the header in bytes.
+	 */
+	private static final int HEADER_SIZE = 40;
+	/**
+	 * The size of the header of version 1 files in bytes.
+	 */
+	private static final int VERSION_1_HEADER_SIZE = 32;
+	/**
+	 * The flag set when the file has a section of hashes.
+	 */
+	private static final int FLAG_HASHES = 1;
+	/**
+	 * The flag set when the features are CIELAB values instead of sRGB.
+	 */
+	private static final int FLAG_LAB = 2;
+	/**
+	 * The flag set when the file has a section of product quantized codes.
+	 */
+	private static final int FLAG_CODES = 4;
+	/**
+	 * The size in bytes of each entry's hashes.
+	 */
+	private static final int HASHES_SIZE = ImageHash.CONTENT_HASH_LENGTH / 2 + 8;
+
+	/**
+	 * Write out a database to a binary DB file.
+	 * The file is written to a temporary file first and moved into place, so
+	 * a reader never sees a partially written DB file.
+	 * @param db the database to write
+	 * @param patchSize the width of the database images, or 0 if unknown
+	 * @param file the binary DB file to write
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(TileDatabase db, int patchSize, File file) throws IOException {
+		int size = db.size();
+		int dimensions = db.getDimensions();
+
+		//
+		// Encode the paths up front so we know how big the string table is
+		//
+		byte[][] encodedPaths = new byte[size][];
+		long stringTableSize = 0;
+		for (int id = 0; id < size; id++) {
+			encodedPaths[id] = db.getPath(id).getBytes(StandardCharsets.UTF_8);
+			stringTableSize += encodedPaths[id].length;
+		}
+		int flags = db.hasHashes() ? FLAG_HASHES : 0;
+		if (db.getColourSpace() == ColourSpace.LAB) {
+			flags |= FLAG_LAB;
+		}
+		if (db.getQuantizer() != null) {
+			flags |= FLAG_CODES;
+		}
+		long hashesSize = db.hasHashes() ? (long) size*HASHES_SIZE : 0;
+		long codesSize = db.getQuantizer() != null ? codesSize(size, dimensions) : 0;
+		long bodySize = (long) size*dimensions*4 + (long) size*4 + stringTableSize + hashesSize + codesSize;
+		if (bodySize > Integer.MAX_VALUE - HEADER_SIZE) {
+			throw new IOException("too many entries to fit in a DB file: " + file.getPath());
+		}
+
+		ByteBuffer body = ByteBuffer.allocate((int) bodySize).order(ByteOrder.LITTLE_ENDIAN);
+		body.asFloatBuffer().put(db.getInterleavedFeatures());
+		body.position(size*dimensions*4);
+		int end = 0;
+		for (int id = 0; id < size; id++) {
+			end += encodedPaths[id].length;
+			body.putInt(end);
+		}
+		for (int id = 0; id < size; id++) {
+			body.put(encodedPaths[id]);
+		}
+		if (db.hasHashes()) {
+			byte[] unknown = new byte[ImageHash.CONTENT_HASH_LENGTH / 2];
+			for (int id = 0; id < size; id++) {
+				String contentHash = db.getContentHash(id);
+				body.put(contentHash != null ? ImageHash.fromHex(contentHash) : unknown);
+			}
+			for (int id = 0; id < size; id++) {
+				body.putLong(db.getPerceptualHash(id));
+			}
+		}
+		if (db.getQuantizer() != null) {
+			for (float centroid : db.getQuantizer().getCentroids()) {
+				body.putFloat(centroid);
+			}
+			body.put(db.getCodes());
+		}
+		body.flip();
+
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(dimensions);
+		header.putInt(size);
+		header.putInt(patchSize);
+		header.putInt((int) stringTableSize);
+		header.putInt(db.getGrid());
+		header.putInt(flags);
+		header.putLong(crc.getValue());
+		header.flip();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (body.hasRemaining()) {
+				channel.write(body);
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Open a binary DB file by memory mapping it. Only the header and the
+	 * size of the file are checked, so none of the body is read until it is
+	 * used.
+	 * @param file the binary DB file
+	 * @return the database
+	 * @throws IllegalArgumentException if the file doesn't exist, could not be read, or its header or size are corrupt
+	 */
+	public static TileDatabase map(File file) throws IllegalArgumentException {
+		ByteBuffer buffer = mapFile(file);
+		int headerSize = checkHeader(file, buffer);
+		int version = buffer.getInt(4);
+		int dimensions = buffer.getInt(8);
+		int size = buffer.getInt(12);
+		int stringTableSize = buffer.getInt(20);
+		int flags = version >= 3 ? buffer.getInt(28) : 0;
+		long hashesSize = (flags & FLAG_HASHES) != 0 ? (long) size*HASHES_SIZE : 0;
+		long codesSize = (flags & FLAG_CODES) != 0 ? codesSize(size, dimensions) : 0;
+		ByteBuffer body = buffer.slice(headerSize, buffer.limit() - headerSize).order(ByteOrder.LITTLE_ENDIAN);
+
+		//
+		// Hand the sections of the file to the database
+		//
+		int featuresSize = size*dimensions*4;
+		FloatBuffer features = body.slice(0, featuresSize).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		IntBuffer pathEnds = body.slice(featuresSize, size*4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		ByteBuffer pathTable = body.slice(featuresSize + size*4, stringTableSize);
+		ByteBuffer hashes = hashesSize == 0 ? null : body.slice(featuresSize + size*4 + stringTableSize, (int) hashesSize).order(ByteOrder.LITTLE_ENDIAN);
+		ColourSpace colourSpace = (flags & FLAG_LAB) != 0 ? ColourSpace.LAB : ColourSpace.RGB;
+		TileDatabase db = new TileDatabase(dimensions, features, pathTable, pathEnds, hashes, colourSpace);
+		if (codesSize != 0) {
+			// The codes are copied onto the heap, since every one of them is
+			// read for every patch
+			int codesStart = featuresSize + size*4 + stringTableSize + (int) hashesSize;
+			float[] centroids = new float[dimensions * ProductQuantizer.CENTROIDS];
+			body.slice(codesStart, centroids.length*4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(centroids);
+			byte[] codes = new byte[(int) codesSize - centroids.length*4];
+			body.get(codesStart + centroids.length*4, codes);
+			db.setCodes(new ProductQuantizer(dimensions, centroids), codes);
+		}
+		return db;
+	}
+
+	/**
+	 * Check a binary DB file's checksum. This reads the whole file, so it
+	 * isn't done when the file is opened.
+	 * @param file the binary DB file
+	 * @throws IllegalArgumentException if the file doesn't exist, could not be read or is corrupt
+	 */
+	public static void verify(File file) throws IllegalArgumentException {
+		ByteBuffer buffer = mapFile(file);
+		int headerSize = checkHeader(file, buffer);
+		ByteBuffer body = buffer.slice(headerSize, buffer.limit() - headerSize);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if (crc.getValue() != buffer.getLong(headerSize - 8)) {
+			throw new IllegalArgumentException(file.getPath() + " failed its checksum; it is corrupt.");
+		}
+	}
+
+	/**
+	 * Memory map a whole binary DB file.
+	 * @param file the binary DB file
+	 * @return the mapped file, little endian
+	 * @throws IllegalArgumentException if the file doesn't exist or could not be read
+	 */
+	private static ByteBuffer mapFile(File file) throws IllegalArgumentException {
+		if (!file.exists()) {
+			throw new IllegalArgumentException(file.getPath() + " does not exist.");
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Could not load DB file: " + file.getPath());
+		}
+	}
+
+	/**
+	 * Check a binary DB file's header, and that the file is exactly as long
+	 * as the sections the header describes.
+	 * @param file the binary DB file, for error messages
+	 * @param buffer the mapped file
+	 * @return the size of the header
+	 * @throws IllegalArgumentException if the header or the size of the file is corrupt
+	 */
+	private static int checkHeader(File file, ByteBuffer buffer) throws IllegalArgumentException {
+		if (buffer.limit() < VERSION_1_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IllegalArgumentException(file.getPath() + " is not a binary DB file.");
+		}
+		int version = buffer.getInt(4);
+		if (version < 1 || version > VERSION) {
+			throw new IllegalArgumentException(file.getPath() + " has unsupported version " + version + ".");
+		}
+		int headerSize = version == 1 ? VERSION_1_HEADER_SIZE : HEADER_SIZE;
+		if (buffer.limit() < headerSize) {
+			throw new IllegalArgumentException(file.getPath() + " is truncated or corrupt.");
+		}
+		int dimensions = buffer.getInt(8);
+		int size = buffer.getInt(12);
+		int stringTableSize = buffer.getInt(20);
+		int grid = version == 1 ? PatchFeatures.DEFAULT_GRID : buffer.getInt(24);
+		int flags = version >= 3 ? buffer.getInt(28) : 0;
+		if ((flags & ~(FLAG_HASHES | FLAG_LAB | FLAG_CODES)) != 0) {
+			throw new IllegalArgumentException(file.getPath() + " uses unsupported features (flags " + flags + ").");
+		}
+		if (grid < PatchFeatures.MIN_GRID || grid > PatchFeatures.MAX_GRID || PatchFeatures.dimensions(grid) != dimensions) {
+			throw new IllegalArgumentException(file.getPath() + " has " + dimensions + " features per image, which doesn't match its " + grid + "x" + grid + " grid.");
+		}
+		if (size < 0 || stringTableSize < 0) {
+			throw new IllegalArgumentException(file.getPath() + " is truncated or corrupt.");
+		}
+
+		long hashesSize = (flags & FLAG_HASHES) != 0 ? (long) size*HASHES_SIZE : 0;
+		long codesSize = (flags & FLAG_CODES) != 0 ? codesSize(size, dimensions) : 0;
+		long expectedLength = headerSize + (long) size*dimensions*4 + (long) size*4 + stringTableSize + hashesSize + codesSize;
+		if (buffer.limit() != expectedLength) {
+			throw new IllegalArgumentException(file.getPath() + " is truncated or corrupt.");
+		}
+		return headerSize;
+	}
+
+	/**
+	 * @param size the number of entries
+	 * @param dimensions the number of values in each feature vector
+	 * @return the size in bytes of the product quantizer's centroids and every entry's code
+	 */
+	private static long codesSize(int size, int dimensions) {
+		return (long) dimensions*ProductQuantizer.CENTROIDS*4 + (long) size*(dimensions / 3);
+	}
+
+	/**
+	 * Read the patch size recorded in a binary DB file's header.
+	 * @param file the binary DB file
+	 * @return the width of the database images, or 0 if unknown
+	 * @throws IOException if the file could not be read or isn't a binary DB file
+	 */
+	public static int readPatchSize(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(VERSION_1_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (header.hasRemaining() && channel.read(header) > 0) {
+				// Keep reading until the header is full or the file ends
+			}
+		}
+		if (header.position() < VERSION_1_HEADER_SIZE || header.getInt(0) != MAGIC) {
+			throw new IOException(file.getPath() + " is not a binary DB file.");
+		}
+		return header.getInt(16);
+	}
+
+	/**
+	 * Determine the path of the binary DB file that goes with a DB CSV file.
+	 * @param csvPath the path to the DB CSV file
+	 * @return the path to the binary DB file
+	 */
+	public static String binaryPath(String csvPath) {
+		if (csvPath.endsWith(".csv")) {
+			csvPath = csvPath.substring(0, csvPath.length() - ".csv".length());
+		}
+		return csvPath + EXTENSION;
+	}
+
+	/**
+	 * Check the checksums of binary DB files.
+	 * @param args the binary DB files
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: java TileDatabaseFile <binary DB file> [binary DB file...]");
+			System.err.println("Checks each file's checksum, which isn't checked when PhotoMosaic opens it.");
+			System.exit(1);
+		}
+		int corrupt = 0;
+		for (String path : args) {
+			try {
+				verify(new File(path));
+				System.out.println("[INFO] " + path + ": OK");
+			}
+			catch (IllegalArgumentException e) {
+				System.err.println("[WARN] " + e.getMessage());
+				corrupt++;
+			}
+		}
+		if (corrupt > 0) {
+			System.exit(1);
+		}
+	}
+}
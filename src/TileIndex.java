@@ -0,0 +1,22 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * A nearest neighbour index over the feature vectors of the database images.
+ * Database images are referred to by their position in the list of database
+ * images the index was built from.
+ */
+public interface TileIndex {
+	/**
+	 * Find the database images whose feature vectors are closest to the given
+	 * feature vector.
+	 * @param query the array holding the feature vector to search for
+	 * @param offset the position of the feature vector in the query array
+	 * @param k the maximum number of candidates to return
+	 * @return the indices of up to k database images, closest first
+	 */
+	int[] nearest(float[] query, int offset, int k);
+}
@@ -0,0 +1,155 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * Finds the closest matching database image for a patch, penalising database
+ * images that have already been used nearby.
+ * A matcher can be shared by several threads, as long as each has its own
+ * scratch space and uniqueness window.
+ */
+public class TileMatcher {
+	/**
+	 * The database of patch images.
+	 */
+	private TileDatabase db;
+	/**
+	 * The nearest neighbour index over the database images' average RGB
+	 * values, or null if every database image should be checked for every
+	 * patch.
+	 */
+	private TileIndex index;
+	/**
+	 * The number of closest database images taken from the index for each
+	 * patch. Only these candidates have the uniqueness penalty applied.
+	 */
+	private int searchCandidates;
+	/**
+	 * Counts the database images compared against each patch.
+	 */
+	private RunMetrics metrics;
+
+	/**
+	 * Create a matcher over a database, building its index if needed.
+	 * @param db the database of patch images
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 */
+	public TileMatcher(TileDatabase db, int searchCandidates) {
+		this(db, searchCandidates, new RunMetrics("TileMatcher"));
+	}
+
+	/**
+	 * Create a matcher over a database, building its index if needed.
+	 * @param db the database of patch images
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 * @param metrics counts the database images compared against each patch
+	 */
+	public TileMatcher(TileDatabase db, int searchCandidates, RunMetrics metrics) {
+		this(db, searchCandidates > 0 ? new KDTreeIndex(db.getInterleavedFeatures(), db.getDimensions()) : null, searchCandidates, metrics);
+	}
+
+	/**
+	 * Create a matcher over a database using an index that has already been
+	 * built, so that it can be shared between matchers.
+	 * @param db the database of patch images
+	 * @param index the nearest neighbour index over the database images, or null if searchCandidates is 0
+	 * @param searchCandidates the number of closest database images to consider for each patch, or 0 to check every database image
+	 * @param metrics counts the database images compared against each patch
+	 */
+	public TileMatcher(TileDatabase db, TileIndex index, int searchCandidates, RunMetrics metrics) {
+		this.db = db;
+		this.searchCandidates = searchCandidates;
+		this.metrics = metrics;
+		this.index = searchCandidates > 0 ? index : null;
+	}
+
+	/**
+	 * @return scratch space to pass to findClosest, or null if it doesn't need any
+	 */
+	public float[] createScratch() {
+		// The distance of every database image from the current patch, reused
+		// between patches when every database image is checked
+		return index == null ? new float[db.size()] : null;
+	}
+
+	/**
+	 * Find the closest matching image to the given image region.
+	 * @param features the feature vectors of the image's patches
+	 * @param offset the position of this region's feature vector
+	 * @param distances scratch space for the distance of every database image
+	 * @param window the count of each database image placed around our patch
+	 * @return the id of the closest matching database image
+	 */
+	public int findClosest(float[] features, int offset, float[] distances, UniquenessWindow window) {
+		if (index != null) {
+			return findClosestIndexed(features, offset, window);
+		}
+
+		// We grab the DB images' already calculated average RGBs and
+		// compare them with the average regions of the current section
+		// we're looking at.
+		db.distances(features, offset, distances);
+		metrics.count(RunMetrics.Counter.CANDIDATES, db.size());
+
+		// Default the closest distance to be impossibly large
+		double closestDistance = Double.POSITIVE_INFINITY;
+		int closestId = -1;
+		for (int id = 0; id < db.size(); id++) {
+			double currentDistance = distances[id] * uniquenessScore(window.count(id));
+
+			// Set this image as the new closest if it has the smallest distance
+			if (currentDistance < closestDistance) {
+				closestDistance = currentDistance;
+				closestId = id;
+			}
+		}
+
+		// Return the closest matching image
+		return closestId;
+	}
+
+	/**
+	 * Find the closest matching image to the given image region, only
+	 * considering the nearest candidates from the index.
+	 * The uniqueness penalty is applied to just these candidates, so a
+	 * heavily repeated image can only lose out to one of its nearest
+	 * neighbours rather than to any image in the database.
+	 * @param features the feature vectors of the image's patches
+	 * @param offset the position of this region's feature vector
+	 * @param window the count of each database image placed around our patch
+	 * @return the id of the closest matching database image
+	 */
+	private int findClosestIndexed(float[] features, int offset, UniquenessWindow window) {
+		int[] candidates = index.nearest(features, offset, searchCandidates);
+		metrics.count(RunMetrics.Counter.CANDIDATES, candidates.length);
+
+		double closestDistance = Double.POSITIVE_INFINITY;
+		int closestId = -1;
+		for (int candidate : candidates) {
+			double currentDistance = db.distance(candidate, features, offset) * uniquenessScore(window.count(candidate));
+
+			if (currentDistance < closestDistance) {
+				closestDistance = currentDistance;
+				closestId = candidate;
+			}
+		}
+
+		return closestId;
+	}
+
+	/**
+	 * Determine how unique a database image is in a certain region.
+	 * @param occurances the number of times the image has been placed in the unique box around the region
+	 * @return the double score representing the uniqueness of the image
+	 */
+	private static double uniquenessScore(int occurances) {
+		return 1.0 + 0.5*occurances;
+		//
+		// DEBUG: Use the line below to nullify the effect of this method and just
+		// repeat images all over
+		//
+		// return 1.0;
+	}
+}
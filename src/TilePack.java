@@ -0,0 +1,272 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A tile pack: the decoded pixels of every database image in one file.
+ * With a tile pack, PhotoMosaic can copy database images straight into the
+ * photomosaic without opening or decoding a JPEG file for each one.
+ *
+ * The file is little endian, and made up of a 16 byte header (the magic
+ * number, format version and patch size) followed by a record for each
+ * database image in id order. Each record is the patchSize by patchSize
+ * packed RGB pixels of the image, row by row.
+ */
+public class TilePack {
+	/**
+	 * The file extension used for tile packs.
+	 */
+	public static final String EXTENSION = ".pack";
+	/**
+	 * The first 4 bytes of every tile pack: "PMTP".
+	 */
+	private static final int MAGIC = 0x50544D50;
+	/**
+	 * The version of the format written by this class.
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * The size of the header in bytes.
+	 */
+	private static final int HEADER_SIZE = 16;
+	/**
+	 * The most bytes mapped at once. A single mapping can't be larger than
+	 * 2GB, so large packs are mapped in several chunks.
+	 */
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	/**
+	 * The width of each database image.
+	 */
+	private int patchSize;
+	/**
+	 * The number of database images in the pack.
+	 */
+	private int size;
+	/**
+	 * The number of records in each mapped chunk.
+	 */
+	private int recordsPerChunk;
+	/**
+	 * The mapped chunks of the pack's records.
+	 */
+	private IntBuffer[] chunks;
+	/**
+	 * For a pack joined from other packs, the packs it was joined from, or
+	 * null.
+	 */
+	private TilePack[] parts;
+	/**
+	 * For a joined pack, which of the parts each database image is in,
+	 * indexed by id.
+	 */
+	private int[] partOf;
+	/**
+	 * For a joined pack, the id of each database image in its part, indexed
+	 * by id.
+	 */
+	private int[] partIds;
+
+	/**
+	 * Open a tile pack by memory mapping it.
+	 * @param file the tile pack
+	 * @param patchSize the expected width of each database image
+	 * @throws IOException if the file could not be read, is corrupt, or has a different patch size
+	 */
+	public TilePack(File file, int patchSize) throws IOException {
+		this.patchSize = patchSize;
+		long recordSize = recordSize(patchSize);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			checkHeader(channel, file, patchSize);
+			size = (int) ((channel.size() - HEADER_SIZE) / recordSize);
+
+			//
+			// Map the records in chunks of whole records
+			//
+			recordsPerChunk = (int) Math.max(1, CHUNK_SIZE / recordSize);
+			chunks = new IntBuffer[(size + recordsPerChunk - 1) / recordsPerChunk];
+			for (int c = 0; c < chunks.length; c++) {
+				int records = Math.min(recordsPerChunk, size - c*recordsPerChunk);
+				chunks[c] = channel.map(
+					FileChannel.MapMode.READ_ONLY,
+					HEADER_SIZE + c*recordsPerChunk*recordSize, records*recordSize
+				).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Create a pack that reads its records from other packs.
+	 * @param patchSize the width of each database image
+	 * @param parts the packs to read from
+	 * @param partOf which of the parts each database image is in, indexed by id
+	 * @param partIds the id of each database image in its part, indexed by id
+	 */
+	private TilePack(int patchSize, TilePack[] parts, int[] partOf, int[] partIds) {
+		this.patchSize = patchSize;
+		this.parts = parts;
+		this.partOf = partOf;
+		this.partIds = partIds;
+		size = partOf.length;
+	}
+
+	/**
+	 * Join several packs into one, e.g. the packs of a segmented DB. The
+	 * joined pack can leave out some of the parts' records and put the rest
+	 * in any order.
+	 * @param parts the packs to join, which must all have the same patch size
+	 * @param partOf which of the parts each database image of the joined pack is in, indexed by id
+	 * @param partIds the id of each database image in its part, indexed by id
+	 * @return the joined pack
+	 * @throws IllegalArgumentException if the parts have different patch sizes
+	 */
+	public static TilePack join(TilePack[] parts, int[] partOf, int[] partIds) throws IllegalArgumentException {
+		int patchSize = parts.length == 0 ? 0 : parts[0].patchSize;
+		for (TilePack part : parts) {
+			if (part.patchSize != patchSize) {
+				throw new IllegalArgumentException("Tile packs with different patch sizes can't be joined.");
+			}
+		}
+		return new TilePack(patchSize, parts, partOf, partIds);
+	}
+
+	/**
+	 * @return the number of database images in the pack
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copy a database image's pixels into an array of packed RGB pixels.
+	 * @param id the id of the database image
+	 * @param pixels the packed RGB pixels to copy into
+	 * @param offset the position in the pixels array of the top left pixel to copy to
+	 * @param scanline the distance between rows in the pixels array
+	 */
+	public void copyTile(int id, int[] pixels, int offset, int scanline) {
+		if (parts != null) {
+			parts[partOf[id]].copyTile(partIds[id], pixels, offset, scanline);
+			return;
+		}
+		IntBuffer chunk = chunks[id / recordsPerChunk];
+		int start = (id % recordsPerChunk) * patchSize * patchSize;
+		for (int row = 0; row < patchSize; row++) {
+			chunk.get(start + row*patchSize, pixels, offset + row*scanline, patchSize);
+		}
+	}
+
+	/**
+	 * Determine the path of the tile pack that goes with a DB file.
+	 * @param dbFilePath the path to the binary DB file or DB CSV file
+	 * @return the path to the tile pack
+	 */
+	public static String packPath(String dbFilePath) {
+		int dot = dbFilePath.lastIndexOf('.');
+		if (dot > dbFilePath.lastIndexOf('/')) {
+			dbFilePath = dbFilePath.substring(0, dot);
+		}
+		return dbFilePath + EXTENSION;
+	}
+
+	/**
+	 * Open a tile pack for appending records, creating it if it doesn't
+	 * exist. Any records past the given count are removed, so the pack can
+	 * be brought back in line with its DB file after an interrupted run.
+	 * @param file the tile pack
+	 * @param patchSize the width of each database image
+	 * @param maxRecords the most records to keep
+	 * @return the open channel, positioned at the end of the pack
+	 * @throws IOException if the file could not be opened, or has a different patch size
+	 */
+	public static FileChannel openForAppend(File file, int patchSize, int maxRecords) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(patchSize);
+				header.putInt(0);
+				header.flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			}
+			else {
+				checkHeader(channel, file, patchSize);
+			}
+
+			long records = (channel.size() - HEADER_SIZE) / recordSize(patchSize);
+			channel.truncate(HEADER_SIZE + Math.min(records, maxRecords) * recordSize(patchSize));
+			channel.position(channel.size());
+			return channel;
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param channel an open tile pack
+	 * @param patchSize the width of each database image
+	 * @return the number of whole records in the pack
+	 * @throws IOException if the pack's size could not be read
+	 */
+	public static int records(FileChannel channel, int patchSize) throws IOException {
+		return (int) ((channel.size() - HEADER_SIZE) / recordSize(patchSize));
+	}
+
+	/**
+	 * Append a database image's pixels to a tile pack.
+	 * @param channel the tile pack, opened with openForAppend
+	 * @param pixels the patchSize by patchSize packed RGB pixels of the image
+	 * @throws IOException if the record could not be written
+	 */
+	public static void append(FileChannel channel, int[] pixels) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(pixels.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		record.asIntBuffer().put(pixels);
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+	}
+
+	/**
+	 * Make sure a tile pack has a valid header for the given patch size.
+	 * @param channel the open tile pack
+	 * @param file the tile pack, used in error messages
+	 * @param patchSize the expected width of each database image
+	 * @throws IOException if the header could not be read or doesn't match
+	 */
+	private static void checkHeader(FileChannel channel, File file, int patchSize) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+			// Keep reading until the header is full or the file ends
+		}
+		if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+			throw new IOException(file.getPath() + " is not a tile pack.");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException(file.getPath() + " has unsupported version " + header.getInt(4) + ".");
+		}
+		if (header.getInt(8) != patchSize) {
+			throw new IOException(file.getPath() + " holds " + header.getInt(8) + "x" + header.getInt(8) + " tiles, not " + patchSize + "x" + patchSize + ".");
+		}
+	}
+
+	/**
+	 * @param patchSize the width of each database image
+	 * @return the size in bytes of each record
+	 */
+	private static long recordSize(int patchSize) {
+		return (long) patchSize * patchSize * 4;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Author: Erik H
+ * Class: CMPT450
+ * Project
+ */
+
+/**
+ * Counts how many times each database image has been placed in the unique
+ * box around the patch being matched.
+ *
+ * Rather than searching the whole box for every candidate, the counts are
+ * kept up to date as the box slides along a row of patches: moving one patch
+ * to the right only adds the column entering the box and removes the column
+ * leaving it. Looking up a candidate's count is then a single array read.
+ *
+ * Only the tiles placed before the current patch are counted: every row above
+ * it, and the patches to its left. Each thread matching patches needs its own
+ * window.
+ */
+public class UniquenessWindow {
+	/**
+	 * The placed database images the window counts.
+	 */
+	private PlacedTiles placedTiles;
+	/**
+	 * The number of patches the box reaches out in each direction.
+	 */
+	private int radius;
+	/**
+	 * The number of times each database image appears in the window, indexed by id.
+	 */
+	private int[] counts;
+	/**
+	 * The row of patches the window is on, or -1 if it isn't on a row.
+	 */
+	private int y = -1;
+	/**
+	 * The leftmost column counted in the rows above.
+	 */
+	private int left;
+	/**
+	 * One past the rightmost column counted in the rows above.
+	 */
+	private int right;
+	/**
+	 * One past the rightmost column counted in the current row.
+	 */
+	private int placed;
+
+	/**
+	 * Create an empty window.
+	 * @param placedTiles the placed database images to count
+	 * @param uniqueBox the box size to search for duplicates in
+	 * @param dbSize the number of database images
+	 */
+	public UniquenessWindow(PlacedTiles placedTiles, int uniqueBox, int dbSize) {
+		this.placedTiles = placedTiles;
+		this.radius = Math.max(uniqueBox/2, 0);
+		this.counts = new int[dbSize];
+	}
+
+	/**
+	 * Move the window to the start of a row. The rows above must have their
+	 * first uniqueBox/2 + 1 patches placed.
+	 * @param row the row of patches to move to
+	 */
+	public void startRow(int row) {
+		endRow();
+		y = row;
+		left = 0;
+		right = 0;
+		placed = 0;
+	}
+
+	/**
+	 * Move the window so it is centred on a patch, further along the current
+	 * row. The row above must have at least its first x + uniqueBox/2 + 1
+	 * patches placed, and this row must have every patch up to x placed.
+	 * @param x the column of the patch
+	 */
+	public void moveTo(int x) {
+		int newRight = Math.min(x + radius + 1, placedTiles.getColumns());
+		for (; right < newRight; right++) {
+			column(right, y - radius, y, 1);
+		}
+		for (; left < x - radius; left++) {
+			column(left, y - radius, y, -1);
+			if (left < placed) {
+				change(placedTiles.get(left, y), -1);
+			}
+		}
+	}
+
+	/**
+	 * Count a database image that has just been placed on the current row.
+	 * Patches must be placed in order from left to right.
+	 * @param x the column of the patch
+	 * @param id the id of the database image placed there
+	 */
+	public void place(int x, int id) {
+		placed = x + 1;
+		change(id, 1);
+	}
+
+	/**
+	 * @param id the id of a database image
+	 * @return the number of times the database image appears in the window
+	 */
+	public int count(int id) {
+		return counts[id];
+	}
+
+	/**
+	 * Empty the window at the end of a row, so that the counts start from
+	 * zero on the next row without clearing the whole array.
+	 */
+	public void endRow() {
+		if (y < 0) {
+			return;
+		}
+		for (int x = left; x < right; x++) {
+			column(x, y - radius, y, -1);
+		}
+		for (int x = left; x < placed; x++) {
+			change(placedTiles.get(x, y), -1);
+		}
+		y = -1;
+	}
+
+	/**
+	 * Add or remove one column of the placed tiles from the counts.
+	 * @param x the column
+	 * @param top the first row
+	 * @param bottom one past the last row
+	 * @param delta 1 to add the column, -1 to remove it
+	 */
+	private void column(int x, int top, int bottom, int delta) {
+		for (int row = Math.max(top, 0); row < bottom; row++) {
+			change(placedTiles.get(x, row), delta);
+		}
+	}
+
+	/**
+	 * @param id the id of a database image, or PlacedTiles.EMPTY
+	 * @param delta the change in the number of times it appears
+	 */
+	private void change(int id, int delta) {
+		if (id != PlacedTiles.EMPTY) {
+			counts[id] += delta;
+		}
+	}
+}